@@ -4,11 +4,16 @@ package forms;
 import static logic.Application.application;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import javax.swing.ActionMap;
+import javax.swing.ButtonGroup;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
+import logic.Actions;
 import microfont.Document;
 import microfont.MSymbol;
+import microfont.gui.Editor;
 import microfont.gui.MSymbolEditor;
 import microfont.render.ColorIndex;
 import microfont.render.PixselMapRender;
@@ -20,7 +25,7 @@ public class EditPanel extends JPanel {
     private static final long serialVersionUID = 1L;
     private MSymbolEditor     edit;
 
-    public EditPanel() {
+    public EditPanel(ActionMap am) {
         JToolBar tools;
         setLayout(new BorderLayout());
 
@@ -37,7 +42,16 @@ public class EditPanel extends JPanel {
 
         tools = new JToolBar(JToolBar.VERTICAL);
         tools.setFloatable(false);
-        // TODO place buttons for tools
+        ButtonGroup group = new ButtonGroup();
+        String[] keys = { Actions.ON_TOOL_PEN, Actions.ON_TOOL_LINE,
+                        Actions.ON_TOOL_RECTANGLE, Actions.ON_TOOL_ELLIPSE,
+                        Actions.ON_TOOL_FILL, Actions.ON_TOOL_STROKE };
+        for (String key : keys) {
+            JToggleButton button = new JToggleButton(am.get(key));
+            group.add(button);
+            tools.add(button);
+            if (key == Actions.ON_TOOL_PEN) button.setSelected(true);
+        }
 
         tools.add(new JToolBar.Separator());
 
@@ -121,6 +135,10 @@ public class EditPanel extends JPanel {
         edit.getDocument().setEditedSymbol(symbol);
     }
 
+    public void setEditor(Editor editor) {
+        edit.setEditor(editor);
+    }
+
     public void setDocument(Document doc) {
         edit.setDocument(doc);
     }
@@ -156,6 +156,8 @@ public class WorkShop extends JFrame {
         JMenu mEdit;
         JMenu shift;
         JMenu refl;
+        JMenu style;
+        JMenu scale;
         JMenu mView;
         JMenu mTools;
         JMenu mHelp;
@@ -202,6 +204,20 @@ public class WorkShop extends JFrame {
 
         mTools = new IMenu(application().resource().getString("menubar.tools",
                         Resource.TEXT_NAME_KEY));
+        style = new JMenu(application().resource().getString("style",
+                        Resource.TEXT_NAME_KEY));
+        style.add(am.get(Actions.ON_STYLE_BOLD));
+        style.add(am.get(Actions.ON_STYLE_ITALIC));
+        style.add(am.get(Actions.ON_STYLE_OUTLINE));
+        style.add(am.get(Actions.ON_STYLE_UNDERLINE));
+        mTools.add(style);
+        scale = new JMenu(application().resource().getString("scale",
+                        Resource.TEXT_NAME_KEY));
+        scale.add(am.get(Actions.ON_SCALE_DOUBLE));
+        scale.add(am.get(Actions.ON_SCALE_2X));
+        scale.add(am.get(Actions.ON_SCALE_3X));
+        scale.add(am.get(Actions.ON_SCALE_HALF));
+        mTools.add(scale);
         mb.add(mTools);
 
         mHelp = new IMenu(application().resource().getString("menubar.help",
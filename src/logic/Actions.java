@@ -6,6 +6,11 @@ import java.awt.event.ActionEvent;
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
 import javax.swing.JFileChooser;
+import microfont.Scaler;
+import microfont.StyleGenerator;
+import microfont.gui.FillEditor;
+import microfont.gui.ShapeEditor;
+import microfont.gui.StrokeEditor;
 import utils.resource.Resource;
 
 public class Actions extends ActionMap {
@@ -29,6 +34,20 @@ public class Actions extends ActionMap {
     public static final String ON_SHIFT_DOWN             = "shift.down";
     public static final String ON_SELECTED_SYMBOL_CHANGE = "symbol.change";
     public static final String ON_HEAP_SIZE              = "heap.size";
+    public static final String ON_TOOL_PEN               = "tool.pen";
+    public static final String ON_TOOL_FILL              = "tool.fill";
+    public static final String ON_TOOL_STROKE            = "tool.stroke";
+    public static final String ON_TOOL_LINE              = "tool.line";
+    public static final String ON_TOOL_RECTANGLE         = "tool.rectangle";
+    public static final String ON_TOOL_ELLIPSE           = "tool.ellipse";
+    public static final String ON_STYLE_BOLD             = "style.bold";
+    public static final String ON_STYLE_ITALIC           = "style.italic";
+    public static final String ON_STYLE_OUTLINE          = "style.outline";
+    public static final String ON_STYLE_UNDERLINE        = "style.underline";
+    public static final String ON_SCALE_DOUBLE           = "scale.double";
+    public static final String ON_SCALE_2X               = "scale.2x";
+    public static final String ON_SCALE_3X               = "scale.3x";
+    public static final String ON_SCALE_HALF             = "scale.half";
 
     Actions(Resource res) {
         put(ON_OPEN_FONT, new ActionX("open", res) {
@@ -207,6 +226,183 @@ public class Actions extends ActionMap {
             }
         });
 
+        put(ON_TOOL_PEN, new ActionX("tool.pen", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 3720168852264069427L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel.setEditor(null);
+            }
+        });
+
+        put(ON_TOOL_FILL, new ActionX("tool.fill", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -5128046411707452218L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel
+                                .setEditor(new FillEditor());
+            }
+        });
+
+        put(ON_TOOL_STROKE, new ActionX("tool.stroke", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 8841390257716623905L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel
+                                .setEditor(new StrokeEditor());
+            }
+        });
+
+        put(ON_TOOL_LINE, new ActionX("tool.line", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -1937305525127884311L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel.setEditor(new ShapeEditor(
+                                ShapeEditor.SHAPE_LINE));
+            }
+        });
+
+        put(ON_TOOL_RECTANGLE, new ActionX("tool.rectangle", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 6488021733095615170L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel.setEditor(new ShapeEditor(
+                                ShapeEditor.SHAPE_RECTANGLE));
+            }
+        });
+
+        put(ON_TOOL_ELLIPSE, new ActionX("tool.ellipse", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 2675309843462187519L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().editPanel.setEditor(new ShapeEditor(
+                                ShapeEditor.SHAPE_ELLIPSE));
+            }
+        });
+
+        put(ON_STYLE_BOLD, new ActionX("style.bold", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -5829485641585422791L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().deriveStyle(
+                                StyleGenerator.STYLE_BOLD);
+            }
+        });
+
+        put(ON_STYLE_ITALIC, new ActionX("style.italic", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -8829333339350542749L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().deriveStyle(
+                                StyleGenerator.STYLE_ITALIC);
+            }
+        });
+
+        put(ON_STYLE_OUTLINE, new ActionX("style.outline", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 5122862964954307873L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().deriveStyle(
+                                StyleGenerator.STYLE_OUTLINE);
+            }
+        });
+
+        put(ON_STYLE_UNDERLINE, new ActionX("style.underline", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -3365772507076489785L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().deriveStyle(
+                                StyleGenerator.STYLE_UNDERLINE);
+            }
+        });
+
+        put(ON_SCALE_DOUBLE, new ActionX("scale.double", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 1598699428041656500L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().scaleFont(Scaler.SCALE_NEAREST, 2);
+            }
+        });
+
+        put(ON_SCALE_2X, new ActionX("scale.2x", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = -5405321801355870036L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().scaleFont(Scaler.SCALE_EPX, 2);
+            }
+        });
+
+        put(ON_SCALE_3X, new ActionX("scale.3x", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 2706298667466344529L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().scaleFont(Scaler.SCALE_EPX, 3);
+            }
+        });
+
+        put(ON_SCALE_HALF, new ActionX("scale.half", res) {
+            /**
+             * 
+             */
+            private static final long serialVersionUID = 4221426608647595135L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Application.application().scaleFont(Scaler.SCALE_BOX, 2);
+            }
+        });
+
         put(ON_SELECTED_SYMBOL_CHANGE, new AbstractAction() {
             /**
              * 
@@ -21,6 +21,8 @@ import javax.swing.event.UndoableEditListener;
 import javax.swing.undo.UndoManager;
 import microfont.Document;
 import microfont.MFont;
+import microfont.Scaler;
+import microfont.StyleGenerator;
 import microfont.ls.MFontLoadSave;
 import utils.config.ConfigNode;
 import utils.config.RootNode;
@@ -53,6 +55,7 @@ public class Application {
     ActionMap                      actions;
     UndoManager                    uManager;
     int                            undoCount;
+    long                           savedRevision;
 
     WorkShop                       work;
     FontPanel                      fontPanel;
@@ -198,7 +201,7 @@ public class Application {
                 exit();
             }
         });
-        editPanel = new EditPanel();
+        editPanel = new EditPanel(actions);
         editPanel.setDocument(doc);
         fontPanel = new FontPanel(actions);
         work.setLeft(fontPanel);
@@ -272,6 +275,7 @@ public class Application {
         if (font != null) {
             font.addPropertyChangeListener(atFontChange);
             fontName = font.getName();
+            savedRevision = font.getRevision();
         } else {
             fontName = null;
         }
@@ -368,6 +372,7 @@ public class Application {
 
         if (saveAs) uManager.discardAllEdits();
         undoCount = 0;
+        savedRevision = font.getRevision();
         updateUndoRedo();
         updateTitle();
         return true;
@@ -401,13 +406,22 @@ public class Application {
         redo.putValue(Action.SHORT_DESCRIPTION,
                         uManager.getRedoPresentationName());
 
-        setSaved(undoCount == 0);
+        MFont font = doc.getFont();
+        setSaved(font == null || font.getRevision() == savedRevision);
+    }
+
+    void revisionRestored() {
+        MFont font = doc.getFont();
+        // Отмена или повтор вернули шрифт к сохранённому состоянию.
+        if (undoCount == 0 && font != null)
+            savedRevision = font.getRevision();
     }
 
     public void undo() {
         if (uManager.canUndo()) {
             undoCount--;
             uManager.undo();
+            revisionRestored();
         }
         updateUndoRedo();
     }
@@ -416,6 +430,7 @@ public class Application {
         if (uManager.canRedo()) {
             undoCount++;
             uManager.redo();
+            revisionRestored();
         }
         updateUndoRedo();
     }
@@ -440,6 +455,51 @@ public class Application {
         }
     }
 
+    /**
+     * Заменяет редактируемый шрифт шрифтом с производным начертанием.
+     * 
+     * @param styles Сочетание констант <code>StyleGenerator.STYLE_*</code>.
+     */
+    public void deriveStyle(int styles) {
+        MFont font = doc.getFont();
+        MFont styled;
+
+        if (font == null) return;
+        try {
+            styled = new StyleGenerator(styles).apply(font);
+        } catch (InterruptedException e) {
+            // Шрифт не меняется, прерывание остаётся за вызвавшим.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        doc.fontEdit("derive style");
+        font.copy(styled);
+        doc.endEdit();
+    }
+
+    /**
+     * Заменяет редактируемый шрифт масштабированным.
+     * 
+     * @param mode Способ масштабирования <code>Scaler.SCALE_*</code>.
+     * @param factor Множитель при увеличении или делитель при уменьшении.
+     */
+    public void scaleFont(int mode, int factor) {
+        MFont font = doc.getFont();
+        MFont scaled;
+
+        if (font == null) return;
+        try {
+            scaled = new Scaler(mode, factor).apply(font);
+        } catch (InterruptedException e) {
+            // Шрифт не меняется, прерывание остаётся за вызвавшим.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        doc.fontEdit("scale");
+        font.copy(scaled);
+        doc.endEdit();
+    }
+
     public void shiftLeft() {
         try {
             doc.symbolEdit("shift left");
@@ -1,19 +1,22 @@
 
 package microfont;
 
+import java.awt.Dimension;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import microfont.events.PixselMapEvent;
 import microfont.events.PixselMapListener;
+import microfont.events.SymbolsChangeEvent;
 import utils.event.ListenerChain;
 
 /**
@@ -78,7 +81,11 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
     public static final String PROPERTY_WIDTH     = "mf.width";
 
     private static Logger      log                = Logger.getLogger(LOGGER);
-    private MSymbol[]          symbols;
+    private final SymbolIndex  symbols            = new SymbolIndex();
+    /** Коды символов по их уникоду. */
+    private final IntMap       unicodes           = new IntMap();
+    /** Таблицы преобразования для текущей кодировки. */
+    private CodePageTable      table;
     private boolean            fixsed;
     private String             codePage;
     private Charset            charSet;
@@ -87,6 +94,12 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
     protected int              height;
     protected int              validHeight;
     protected ListenerChain    listeners;
+    /** Кэш распакованных символов шрифта. */
+    private final SymbolCache  cache              = new SymbolCache(this);
+    /** Номер редакции шрифта. */
+    private volatile long      revision;
+    /** События символов не транслируются получателям шрифта. */
+    private boolean            quiet;
 
     /**
      * Конструктор для пустого шрифта.
@@ -96,7 +109,6 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         height = 0;
         codePage = null;
         charSet = null;
-        symbols = new MSymbol[0];
         listeners = new ListenerChain();
     }
 
@@ -118,8 +130,8 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         result = prime * result + (fixsed ? 1231 : 1237);
         result = prime * result + height;
         result = prime * result + width;
-        for (int i = 0; i < symbols.length; i++) {
-            result = prime + symbols[i].hashCode();
+        for (MSymbol sym : symbols) {
+            result = prime + sym.hashCode();
         }
         return result;
     }
@@ -143,9 +155,9 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         if (height != other.height) return false;
         if (width != other.width) return false;
 
-        if (symbols.length != other.symbols.length) return false;
-        for (int i = 0; i < symbols.length; i++) {
-            if (!symbols[i].equals(other.symbols[i])) return false;
+        if (symbols.size() != other.symbols.size()) return false;
+        for (int i = 0; i < symbols.size(); i++) {
+            if (!symbols.get(i).equals(other.symbols.get(i))) return false;
         }
         return true;
     }
@@ -158,9 +170,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      */
     public void copy(AbstractMFont font) {
         synchronized (getLock()) {
-            for (MSymbol sym : symbols) {
-                remove(sym);
-            }
+            removeAll(Arrays.asList(symbols.toArray()));
 
             synchronized (font.getLock()) {
                 setFixsed(font.fixsed);
@@ -169,9 +179,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
                 setCodePage(font.codePage);
                 setCharset(font.getCharset());
 
-                for (int i = 0; i < font.length(); i++) {
-                    add(font.symbolByIndex(i));
-                }
+                addAll(Arrays.asList(font.symbols.toArray()));
             }
         }
     }
@@ -224,18 +232,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      */
     int toCode(int unicode) throws UnsupportedOperationException,
                     CharacterCodingException {
-        int ret = 0;
-        CharBuffer cb = CharBuffer.wrap(Character.toChars(unicode));
-        CharsetEncoder cse = charSet.newEncoder();
-        cse.onUnmappableCharacter(CodingErrorAction.REPORT);
-        byte[] bts = cse.encode(cb).array();
-
-        for (int i = bts.length - 1; i >= 0; i--) {
-            // byte bts[i] расширяется до int с учётом знака!!! Поэтому надо
-            // у этого значения обнулить старшие три байта.
-            ret = (ret << 8) | (bts[i] & 0xff);
-        }
-        return ret;
+        return table().toCode(unicode);
     }
 
     /**
@@ -245,25 +242,19 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      *             входит в шрифт.
      */
     int toUnicode(int code) throws CharacterCodingException {
-        byte[] bts = new byte[4];
-        /*
-         * Это место доставило мне немало хлопот. А всё из-за попытки сделать
-         * CharBuffer.putInt(code), такой способ не работал.
-         */
-        int byteNum = 1;
-        for (int i = 0; i < 4; i++) {
-            bts[i] = (byte) code;
-            if (bts[i] != 0) byteNum = i + 1;
-            code >>= 8;
-        }
-
-        ByteBuffer bb = ByteBuffer.wrap(bts, 0, byteNum);
-        CharsetDecoder csd = charSet.newDecoder();
-        csd.onUnmappableCharacter(CodingErrorAction.REPORT);
-
-        char[] chars = csd.decode(bb).array();
+        return table().toUnicode(code);
+    }
 
-        return Character.codePointAt(chars, 0);
+    /**
+     * Возвращает таблицы преобразования для текущей кодировки.
+     */
+    private CodePageTable table() {
+        CodePageTable ret = table;
+        if (ret == null || ret.charset() != charSet) {
+            ret = CodePageTable.forCharset(charSet);
+            table = ret;
+        }
+        return ret;
     }
 
     /**
@@ -281,7 +272,9 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
 
         if (isUnicode()) {
             try {
-                sym.changeUnicode(toUnicode(newCode));
+                int unicode = toUnicode(newCode);
+                mapUnicode(sym, unicode, newCode);
+                sym.changeUnicode(unicode);
             } catch (CharacterCodingException e) {
                 logger().log(Level.WARNING, "unmapped simbol''s code : {0}",
                                 sym.getCode());
@@ -291,10 +284,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
             }
         }
 
-        int oldPos = position(oldCode);
-        int newPos = position(newCode);
-
-        replace(oldPos, newPos);
+        move(oldCode, newCode);
     }
 
     /**
@@ -316,6 +306,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         } catch (UnsupportedOperationException e) {
             logger().log(Level.WARNING,
                             "This charset does not support encoding");
+            mapUnicode(sym, newUnicode, oldCode);
             return;
         } catch (CharacterCodingException e) {
             logger().log(Level.WARNING, "unmapped simbol''s code : {0}",
@@ -325,12 +316,11 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
             return;
         }
 
+        mapUnicode(sym, newUnicode, newCode);
         if (oldCode == newCode) return;
 
-        int oldPos = position(oldCode);
-        int newPos = position(newCode);
         sym.changeCode(newCode);
-        replace(oldPos, newPos);
+        move(oldCode, newCode);
     }
 
     /**
@@ -399,7 +389,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
             }
         } else if (old == null) {
             // Установить unicode для всех символов.
-            for (MSymbol sym : symbols) {
+            for (MSymbol sym : symbols.toArray()) {
                 try {
                     sym.setUnicode(toUnicode(sym.getCode()));
                 } catch (CharacterCodingException e) {
@@ -412,8 +402,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
             }
         } else {
             // Поменять code для всех символов и отсортировать.
-            MSymbol[] st = new MSymbol[symbols.length];
-            System.arraycopy(symbols, 0, st, 0, symbols.length);
+            MSymbol[] st = symbols.toArray();
 
             try {
                 for (MSymbol sym : st) {
@@ -431,6 +420,11 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
                                 "This charset does not support encoding");
             }
         }
+
+        unicodes.clear();
+        for (MSymbol sym : symbols) {
+            if (sym.isUnicode()) unicodes.put(sym.getUnicode(), sym.getCode());
+        }
     }
 
     /**
@@ -505,7 +499,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
             for (MSymbol sym : symbols) {
                 ret += sym.getWidth();
             }
-            return (int) (ret / symbols.length);
+            return (int) (ret / symbols.size());
         }
     }
 
@@ -519,9 +513,26 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @throws IllegalArgumentException Если <code>w</code> меньше нуля.
      */
     public void setWidth(int w) {
+        setWidth(w, null);
+    }
+
+    /**
+     * Устанавливает новую ширину символов шрифта так же, как
+     * {@link #setWidth(int)}, сообщая о ходе операции. Символы моноширинного
+     * шрифта меняются параллельно, получатели событий шрифта извещаются одним
+     * событием {@link #PROPERTY_WIDTH}.
+     * 
+     * @param w Новая ширина шрифта. Должна быть не отрицательным числом.
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена, ширина шрифта и
+     *         символов при этом не меняется.
+     * @throws IllegalArgumentException Если <code>w</code> меньше нуля.
+     */
+    public boolean setWidth(int w, MFontProgress progress) {
         synchronized (getLock()) {
             prepareWidth(w);
-            applyWidth();
+            return applyWidth(progress);
         }
     }
 
@@ -583,9 +594,27 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @throws IllegalArgumentException Если <code>h</code> меньше нуля.
      */
     public void setHeight(int h) {
+        setHeight(h, null);
+    }
+
+    /**
+     * Устанавливает новую высоту символов шрифта так же, как
+     * {@link #setHeight(int)}, сообщая о ходе операции. Символы меняются
+     * параллельно, получатели событий шрифта извещаются одним событием
+     * {@link #PROPERTY_HEIGHT}.
+     * 
+     * @param h Новая высота символов шрифта. Должна быть не отрицательным
+     *            числом.
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена, высота шрифта и
+     *         символов при этом не меняется.
+     * @throws IllegalArgumentException Если <code>h</code> меньше нуля.
+     */
+    public boolean setHeight(int h, MFontProgress progress) {
         synchronized (getLock()) {
             prepareHeight(h);
-            applyHeight();
+            return applyHeight(progress);
         }
     }
 
@@ -604,7 +633,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @see #length()
      */
     public boolean isEmpty() {
-        return symbols.length <= 0;
+        return symbols.size() <= 0;
     }
 
     /**
@@ -613,7 +642,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @see #isEmpty()
      */
     public int length() {
-        return symbols.length;
+        return symbols.size();
     }
 
     /**
@@ -643,7 +672,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
     public MSymbol symbolByIndex(int index) {
         synchronized (getLock()) {
             if (index >= length() || index < 0) return null;
-            return symbols[index];
+            return symbols.get(index);
         }
     }
 
@@ -676,80 +705,75 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * Добавляет символ в шрифт.
      * 
      * @param symbol Добавляемый символ.
+     * @see #addAll(Collection)
      */
     public void add(MSymbol symbol) {
         synchronized (getLock()) {
-            if (symbol == null) return;
             if (isBelong(symbol)) return;
-            if (symbol.owner != null) symbol = symbol.clone();
-            // Преобразования свойств код и уникод символа.
-            if (charSet == null) {
-                try {
-                    symbol.clearUnicode();
-                } catch (DisallowOperationException e) {
-                    logger().log(Level.SEVERE, "Clear unicode fail", e);
-                    // XXX Спорный момент - оставлять ли символ шрифте.
-                    return;
-                }
-            } else if (symbol.isUnicode()) {
-                try {
-                    symbol.setCode(toCode(symbol.getUnicode()));
-                } catch (UnsupportedOperationException e) {
-                    logger().log(Level.WARNING,
-                                    "This charset does not support encoding");
-                } catch (CharacterCodingException e) {
-                    logger().log(Level.WARNING,
-                                    "unmapped simbol''s unicode : {0}",
-                                    symbol.getCode());
-                    // XXX Спорный момент - оставлять ли символ шрифте.
-                    return;
-                }
-            } else {
-                try {
-                    symbol.setUnicode(toUnicode(symbol.getCode()));
-                } catch (CharacterCodingException e) {
-                    logger().log(Level.WARNING,
-                                    "unmapped simbol''s code : {0}",
-                                    symbol.getCode());
-                    // XXX Спорный момент - оставлять ли символ шрифте.
-                    return;
-                } catch (DisallowOperationException e) {
-                    logger().log(Level.SEVERE, "Set unicode fail", e);
-                    // XXX Спорный момент - оставлять ли символ шрифте.
-                    return;
-                }
-            }
+            symbol = prepareSymbol(symbol);
+            if (symbol == null) return;
 
             captureSymbol(symbol);
+            applySize(symbol);
 
-            try {
-                if (fixsed) {
-                    symbol.setSize(width, height);
-                } else {
-                    symbol.setHeight(height);
-                }
-            } catch (DisallowOperationException e) {
-                // Это исключение не должно возникнуть никогда.
-                logger().log(Level.SEVERE, "fail apply size", e);
-            }
+            MSymbol old = put(symbol);
+            if (old != null) releaseSymbol(old);
 
-            int pos = position(symbol.getCode());
-            MSymbol old = null;
+            firePropertyChange(PROPERTY_SYMBOLS, old, symbol);
+        }
+    }
 
-            if (pos >= symbols.length) {
-                insert(pos, symbol);
-            } else if (symbols[pos].getCode() != symbol.getCode()) {
-                insert(pos, symbol);
-            } else {
-                old = symbols[pos];
-                symbols[pos] = symbol;
-            }
+    /**
+     * Добавляет символы в шрифт. Результат тот же, что и при добавлении
+     * символов по одному методом {@link #add(MSymbol)}, но символы
+     * сортируются один раз и вставляются в хранилище за один проход, а
+     * получатели извещаются одним событием {@link SymbolsChangeEvent}. Если
+     * среди символов есть несколько с одинаковым кодом, то в шрифт попадает
+     * последний из них.
+     * 
+     * @param c Добавляемые символы.
+     */
+    public void addAll(Collection<? extends MSymbol> c) {
+        synchronized (getLock()) {
+            update(new MSymbol[0], c);
+        }
+    }
 
-            if (old != null) {
-                releaseSymbol(old);
-            }
+    /**
+     * Удаляет символы из шрифта. Символы, не принадлежащие шрифту,
+     * пропускаются. Получатели извещаются одним событием
+     * {@link SymbolsChangeEvent}.
+     * 
+     * @param c Удаляемые символы.
+     */
+    public void removeAll(Collection<? extends MSymbol> c) {
+        synchronized (getLock()) {
+            update(c.toArray(new MSymbol[c.size()]), null);
+        }
+    }
 
-            firePropertyChange(PROPERTY_SYMBOLS, old, symbol);
+    /**
+     * Заменяет символы с кодами от <code>firstCode</code> до
+     * <code>lastCode</code> включительно символами из <code>c</code>. Коды
+     * новых символов не обязаны попадать в этот диапазон. Получатели
+     * извещаются одним событием {@link SymbolsChangeEvent}.
+     * 
+     * @param firstCode Код первого заменяемого символа.
+     * @param lastCode Код последнего заменяемого символа.
+     * @param c Добавляемые символы.
+     */
+    public void replaceRange(int firstCode, int lastCode,
+                    Collection<? extends MSymbol> c) {
+        synchronized (getLock()) {
+            int from = symbols.position(firstCode);
+            int to = lastCode == Integer.MAX_VALUE ? symbols.size() : symbols
+                            .position(lastCode + 1);
+            if (to < from) to = from;
+            MSymbol[] removed = new MSymbol[to - from];
+
+            for (int i = from; i < to; i++)
+                removed[i - from] = symbols.get(i);
+            update(removed, c);
         }
     }
 
@@ -757,28 +781,16 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * Удаляет указанный символ из шрифта.
      * 
      * @param symbol Удаляемый символ.
+     * @see #removeAll(Collection)
      */
     public void remove(MSymbol symbol) {
         synchronized (getLock()) {
-            int i;
-
             if (!isBelong(symbol)) return;
 
-            i = 0;
-            for (MSymbol sym : symbols) {
-                if (sym == symbol) {
-                    sym.removePropertyChangeListener(this);
-                    sym.removePixselMapListener(this);
-                    sym.owner = null;
-                    break;
-                }
-                i++;
-            }
-
-            MSymbol[] t = new MSymbol[symbols.length - 1];
-            System.arraycopy(symbols, 0, t, 0, i);
-            System.arraycopy(symbols, i + 1, t, i, symbols.length - i - 1);
-            symbols = t;
+            symbols.remove(symbols.indexOf(symbol.getCode()));
+            if (symbol.isUnicode())
+                unicodes.remove(symbol.getUnicode(), symbol.getCode());
+            releaseSymbol(symbol);
 
             firePropertyChange(PROPERTY_SYMBOLS, symbol, null);
         }
@@ -825,7 +837,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      */
     @Override
     public void pixselChanged(PixselMapEvent change) {
-        firePixselEvent(change);
+        if (!quiet) firePixselEvent(change);
     }
 
     /**
@@ -838,6 +850,11 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      */
     @Override
     public void propertyChange(PropertyChangeEvent event) {
+        // Символы, изменённые без трансляции событий, уже учтены кэшем.
+        if (quiet) return;
+        if (event.getPropertyName().equals(PixselMap.PROPERTY_SIZE)
+                        && event.getSource() instanceof MSymbol)
+            cache.resized((MSymbol) event.getSource());
         firePropertyChange(event);
     }
 
@@ -893,6 +910,32 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         return this;
     }
 
+    /**
+     * Возвращает номер редакции шрифта. Номер увеличивается при каждом
+     * изменении свойств шрифта, состава символов и любого из символов шрифта
+     * и никогда не уменьшается.
+     * 
+     * @see AbstractPixselMap#getRevision()
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Увеличивает номер редакции шрифта. Вызывается с блокировкой
+     * {@link #getLock()}.
+     */
+    void nextRevision() {
+        revision++;
+    }
+
+    /**
+     * Возвращает кэш, управляющий сжатием символов шрифта.
+     */
+    public SymbolCache getSymbolCache() {
+        return cache;
+    }
+
     /**
      * Возвращает позицию вставки для символа с указанным кодом.
      * 
@@ -901,14 +944,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      *         символ должен быть добавлен после последнего символа.
      */
     protected int position(int code) {
-        int ret = 0;
-
-        for (MSymbol sym : symbols) {
-            if (sym.getCode() >= code) break;
-            ret++;
-        }
-
-        return ret;
+        return symbols.position(code);
     }
 
     /**
@@ -919,22 +955,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      *         нет.
      */
     protected int indexByCode(int code) {
-        if (isEmpty()) return -1;
-        // Подготовка к поиску методом последовательного приближения.
-        int len = length();
-        int step = len / 2;
-        int index = step;
-        // Реализация последовательного приближения.
-        while (index >= 0 && index < len) {
-            int scd = symbols[index].getCode();
-            if (scd == code) return index;
-            step /= 2;
-            if (step == 0) step = 1;
-
-            if (scd < code) index += step;
-            else index -= step;
-        }
-        return -1;
+        return symbols.indexOf(code);
     }
 
     /**
@@ -946,29 +967,196 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      */
     protected int indexByUnicode(int unicode) {
         if (!isUnicode()) return -1;
-        if (isEmpty()) return -1;
 
-        int code;
+        int code = unicodes.get(unicode);
+        if (code == IntMap.MISSING) return -1;
+        return indexByCode(code);
+    }
+
+    /**
+     * Заменяет запись символа в таблице уникодов. Вызывается до изменения
+     * уникода или кода символа, пока символ хранит старые значения.
+     * 
+     * @param sym Изменяемый символ.
+     * @param unicode Новый уникод символа.
+     * @param code Новый код символа.
+     */
+    private void mapUnicode(MSymbol sym, int unicode, int code) {
+        if (sym.isUnicode()) unicodes.remove(sym.getUnicode(), sym.getCode());
+        unicodes.put(unicode, code);
+    }
+
+    /**
+     * Подготавливает символ к добавлению в шрифт: копирует символ другого
+     * шрифта и согласует его код и уникод с кодировкой шрифта.
+     * 
+     * @param symbol Добавляемый символ.
+     * @return Символ для добавления или <code>null</code>, если символ не
+     *         может быть добавлен.
+     */
+    private MSymbol prepareSymbol(MSymbol symbol) {
+        if (symbol == null) return null;
+        if (symbol.owner != null) symbol = symbol.clone();
+        // Преобразования свойств код и уникод символа.
+        if (charSet == null) {
+            try {
+                symbol.clearUnicode();
+            } catch (DisallowOperationException e) {
+                logger().log(Level.SEVERE, "Clear unicode fail", e);
+                // XXX Спорный момент - оставлять ли символ шрифте.
+                return null;
+            }
+        } else if (symbol.isUnicode()) {
+            try {
+                symbol.setCode(toCode(symbol.getUnicode()));
+            } catch (UnsupportedOperationException e) {
+                logger().log(Level.WARNING,
+                                "This charset does not support encoding");
+            } catch (CharacterCodingException e) {
+                logger().log(Level.WARNING, "unmapped simbol''s unicode : {0}",
+                                symbol.getCode());
+                // XXX Спорный момент - оставлять ли символ шрифте.
+                return null;
+            }
+        } else {
+            try {
+                symbol.setUnicode(toUnicode(symbol.getCode()));
+            } catch (CharacterCodingException e) {
+                logger().log(Level.WARNING, "unmapped simbol''s code : {0}",
+                                symbol.getCode());
+                // XXX Спорный момент - оставлять ли символ шрифте.
+                return null;
+            } catch (DisallowOperationException e) {
+                logger().log(Level.SEVERE, "Set unicode fail", e);
+                // XXX Спорный момент - оставлять ли символ шрифте.
+                return null;
+            }
+        }
+        return symbol;
+    }
+
+    /**
+     * Приводит размер символа к размеру шрифта.
+     */
+    private void applySize(MSymbol symbol) {
         try {
-            code = toCode(unicode);
-        } catch (UnsupportedOperationException e) {
-            // Если получение уникода невозможно, то приходится искать
-            // перебором.
-            for (int i = 0; i < length(); i++) {
-                if (symbols[i].getUnicode() == unicode) return i;
+            if (fixsed) {
+                symbol.setSize(width, height);
+            } else {
+                symbol.setHeight(height);
             }
-            return -1;
-        } catch (CharacterCodingException e) {
-            // Символа с таким уникодом в шрифте не может быть.
-            return -1;
+        } catch (DisallowOperationException e) {
+            // Это исключение не должно возникнуть никогда.
+            logger().log(Level.SEVERE, "fail apply size", e);
         }
+    }
 
-        return indexByCode(code);
+    /**
+     * Помещает символ в хранилище на место, соответствующее его коду.
+     * 
+     * @return Символ с тем же кодом, который был заменён, или
+     *         <code>null</code>. Заменённый символ не освобождается.
+     */
+    private MSymbol put(MSymbol symbol) {
+        int pos = position(symbol.getCode());
+        MSymbol old = null;
+
+        if (pos >= symbols.size() || symbols.code(pos) != symbol.getCode()) {
+            insert(pos, symbol);
+        } else {
+            old = symbols.set(pos, symbol);
+            if (old.isUnicode())
+                unicodes.remove(old.getUnicode(), old.getCode());
+        }
+        if (symbol.isUnicode())
+            unicodes.put(symbol.getUnicode(), symbol.getCode());
+        return old;
+    }
+
+    /**
+     * Групповое изменение набора символов. Сначала удаляются символы
+     * <code>removed</code>, затем добавляются символы <code>added</code>,
+     * после чего генерируется одно событие {@link SymbolsChangeEvent}.
+     * <p>
+     * Удаление идёт по убыванию, а вставка - по возрастанию порядковых
+     * номеров, поэтому разрыв хранилища каждый раз сдвигается только до
+     * следующей позиции и весь набор обрабатывается за один проход.
+     * 
+     * @param removed Удаляемые символы, чужие символы пропускаются.
+     * @param added Добавляемые символы или <code>null</code>.
+     */
+    private void update(MSymbol[] removed,
+                    Collection<? extends MSymbol> added) {
+        int first = Integer.MAX_VALUE, last = -1;
+        List<MSymbol> gone = new ArrayList<MSymbol>();
+
+        int[] index = new int[removed.length];
+        int n = 0;
+        for (MSymbol sym : removed) {
+            if (isBelong(sym)) index[n++] = symbols.indexOf(sym.getCode());
+        }
+        Arrays.sort(index, 0, n);
+        for (int i = n - 1; i >= 0; i--) {
+            if (i < n - 1 && index[i] == index[i + 1]) continue;
+            MSymbol sym = symbols.remove(index[i]);
+            if (sym.isUnicode())
+                unicodes.remove(sym.getUnicode(), sym.getCode());
+            releaseSymbol(sym);
+            gone.add(sym);
+            first = Math.min(first, index[i]);
+            last = Math.max(last, index[i]);
+        }
+
+        List<MSymbol> fresh = new ArrayList<MSymbol>();
+        if (added != null) {
+            for (MSymbol sym : added) {
+                if (isBelong(sym)) continue;
+                sym = prepareSymbol(sym);
+                if (sym != null) fresh.add(sym);
+            }
+        }
+        // Сортировка устойчивая, из символов с одинаковым кодом остаётся
+        // последний.
+        Collections.sort(fresh, new Comparator<MSymbol>() {
+            @Override
+            public int compare(MSymbol a, MSymbol b) {
+                return a.getCode() < b.getCode() ? -1 : a.getCode() == b
+                                .getCode() ? 0 : 1;
+            }
+        });
+        List<MSymbol> put = new ArrayList<MSymbol>(fresh.size());
+        for (int i = 0; i < fresh.size(); i++) {
+            MSymbol sym = fresh.get(i);
+            if (i + 1 < fresh.size()
+                            && fresh.get(i + 1).getCode() == sym.getCode())
+                continue;
+            // Размер меняется до встраивания, чтобы символ не генерировал
+            // событий.
+            applySize(sym);
+            captureSymbol(sym);
+            MSymbol old = put(sym);
+            if (old != null) {
+                releaseSymbol(old);
+                gone.add(old);
+            }
+            put.add(sym);
+        }
+        if (!put.isEmpty()) {
+            first = Math.min(first, indexByCode(put.get(0).getCode()));
+            last = Math.max(last,
+                            indexByCode(put.get(put.size() - 1).getCode()));
+        }
+
+        if (gone.isEmpty() && put.isEmpty()) return;
+        firePropertyChange(new SymbolsChangeEvent(this, gone
+                        .toArray(new MSymbol[gone.size()]), put
+                        .toArray(new MSymbol[put.size()]), first, last));
     }
 
     /**
      * Встраивает {@code sym} в шрифт. Символу добавляется текущий шрифт как
-     * слушатель и устанавливается владелец.
+     * слушатель, устанавливается владелец и символ учитывается
+     * {@linkplain #getSymbolCache() кэшем}.
      * 
      * @param sym Встраиваемый символ.
      */
@@ -976,6 +1164,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
         sym.addPropertyChangeListener(this);
         sym.addPixselMapListener(this);
         sym.owner = this;
+        cache.add(sym);
     }
 
     /**
@@ -985,6 +1174,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @param sym Освобождаемый символ.
      */
     protected void releaseSymbol(MSymbol sym) {
+        cache.remove(sym);
         sym.removePropertyChangeListener(this);
         sym.removePixselMapListener(this);
         sym.owner = null;
@@ -997,59 +1187,28 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @param sym Вставляемый символ.
      */
     protected void insert(int pos, MSymbol sym) {
-        MSymbol[] temp = new MSymbol[symbols.length + 1];
-
-        System.arraycopy(symbols, 0, temp, 0, pos);
-        temp[pos] = sym;
-        System.arraycopy(symbols, pos, temp, pos + 1, symbols.length - pos);
-        symbols = temp;
+        symbols.insert(pos, sym.getCode(), sym);
     }
 
     /**
-     * Перемещает символ.
+     * Перемещает символ с кодом <code>oldCode</code> на место, которое
+     * соответствует коду <code>newCode</code>. Если в шрифте уже есть символ с
+     * кодом <code>newCode</code>, то он удаляется из шрифта.
      * 
-     * @param oldPos Старая позиция символа.
-     * @param newPos Новая позиция символа.
+     * @param oldCode Старый код символа.
+     * @param newCode Новый код символа.
      */
-    protected void replace(int oldPos, int newPos) {
-        MSymbol replaced = symbols[oldPos];
-
-        if (newPos < symbols.length
-                        && symbols[oldPos].getCode() == symbols[newPos]
-                                        .getCode()) {
-            // Символ [newPos] должен быть удалён.
-            MSymbol[] t = new MSymbol[symbols.length - 1];
-            MSymbol deleted = symbols[newPos];
-
-            if (oldPos < newPos) {
-                System.arraycopy(symbols, 0, t, 0, oldPos);
-                System.arraycopy(symbols, oldPos + 1, t, oldPos, newPos
-                                - oldPos - 1);
-                System.arraycopy(symbols, newPos + 2, t, newPos + 1,
-                                symbols.length - newPos - 1);
-
-                if (newPos < symbols.length - 1 && newPos > 0)
-                    t[newPos - 1] = symbols[newPos + 1];
-            } else {
-                System.arraycopy(symbols, 0, t, 0, oldPos);
-                System.arraycopy(symbols, oldPos + 1, t, oldPos, symbols.length
-                                - oldPos - 1);
-            }
+    protected void move(int oldCode, int newCode) {
+        MSymbol moved = symbols.remove(symbols.indexOf(oldCode));
+        int pos = symbols.position(newCode);
 
-            t[newPos] = replaced;
-            symbols = t;
+        if (pos < symbols.size() && symbols.code(pos) == newCode) {
+            // Символ с новым кодом должен быть удалён.
+            MSymbol deleted = symbols.set(pos, moved);
             releaseSymbol(deleted);
             firePropertyChange(PROPERTY_SYMBOLS, deleted, null);
         } else {
-            if (oldPos < newPos) {
-                System.arraycopy(symbols, oldPos + 1, symbols, oldPos, newPos
-                                - oldPos - 1);
-                symbols[newPos - 1] = replaced;
-            } else {
-                System.arraycopy(symbols, newPos, symbols, newPos + 1, oldPos
-                                - newPos);
-                symbols[newPos] = replaced;
-            }
+            symbols.insert(pos, newCode, moved);
         }
     }
 
@@ -1113,22 +1272,30 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @see #prepareWidth(int)
      */
     protected void applyWidth() {
-        int oldWidth = width;
-        width = validWidth;
+        applyWidth(null);
+    }
 
-        if (isFixsed()) {
-            for (MSymbol sym : symbols) {
-                if (sym.getWidth() == width) continue;
-                try {
-                    sym.setWidth(width);
-                } catch (DisallowOperationException e) {
-                    logger().log(Level.SEVERE,
-                                    "MSymbol.setWidth in applyWidth : ", e);
-                }
-            }
+    /**
+     * Завершает изменение ширины шрифта так же, как {@link #applyWidth()},
+     * сообщая о ходе операции.
+     * 
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена. Ширина шрифта и
+     *         символов при этом не меняется, а подготовленная ширина
+     *         сбрасывается.
+     * @see #resizeSymbols(int, int, MFontProgress)
+     */
+    protected boolean applyWidth(MFontProgress progress) {
+        if (isFixsed() && !resizeSymbols(validWidth, -1, progress)) {
+            validWidth = width;
+            return false;
         }
 
+        int oldWidth = width;
+        width = validWidth;
         firePropertyChange(PROPERTY_WIDTH, oldWidth, width);
+        return true;
     }
 
     /**
@@ -1154,22 +1321,86 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * @see #prepareHeight(int)
      */
     protected void applyHeight() {
+        applyHeight(null);
+    }
+
+    /**
+     * Завершает изменение высоты шрифта так же, как {@link #applyHeight()},
+     * сообщая о ходе операции.
+     * 
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена. Высота шрифта и
+     *         символов при этом не меняется, а подготовленная высота
+     *         сбрасывается.
+     * @see #resizeSymbols(int, int, MFontProgress)
+     */
+    protected boolean applyHeight(MFontProgress progress) {
+        if (validHeight != height
+                        && !resizeSymbols(-1, validHeight, progress)) {
+            validHeight = height;
+            return false;
+        }
+
         int old = height;
         height = validHeight;
+        firePropertyChange(PROPERTY_HEIGHT, old, height);
+        return true;
+    }
 
-        if (old != height) {
-            for (MSymbol sym : symbols) {
-                if (sym.getHeight() == height) continue;
-                try {
-                    sym.setHeight(height);
-                } catch (DisallowOperationException e) {
-                    logger().log(Level.SEVERE,
-                                    "MSymbol.setHeight in applyHeight : ", e);
-                }
-            }
+    /**
+     * Меняет размеры символов, которые отличаются от заданных. На время
+     * операции символы отсоединяются от шрифта и {@linkplain #getSymbolCache()
+     * кэша}, а их размеры меняются параллельно без событий, см.
+     * {@link Resizer}. Затем символы встраиваются обратно и рассылают
+     * получателям события об изменении размеров, которые не транслируются
+     * получателям шрифта.
+     * 
+     * @param w Новая ширина символов или <code>-1</code>, если ширина не
+     *            меняется.
+     * @param h Новая высота символов или <code>-1</code>, если высота не
+     *            меняется.
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена, символы при этом не
+     *         меняются.
+     */
+    private boolean resizeSymbols(int w, int h, MFontProgress progress) {
+        List<MSymbol> list = new ArrayList<MSymbol>(symbols.size());
+        for (MSymbol sym : symbols) {
+            if ((w >= 0 && sym.getWidth() != w)
+                            || (h >= 0 && sym.getHeight() != h)) list.add(sym);
+        }
+        if (list.isEmpty()) return true;
+
+        MSymbol[] changed = list.toArray(new MSymbol[list.size()]);
+        Dimension[] sizes = new Dimension[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            MSymbol sym = changed[i];
+            sizes[i] = new Dimension(sym.getWidth(), sym.getHeight());
+            cache.remove(sym);
+            sym.owner = null;
         }
 
-        firePropertyChange(PROPERTY_HEIGHT, old, height);
+        boolean done = false;
+        quiet = true;
+        try {
+            done = new Resizer().resize(changed, w, h, progress);
+        } finally {
+            for (int i = 0; i < changed.length; i++) {
+                MSymbol sym = changed[i];
+                sym.owner = this;
+                cache.add(sym);
+                if (!done) continue;
+                sym.firePropertyChange(PixselMap.PROPERTY_SIZE, sizes[i],
+                                new Dimension(sym.getWidth(), sym
+                                                .getHeight()));
+                sym.firePixselEvent();
+            }
+            nextRevision();
+            quiet = false;
+        }
+        return done;
     }
 
     /**
@@ -1177,7 +1408,8 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
      * Получатели добавляются функцией
      * {@link #addPropertyChangeListener(PropertyChangeListener)}.<br>
      * Кроме случаев изменения свойств шрифта, генерация событий происходит и
-     * при изменении свойств символов, принадлежащих шрифту.
+     * при изменении свойств символов, принадлежащих шрифту. Каждое событие
+     * увеличивает {@linkplain #getRevision() номер редакции} шрифта.
      * 
      * @param event событие при изменении свойств.
      * @see #firePropertyChange(String, boolean, boolean)
@@ -1189,6 +1421,7 @@ public class AbstractMFont implements PixselMapListener, PropertyChangeListener
     protected void firePropertyChange(PropertyChangeEvent event) {
         Object[] listenerArray;
 
+        nextRevision();
         listenerArray = listeners.getListenerList();
         for (int i = 0; i < listenerArray.length; i += 2) {
             if (listenerArray[i] == PropertyChangeListener.class)
@@ -3,9 +3,14 @@ package microfont;
 
 import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Level;
-import static microfont.AbstractPixselMap.PixselIterator.*;
 
 /**
  * Базовый класс для представления карты пикселей.
@@ -63,24 +68,161 @@ import static microfont.AbstractPixselMap.PixselIterator.*;
  * <li>Проверить <code>hasChange</code> и при необходимости сгенерировать
  * сообщение.
  * </ol>
+ * 
+ * <h3>Хранение пикселей.</h3>
+ * <p>
+ * Строка карты занимает целое число слов <code>long</code>
+ * ({@linkplain #getStride() шаг строки}). Пиксель с координатами <b>x</b>:
+ * <b>y</b> находится в бите <code>x % 64</code> слова <code>x / 64</code>
+ * строки <b>y</b>. Неиспользуемые биты последнего слова строки всегда
+ * сброшены. Методы {@link #getWord(int, int)}, {@link #getRow(int, long[])},
+ * {@link #changeWord(int, int, long)} и {@link #changeRow(int, long[])}
+ * позволяют работать с картой целыми словами.
+ * <p>
+ * Слова хранятся плитками 64x64 пикселя: плитка - это 64 строки одного
+ * столбца слов, в последней полосе плиток строк может быть меньше. Все пустые
+ * плитки ссылаются на одну общую, а опустевшая плитка сразу заменяется ею,
+ * поэтому память карты растёт с количеством закрашенных плиток, а не с её
+ * площадью. Копии карты используют плитки совместно с оригиналом, и плитка
+ * копируется только перед первым изменением в ней. Карта отмечает
+ * изменившиеся плитки, и {@link #getChangedTiles()} возвращает их области.
+ * Массовые операции над большими картами выполняются по полосам плиток
+ * параллельно.
+ * <p>
+ * Формат массива, возвращаемого {@link #getBytes()}, от этого не зависит.
+ * 
+ * <h3>Многопоточность.</h3>
+ * <p>
+ * Карта изменяется только с блокировкой {@link #writeLock()}. Чтение пикселей
+ * и размеров обходится без неё: метод запоминает {@linkplain #getVersion()
+ * версию} карты, читает данные и проверяет, что версия не изменилась. Только
+ * если карта изменялась во время чтения, оно повторяется с блокировкой.
+ * Поэтому несколько потоков могут одновременно читать карту, не ожидая друг
+ * друга и тех, кто держит блокировку шрифта.
+ * <p>
+ * Версия проверяется один раз на прочитанный пиксель, слово, строку, отрезок
+ * {@link SpanIterator} или весь массив {@link #getBytes()}. Циклы, которые
+ * уже держат блокировку, читают пиксели через {@link #pixsel(int, int)} без
+ * проверки версии.
+ * 
+ * <h3>Границы закрашенной области.</h3>
+ * <p>
+ * Карта хранит маску занятых строк (бит <b>y</b> установлен, если в строке
+ * <b>y</b> есть закрашенные пиксели) и маску столбцов - логическое ИЛИ всех
+ * строк, а для каждой плитки - такие же маски её строк и столбцов. Закрашенные
+ * биты добавляются в маски при записи слова. Плитки, в которых пиксели
+ * очищались, отмечаются, и по завершении изменения карты маски уточняются
+ * только для них. Плитки, перенесённые при изменении размеров или
+ * копировании, переносятся вместе со своими масками. Поэтому маски всегда
+ * точны, и {@link #emptyLeft()}, {@link #emptyRight()}, {@link #emptyTop()}
+ * и {@link #emptyBottom()} не просматривают пиксели и читают маски без
+ * блокировки.
  */
 public class AbstractPixselMap {
-    static final int  ITEM_SIZE  = 8;
-    static final int  ITEM_SHIFT = 3;
-    static final byte ITEM_MASK  = 0x07;
+    /** Количество пикселей в одном слове массива. */
+    static final int  WORD_SIZE  = 64;
+    /** Сдвиг для получения номера слова из номера пикселя. */
+    static final int  WORD_SHIFT = 6;
+    /** Маска для получения номера бита в слове из номера пикселя. */
+    static final int  WORD_MASK  = 0x3f;
 
-    /** Массив пикселей */
-    private byte      pixsels[];
+    /**
+     * Плитки пикселей. Плитка с номером <code>ty * stride + tx</code>
+     * содержит слова <b>tx</b> строк с <code>ty * 64</code> по
+     * <code>ty * 64 + 63</code>.
+     */
+    private long      tiles[][];
     /** Ширина карты в пикселях. */
     private int       width;
     /** Высота карты в пикселях. */
     private int       height;
+    /** Количество слов в одной строке карты. */
+    private int       stride;
+    /**
+     * Плитки, принадлежащие только этой карте. Остальные плитки могут
+     * использоваться другими картами и копируются перед изменением.
+     */
+    private boolean   own[];
+    /**
+     * Маски строк плиток: бит <b>k</b> установлен, если в строке <b>k</b>
+     * плитки есть закрашенные пиксели. Плитка с пустой маской не хранится.
+     */
+    private long      inkRows[];
+    /** Маски столбцов плиток - логическое ИЛИ слов каждой плитки. */
+    private long      inkColumns[];
+    /** Маска плиток, в которых очищались пиксели во время изменения карты. */
+    private long      staleInk[];
+    /** Есть плитки, отмеченные в {@link #staleInk}. */
+    private boolean   inkStale;
+    /** Уточнение масок откладывается до {@link #deferInk(boolean)}. */
+    private boolean   inkDeferred;
+    /** Маска плиток, изменившихся после {@link #cleanChange()}. */
+    private long      changedTiles[];
 
     /** Переменные для фиксации изменений. */
     protected int     left, right, top, bottom;
     /** Переменная показывает, были изменения или нет. */
     private boolean   change;
 
+    /** Маска строк, в которых есть закрашенные пиксели. */
+    private long      rowInk[];
+    /** Маска столбцов, в которых есть закрашенные пиксели. */
+    private long      columnInk[];
+
+    /** Отпечаток содержимого карты. */
+    private long      fingerprint;
+    /** Отпечаток соответствует карте. */
+    private boolean   fingerprintValid;
+
+    /** Сжатые строки карты или <code>null</code>, если карта не сжата. */
+    private byte      packed[];
+    /** К пикселям карты обращались после последнего сброса признака. */
+    private boolean   referenced;
+
+    /** Версия пикселей и размеров карты. Нечётна, пока карта изменяется. */
+    private volatile int version;
+    /** Глубина вложенности изменений карты. */
+    private int       writing;
+    /** Номер редакции карты. */
+    private volatile long revision;
+    /** Карта изменилась, но номер редакции ещё не увеличен. */
+    private boolean   modified;
+
+    /** Количество ячеек барьера чтения. Степень двойки. */
+    private static final int  FENCE_SLOTS  = 64;
+    /** Расстояние между ячейками, чтобы они попадали в разные линии кэша. */
+    private static final int  FENCE_STRIDE = 16;
+    /** Ячейки барьера чтения. */
+    private static final AtomicIntegerArray FENCE = new AtomicIntegerArray(
+                    FENCE_SLOTS * FENCE_STRIDE);
+
+    /** Пустая плитка, общая для всех карт. Никогда не изменяется. */
+    private static final long[] BLANK      = new long[WORD_SIZE];
+
+    /** Количество плиток, начиная с которого операции идут параллельно. */
+    static final int  PARALLEL_TILES = 256;
+    /** Количество потоков для параллельных операций над большими картами. */
+    static int        threads    = Runtime.getRuntime().availableProcessors();
+
+    /** Наибольшая длина буфера потока, 128 КБ. */
+    static final int  SCRATCH_LIMIT = 1 << 14;
+    /** Буфер для временных карт, повторно используемый в пределах потока. */
+    private static final ThreadLocal<long[]> scratch =
+                    new ThreadLocal<long[]>();
+
+    /** Таблица байтов с обратным порядком битов. */
+    private static final byte[] REVERSE    = new byte[256];
+
+    static {
+        for (int i = 0; i < REVERSE.length; i++) {
+            int r = 0;
+            for (int b = 0; b < 8; b++) {
+                if ((i & (1 << b)) != 0) r |= 0x80 >> b;
+            }
+            REVERSE[i] = (byte) r;
+        }
+    }
+
     /**
      * Итератор для последовательного доступа к пикселям прямоугольной области
      * (<i>области сканирования</i>) {@linkplain AbstractPixselMap карты}.
@@ -339,6 +481,231 @@ public class AbstractPixselMap {
         }
     }
 
+    /**
+     * Итератор отрезков области сканирования. В отличие от
+     * {@link PixselIterator}, который возвращает по одному пикселю, этот
+     * итератор за один вызов {@link #next()} возвращает <i>отрезок</i> -
+     * наибольшую последовательность пикселей с одинаковым состоянием, лежащую
+     * в одной строке или в одном столбце области.
+     * <p>
+     * Область сканирования корректируется так же, как и у
+     * {@link PixselIterator}, и поддерживаются те же направления сканирования.
+     * При направлениях {@link PixselIterator#DIR_LEFT_TOP DIR_LEFT_TOP},
+     * {@link PixselIterator#DIR_RIGHT_TOP DIR_RIGHT_TOP},
+     * {@link PixselIterator#DIR_LEFT_BOTTOM DIR_LEFT_BOTTOM} и
+     * {@link PixselIterator#DIR_RIGHT_BOTTOM DIR_RIGHT_BOTTOM} отрезки
+     * горизонтальные и ищутся сразу по словам строки. При остальных
+     * направлениях отрезки вертикальные.
+     * <p>
+     * Если пиксели всех отрезков перебрать в порядке их следования, то
+     * получится та же последовательность, что и у {@link PixselIterator} с тем
+     * же направлением.
+     */
+    public class SpanIterator {
+        /** Направление сканирования. */
+        private int     direction;
+        /** Координаты области сканирования. */
+        private int     startX, startY, endX, endY;
+        /** Позиция начала следующего отрезка. */
+        private int     posX, posY;
+        /** Начало текущего отрезка. */
+        private int     spanX, spanY;
+        /** Длина текущего отрезка. */
+        private int     length;
+        /** Состояние пикселей текущего отрезка. */
+        private boolean value;
+
+        /**
+         * Создаёт итератор с заданными размерами и направлением сканирования.
+         * 
+         * @param x Позиция области по горизонтали.
+         * @param y Позиция области по вертикали.
+         * @param width Ширина области.
+         * @param height Высота области.
+         * @param dir Направление сканирования, одно из
+         *            <code>PixselIterator.DIR_*</code>.
+         * @see PixselIterator#PixselIterator(int, int, int, int, int)
+         */
+        protected SpanIterator(int x, int y, int width, int height, int dir) {
+            direction = dir;
+            startX = x < 0 ? 0 : x;
+            startY = y < 0 ? 0 : y;
+            endX = x + width - 1;
+            endY = y + height - 1;
+
+            if (endX >= AbstractPixselMap.this.width)
+                endX = AbstractPixselMap.this.width - 1;
+            if (endY >= AbstractPixselMap.this.height)
+                endY = AbstractPixselMap.this.height - 1;
+
+            switch (direction) {
+            case PixselIterator.DIR_BOTTOM_LEFT:
+            case PixselIterator.DIR_LEFT_BOTTOM:
+                posX = startX;
+                posY = endY;
+                break;
+            case PixselIterator.DIR_BOTTOM_RIGHT:
+            case PixselIterator.DIR_RIGHT_BOTTOM:
+                posX = endX;
+                posY = endY;
+                break;
+            case PixselIterator.DIR_RIGHT_TOP:
+            case PixselIterator.DIR_TOP_RIGHT:
+                posX = endX;
+                posY = startY;
+                break;
+            case PixselIterator.DIR_LEFT_TOP:
+                posX = startX;
+                posY = startY;
+                break;
+            default:// i.e. DIR_TOP_LEFT
+                direction = PixselIterator.DIR_TOP_LEFT;
+                posX = startX;
+                posY = startY;
+            }
+        }
+
+        /**
+         * Возвращает ширину области сканирования.
+         */
+        public int getWidth() {
+            return endX - startX + 1;
+        }
+
+        /**
+         * Возвращает высоту области сканирования.
+         */
+        public int getHeight() {
+            return endY - startY + 1;
+        }
+
+        /**
+         * Возвращает <code>false</code> если отсканирована вся область. В этом
+         * случае вызов метода {@link #next()} вызовет исключение
+         * {@link BadIterationException}.
+         */
+        public boolean hasNext() {
+            return posY <= endY && posY >= startY && posX <= endX
+                            && posX >= startX;
+        }
+
+        /**
+         * Переходит к следующему отрезку.
+         * 
+         * @return Длина отрезка в пикселях.
+         * @throws BadIterationException при попытке перехода после завершения
+         *             сканирования.
+         * @see #hasNext()
+         */
+        public int next() {
+            if (!hasNext()) throw new BadIterationException();
+
+            /* Отрезок читается без блокировки, версия проверяется один раз. */
+            int x = posX, y = posY;
+            int v = version;
+            touch();
+            if ((v & 1) == 0) {
+                scan();
+                if (validate(v)) return length;
+                posX = x;
+                posY = y;
+            }
+
+            synchronized (writeLock()) {
+                return scan();
+            }
+        }
+
+        /**
+         * Реализация {@link #next()} без проверки версии.
+         * 
+         * @return Длина отрезка в пикселях.
+         */
+        private int scan() {
+            spanX = posX;
+            spanY = posY;
+            value = (peek(tiles, stride, posX >> WORD_SHIFT, posY)
+                            & 1L << (posX & WORD_MASK)) != 0;
+
+            switch (direction) {
+            case PixselIterator.DIR_LEFT_TOP:
+            case PixselIterator.DIR_LEFT_BOTTOM:
+                length = runRight(posY, posX, endX, value);
+                posX += length;
+                if (posX > endX) {
+                    posX = startX;
+                    posY += direction == PixselIterator.DIR_LEFT_TOP ? 1 : -1;
+                }
+                break;
+            case PixselIterator.DIR_RIGHT_TOP:
+            case PixselIterator.DIR_RIGHT_BOTTOM:
+                length = runLeft(posY, posX, startX, value);
+                posX -= length;
+                if (posX < startX) {
+                    posX = endX;
+                    posY += direction == PixselIterator.DIR_RIGHT_TOP ? 1
+                                    : -1;
+                }
+                break;
+            case PixselIterator.DIR_TOP_LEFT:
+            case PixselIterator.DIR_TOP_RIGHT:
+                length = runColumn(posX, posY, endY, 1, value);
+                posY += length;
+                if (posY > endY) {
+                    posY = startY;
+                    posX += direction == PixselIterator.DIR_TOP_LEFT ? 1 : -1;
+                }
+                break;
+            default:// i.e. DIR_BOTTOM_LEFT, DIR_BOTTOM_RIGHT
+                length = runColumn(posX, posY, startY, -1, value);
+                posY -= length;
+                if (posY < startY) {
+                    posY = endY;
+                    posX += direction == PixselIterator.DIR_BOTTOM_LEFT ? 1
+                                    : -1;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Возвращает горизонтальную координату первого пикселя текущего
+         * отрезка в порядке сканирования.
+         */
+        public int getX() {
+            return spanX;
+        }
+
+        /**
+         * Возвращает вертикальную координату первого пикселя текущего отрезка
+         * в порядке сканирования.
+         */
+        public int getY() {
+            return spanY;
+        }
+
+        /**
+         * Возвращает длину текущего отрезка в пикселях.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Возвращает состояние пикселей текущего отрезка.
+         */
+        public boolean getValue() {
+            return value;
+        }
+
+        /**
+         * Возвращает <code>true</code> если отрезки горизонтальные.
+         */
+        public boolean isHorizontal() {
+            return direction < PixselIterator.DIR_TOP_LEFT;
+        }
+    }
+
     /**
      * Конструктор для создания карты с заданными размерами. Все пиксели
      * сброшены в <code>false</code>.
@@ -378,15 +745,11 @@ public class AbstractPixselMap {
      */
     @Override
     public AbstractPixselMap clone() {
-        AbstractPixselMap ret = new AbstractPixselMap(width, height);
-        try {
-            ret.copy(this);
-        } catch (DisallowOperationException e) {
-            /*
-             * Исключения не должно быть в принципе.
-             */
-            AbstractMFont.logger().log(Level.SEVERE,
-                            "copy in PixselMap(PixselMap)", e);
+        AbstractPixselMap ret = new AbstractPixselMap();
+        synchronized (writeLock()) {
+            ret.share(this);
+            ret.fingerprint = fingerprint;
+            ret.fingerprintValid = fingerprintValid;
         }
         return ret;
     }
@@ -399,360 +762,2507 @@ public class AbstractPixselMap {
     }
 
     /**
-     * Устанавливает ширину и высоту карты и подготавливает внутренний массив
-     * для пикселей, заменяя существующий на массив с требуемым размером.
+     * Устанавливает ширину и высоту карты и подготавливает пустые плитки
+     * пикселей, заменяя существующие.
      * 
      * @param width Высота карты.
      * @param height Ширина карты.
-     * @see #doPixselArray(int, int)
+     * @see #doTiles(int, int)
      */
     private void init(int width, int height) {
-        pixsels = doPixselArray(width, height);
+        setTiles(doTiles(width, height));
         this.width = width;
         this.height = height;
+        stride = stride(width);
+        resetInk();
+        fingerprintValid = false;
     }
 
     /**
-     * Создаёт массив для хранения пикселей с требуемым размером. Если ширина
-     * и/или высота равна нулю, то возвращает <code>null</code>.
+     * Устанавливает плитки карты. Ни одна из них не принадлежит карте, все
+     * считаются изменившимися и пустыми.
      * 
-     * @param width Высота карты.
-     * @param height Ширина карты.
-     * @return Массив с требуемым размером.
-     * @throws IllegalArgumentException если ширина и/или высота меньше нуля.
-     * @see #init(int, int)
+     * @param t Плитки карты или <code>null</code>.
      */
-    private static byte[] doPixselArray(int width, int height) {
-        if (width < 0) throw (new IllegalArgumentException("Invalid width"));
-        if (height < 0) throw (new IllegalArgumentException("Invalid height"));
-
-        if (width == 0 || height == 0) return null;
-        return new byte[((width + ITEM_SIZE - 1) / ITEM_SIZE) * height];
+    private void setTiles(long[][] t) {
+        tiles = t;
+        own = t == null ? null : new boolean[t.length];
+        inkRows = t == null ? null : new long[t.length];
+        inkColumns = t == null ? null : new long[t.length];
+        staleInk = t == null ? null : new long[stride(t.length)];
+        inkStale = false;
+        changedTiles = t == null ? null : new long[stride(t.length)];
+        if (t != null) Arrays.fill(changedTiles, -1L);
     }
 
     /**
-     * Возвращает индекс байта в массиве для пикселя с заданной позицией.
-     * 
-     * @param w Ширина карты.
-     * @param x Горизонтальная позиция пикселя.
-     * @param y Вертикальная позиция пикселя.
+     * Создаёт пустые маски закрашенной области по текущим размерам карты.
      */
-    private static int index(int w, int x, int y) {
-        return ((w + ITEM_SIZE - 1) >> ITEM_SHIFT) * y + (x >> ITEM_SHIFT);
+    private void resetInk() {
+        rowInk = new long[stride(height)];
+        columnInk = new long[stride];
     }
 
     /**
-     * Возвращает {@linkplain PixselIterator итератор} карты с заданной областью
-     * и направлением сканирования. При создании итератора размеры могут быть
-     * скорректированы, если область сканирования выходит за границы карты.
+     * Устанавливает размеры карты равными размерам <code>src</code> и
+     * начинает использовать её плитки совместно с ней. Плитка копируется
+     * только при первом изменении в любой из карт, поэтому копия карты
+     * получается за время, пропорциональное количеству плиток.
      * 
-     * @param x Горизонтальная начальная координата области сканирования.
-     * @param y Вертикальная начальная координата области сканирования.
-     * @param width Ширина области сканирования.
-     * @param height Высота области сканирования.
-     * @param dir Направление сканирования. Может быть одним из
-     *            <ul>
-     *            <li>{@link PixselIterator#DIR_LEFT_TOP}
-     *            <li>{@link PixselIterator#DIR_RIGHT_TOP}
-     *            <li>{@link PixselIterator#DIR_LEFT_BOTTOM}
-     *            <li>{@link PixselIterator#DIR_RIGHT_BOTTOM}
-     *            <li>{@link PixselIterator#DIR_TOP_LEFT}
-     *            <li>{@link PixselIterator#DIR_TOP_RIGHT}
-     *            <li>{@link PixselIterator#DIR_BOTTOM_LEFT}
-     *            <li>{@link PixselIterator#DIR_BOTTOM_RIGHT}
-     *            </ul>
-     * @return Итератор для карты.
+     * @param src Карта, плитки которой будут использоваться.
+     * @see #put(int, int, long)
      */
-    public PixselIterator getIterator(int x, int y, int width, int height,
-                    int dir) {
-        return new PixselIterator(x, y, width, height, dir);
+    private void share(AbstractPixselMap src) {
+        touch();
+        src.touch();
+        src.fixInk();
+        beginWrite();
+        try {
+            width = src.width;
+            height = src.height;
+            stride = src.stride;
+            rowInk = src.rowInk == null ? null : src.rowInk.clone();
+            columnInk = src.columnInk == null ? null : src.columnInk.clone();
+            modified = true;
+
+            if (src.tiles == null) setTiles(null);
+            else {
+                setTiles(src.tiles.clone());
+                System.arraycopy(src.inkRows, 0, inkRows, 0, inkRows.length);
+                System.arraycopy(src.inkColumns, 0, inkColumns, 0,
+                                inkColumns.length);
+                Arrays.fill(src.own, false);
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
-     * Возвращает <code>true</code> если карта пуста. Это значит, что по крайней
-     * мере один из размеров карты равен нулю.
+     * Возвращает снимок плиток карты. Плитки становятся общими со снимком и
+     * копируются перед изменением, поэтому снимок не меняется при изменении
+     * карты.
      */
-    public synchronized boolean isEmpty() {
-        return width == 0 || height == 0;
+    private long[][] snapshot() {
+        Arrays.fill(own, false);
+        return tiles.clone();
     }
 
     /**
-     * Сравнение размеров карт.
+     * Записывает слово строки. Плитка, которая может использоваться другими
+     * картами, предварительно копируется, вместо общей пустой плитки
+     * создаётся новая. Опустевшая плитка заменяется общей пустой. Плитка
+     * отмечается изменившейся. Закрашенные биты сразу добавляются в маски
+     * закрашенной области, а плитка с очищенными битами отмечается для
+     * {@link #fixInk()}. Границы изменений не обновляются.
      * 
-     * @param apm карта для сравнения.
-     * @return <code>true</code> если высота и ширина этой карты и
-     *         <code>apm</code> совпадают.
+     * @param index Номер слова в строке.
+     * @param y Номер строки.
+     * @param v Новое значение слова.
+     * @return Старое значение слова.
      */
-    public synchronized boolean isSameSize(AbstractPixselMap apm) {
-        return width == apm.width && height == apm.height;
+    private long put(int index, int y, long v) {
+        int t = (y >> WORD_SHIFT) * stride + index;
+        int k = y & WORD_MASK;
+        long[] tile = tiles[t];
+        long old = tile[k];
+        if (old == v) return old;
+
+        if (!own[t]) {
+            if (tile == BLANK) tile = new long[tileHeight(height, t / stride)];
+            else tile = tile.clone();
+            tiles[t] = tile;
+            own[t] = true;
+        }
+        tile[k] = v;
+        changedTiles[t >> WORD_SHIFT] |= 1L << t;
+
+        if (v != 0) {
+            inkRows[t] |= 1L << k;
+            inkColumns[t] |= v;
+            rowInk[y >> WORD_SHIFT] |= 1L << y;
+            columnInk[index] |= v;
+        } else if ((inkRows[t] &= ~(1L << k)) == 0) {
+            tiles[t] = BLANK;
+            own[t] = false;
+        }
+        if ((old & ~v) != 0) {
+            staleInk[t >> WORD_SHIFT] |= 1L << t;
+            inkStale = true;
+        }
+        return old;
     }
 
     /**
-     * Метод проверяет предполагаемую высоту на допустимость.
-     * <code>AbstractPixselMap</code> всегда возвращает <code>false</code> если
-     * <code>hw</code> не равен текущей высоте.
+     * Начинает изменение карты. Вызывается с блокировкой {@link #writeLock()}
+     * перед изменением строк или размеров карты, версия карты при этом
+     * становится нечётной. Вложенные вызовы версию не меняют.
      * 
-     * @param h Проверяемая высота.
-     * @return <code>true</code> если проверяемая высота является допустимой.
-     * @see #isValidWidth(int)
-     * @see #changeSize(int, int)
-     * @see #copy(AbstractPixselMap)
+     * @see #endWrite()
      */
-    protected boolean isValidHeight(int h) {
-        return h == height;
+    private void beginWrite() {
+        if (writing++ == 0) version++;
     }
 
     /**
-     * Метод проверяет предполагаемую ширину на допустимость.
-     * <code>AbstractPixselMap</code> всегда возвращает <code>false</code> если
-     * <code>w</code> не равен текущей ширине.
-     * 
-     * @param w Проверяемая ширина.
-     * @return <code>true</code> если проверяемая ширина является допустимой.
-     * @see #isValidHeight(int)
-     * @see #changeSize(int, int)
-     * @see #copy(AbstractPixselMap)
+     * Завершает изменение карты, начатое {@link #beginWrite()}. После
+     * завершения внешнего изменения уточняются маски закрашенной области,
+     * если это не {@linkplain #deferInk(boolean) отложено}, версия снова
+     * становится чётной, а если карта действительно изменилась,
+     * то увеличивается номер редакции. Вызывается в блоке
+     * <code>finally</code>, поэтому изменение, прерванное исключением, тоже
+     * завершается, и номер редакции учитывает уже сделанные изменения.
      */
-    protected boolean isValidWidth(int w) {
-        return w == width;
+    private void endWrite() {
+        if (--writing != 0) return;
+
+        try {
+            if (modified) {
+                modified = false;
+                nextRevision();
+            }
+            if (!inkDeferred) fixInk();
+        } finally {
+            version++;
+        }
     }
 
     /**
-     * Возвращает <code>true</code> если после вызова {@link #cleanChange()} был
-     * хотя бы один вызов {@link #fixChange(int, int)}.
+     * Откладывает или возобновляет уточнение масок закрашенной области после
+     * очистки пикселей. Пока уточнение отложено, маски могут быть шире
+     * закрашенной области, и {@link #emptyLeft()} и подобные методы читают
+     * их с блокировкой. При возобновлении маски уточняются сразу. Вызывается
+     * с блокировкой {@link #writeLock()}.
+     * 
+     * @param defer <code>true</code> чтобы отложить уточнение.
+     * @see PixselMap#beginUpdate()
      */
-    protected boolean hasChange() {
-        return change;
+    final void deferInk(boolean defer) {
+        inkDeferred = defer;
+        if (defer || !inkStale) return;
+
+        /* Маски меняются только при нечётной версии. */
+        beginWrite();
+        endWrite();
     }
 
     /**
-     * Сбрасывает внутренний флаг изменений.
+     * Возвращает версию карты для чтения без блокировки. Версия меняется при
+     * каждом изменении пикселей или размеров карты. Нечётная версия означает,
+     * что карта изменяется прямо сейчас, и прочитанные данные заведомо
+     * недостоверны.
+     * <p>
+     * Пример согласованного чтения нескольких пикселей. Если карта за это
+     * время изменилась, пиксели читаются из {@linkplain #clone() копии},
+     * которая создаётся с блокировкой.
      * 
-     * @see #fixChange(int, int)
-     * @see #hasChange()
+     * <pre>
+     * int v = map.getVersion();
+     * boolean a = map.getPixsel(0, 0);
+     * boolean b = map.getPixsel(1, 0);
+     * if (!map.validate(v)) {
+     *     AbstractPixselMap copy = map.clone();
+     *     a = copy.getPixsel(0, 0);
+     *     b = copy.getPixsel(1, 0);
+     * }
+     * </pre>
+     * 
+     * @see #validate(int)
      */
-    protected void cleanChange() {
-        change = false;
+    public int getVersion() {
+        return version;
     }
 
     /**
-     * Изменяет границы области изменений так, что бы точка с указанными
-     * координатами попадала в эту область. Так же устанавливается флаг
-     * изменений.
+     * Проверяет, что карта не изменялась с момента получения версии
+     * <code>v</code>.
      * 
-     * @param x Горизонтальная координата изменённого пикселя.
-     * @param y Вертикальная координата изменённого пикселя.
-     * @see #cleanChange()
-     * @see #hasChange()
+     * @param v Версия, полученная {@link #getVersion()}.
+     * @return <code>true</code> если версия чётная и карта с тех пор не
+     *         изменялась, то есть прочитанные после получения версии данные
+     *         согласованы.
      */
-    protected void fixChange(int x, int y) {
-        if (!change) {
-            left = x;
-            right = x;
-            top = y;
-            bottom = y;
-        }
-
-        change = true;
-
-        left = left < x ? left : x;
-        right = right > x ? right : x;
-        top = top < y ? top : y;
-        bottom = bottom > y ? bottom : y;
+    public boolean validate(int v) {
+        readFence();
+        return (v & 1) == 0 && v == version;
     }
 
     /**
-     * Возвращает координаты области изменений, если они были, или
-     * <code>null</code> если изменений не было.
+     * Возвращает номер редакции карты. Номер увеличивается при каждом
+     * действительном изменении пикселей или размеров карты, а так же свойств
+     * потомков, и никогда не уменьшается. Поэтому для проверки, менялась ли
+     * карта, достаточно сравнить номера редакций.
+     * 
+     * @see #nextRevision()
      */
-    protected Rectangle getChange() {
-        if (!hasChange()) return null;
-        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Увеличивает номер редакции карты. Вызывается с блокировкой
+     * {@link #writeLock()}. Изменения пикселей и размеров учитываются
+     * автоматически, потомки вызывают этот метод при изменении собственных
+     * свойств.
+     * 
+     * @see #getRevision()
+     */
+    protected final void nextRevision() {
+        revision++;
+        revised();
+    }
+
+    /**
+     * Вызывается после увеличения номера редакции с блокировкой
+     * {@link #writeLock()}. Ничего не делает.
+     */
+    void revised() {
+    }
+
+    /**
+     * Барьер между чтением данных карты и повторным чтением её версии.
+     * Атомарное чтение с записью ячейки служит полным барьером: ни
+     * предшествующие чтения данных не выполняются после него, ни чтение
+     * <b>volatile</b> версии раньше него. Упорядоченная запись
+     * (<code>lazySet</code>) для этого не годится, она не мешает следующему
+     * чтению обогнать предыдущие. У каждого потока своя ячейка, поэтому
+     * читатели не мешают друг другу.
+     */
+    private static void readFence() {
+        int slot = (int) Thread.currentThread().getId() & (FENCE_SLOTS - 1);
+        FENCE.getAndAdd(slot * FENCE_STRIDE, 0);
+    }
+
+    /**
+     * Отмечает обращение к пикселям карты. Сжатая карта при этом
+     * распаковывается. Вызывается перед каждым чтением или изменением строк.
+     * 
+     * @see #pack()
+     */
+    private void touch() {
+        if (!referenced) access();
+    }
+
+    /**
+     * Устанавливает признак обращения к карте и распаковывает строки, если
+     * карта сжата. Распаковка меняет {@linkplain #getVersion() версию} карты,
+     * после неё вызывается {@link #unpacked(int)}.
+     */
+    private void access() {
+        referenced = true;
+        if (packed == null) return;
+
+        synchronized (writeLock()) {
+            if (packed == null) return;
+            int length = packed.length;
+            beginWrite();
+            try {
+                long[][] t = unpackTiles(packed, width, height);
+                boolean[] o = new boolean[t.length];
+                long[] r = new long[t.length];
+                long[] c = new long[t.length];
+                /* Маски карты пережили сжатие, маски плиток строятся заново. */
+                for (int i = 0; i < t.length; i++) {
+                    if (t[i] == BLANK) continue;
+                    o[i] = true;
+                    for (int k = 0; k < t[i].length; k++) {
+                        if (t[i][k] == 0) continue;
+                        r[i] |= 1L << k;
+                        c[i] |= t[i][k];
+                    }
+                }
+                tiles = t;
+                own = o;
+                inkRows = r;
+                inkColumns = c;
+                staleInk = new long[stride(t.length)];
+                packed = null;
+            } finally {
+                endWrite();
+            }
+            unpacked(length);
+        }
+    }
+
+    /**
+     * Сжимает строки карты методом {@linkplain PackBits PackBits}. Сжатая
+     * карта занимает меньше памяти и распаковывается автоматически при первом
+     * обращении к пикселям. Размеры, отпечаток и границы закрашенной области
+     * карты при этом сохраняются. Карта не сжимается, если она пуста или
+     * сжатие не уменьшает её размер. Сжатие меняет {@linkplain #getVersion()
+     * версию} карты.
+     * 
+     * @return <code>true</code> если карта была сжата.
+     * @see #isPacked()
+     */
+    final boolean pack() {
+        synchronized (writeLock()) {
+            if (packed != null || tiles == null) return false;
+            fixInk();
+
+            ByteBuffer buf = ByteBuffer.allocate(getExpandedLength());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            for (int y = 0; y < height; y++) {
+                for (int i = 0; i < stride; i++)
+                    buf.putLong(at(i, y));
+            }
+
+            byte[] p = PackBits.encode(buf.array());
+            if (p.length >= buf.capacity()) return false;
+            beginWrite();
+            try {
+                packed = p;
+                tiles = null;
+                own = null;
+                inkRows = null;
+                inkColumns = null;
+                staleInk = null;
+                referenced = false;
+            } finally {
+                endWrite();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Возвращает плитки карты, распакованные из сжатых данных. Пустые плитки
+     * ссылаются на общую пустую плитку.
+     * 
+     * @param p Сжатые строки карты.
+     * @param width Ширина карты.
+     * @param height Высота карты.
+     */
+    private static long[][] unpackTiles(byte[] p, int width, int height) {
+        int stride = stride(width);
+        ByteBuffer buf = ByteBuffer.wrap(PackBits.decode(p, stride * height
+                        * (WORD_SIZE / 8)));
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        long[][] ret = doTiles(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < stride; i++) {
+                long v = buf.getLong();
+                if (v == 0) continue;
+                int t = (y >> WORD_SHIFT) * stride + i;
+                if (ret[t] == BLANK)
+                    ret[t] = new long[tileHeight(height, y >> WORD_SHIFT)];
+                ret[t][y & WORD_MASK] = v;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Вызывается после распаковки сжатой карты с блокировкой
+     * {@link #writeLock()}. Ничего не делает.
+     * 
+     * @param length Размер сжатых данных в байтах.
+     */
+    void unpacked(int length) {
+    }
+
+    /**
+     * Возвращает <code>true</code> если карта сжата.
+     * 
+     * @see #pack()
+     */
+    public boolean isPacked() {
+        return packed != null;
+    }
+
+    /**
+     * Возвращает размер сжатых данных карты в байтах или ноль, если карта не
+     * сжата.
+     */
+    int getPackedLength() {
+        byte[] p = packed;
+        return p == null ? 0 : p.length;
+    }
+
+    /**
+     * Возвращает размер строк карты в распакованном виде в байтах.
+     */
+    int getExpandedLength() {
+        return stride * height * (WORD_SIZE / 8);
+    }
+
+    /**
+     * Сбрасывает признак обращения к пикселям карты.
+     * 
+     * @return Прежнее значение признака.
+     */
+    boolean clearReferenced() {
+        boolean ret = referenced;
+        referenced = false;
+        return ret;
+    }
+
+    /**
+     * Создаёт массив плиток для карты с требуемым размером. Все плитки
+     * ссылаются на общую пустую плитку. Если ширина и/или высота равна нулю,
+     * то возвращает <code>null</code>.
+     * 
+     * @param width Высота карты.
+     * @param height Ширина карты.
+     * @return Массив плиток с требуемым размером.
+     * @throws IllegalArgumentException если ширина и/или высота меньше нуля.
+     * @see #init(int, int)
+     */
+    private static long[][] doTiles(int width, int height) {
+        if (width < 0) throw (new IllegalArgumentException("Invalid width"));
+        if (height < 0) throw (new IllegalArgumentException("Invalid height"));
+
+        if (width == 0 || height == 0) return null;
+        long[][] ret = new long[stride(height) * stride(width)][];
+        Arrays.fill(ret, BLANK);
+        return ret;
+    }
+
+    /**
+     * Возвращает количество строк в плитках полосы <code>ty</code> карты
+     * заданной высоты.
+     * 
+     * @param height Высота карты.
+     * @param ty Номер полосы плиток.
+     */
+    private static int tileHeight(int height, int ty) {
+        int h = height - (ty << WORD_SHIFT);
+        return h < WORD_SIZE ? h : WORD_SIZE;
+    }
+
+    /**
+     * Возвращает слово строки из массива плиток.
+     * 
+     * @param tiles Плитки карты.
+     * @param stride Шаг строки карты.
+     * @param index Номер слова в строке.
+     * @param y Номер строки.
+     */
+    private static long at(long[][] tiles, int stride, int index, int y) {
+        return tiles[(y >> WORD_SHIFT) * stride + index][y & WORD_MASK];
+    }
+
+    /**
+     * Возвращает слово строки карты без проверки параметров.
+     * 
+     * @param index Номер слова в строке.
+     * @param y Номер строки.
+     */
+    private long at(int index, int y) {
+        return tiles[(y >> WORD_SHIFT) * stride + index][y & WORD_MASK];
+    }
+
+    /**
+     * Возвращает слово строки из массива плиток, прочитанного без блокировки.
+     * Если карта в это время изменялась, то плитки, шаг и номер строки могут
+     * не соответствовать друг другу. Тогда метод возвращает произвольное
+     * значение, но не выбрасывает исключение, а несоответствие обнаруживает
+     * последующая {@linkplain #validate(int) проверка версии}. Версия
+     * читается до {@link #touch()}: иначе сжатие карты между ними оставит
+     * чётную версию и пустые плитки, и проверка не заметит подмены.
+     * 
+     * @param tiles Плитки карты или <code>null</code>.
+     * @param stride Шаг строки карты.
+     * @param index Номер слова в строке.
+     * @param y Номер строки.
+     */
+    private static long peek(long[][] tiles, int stride, int index, int y) {
+        if (tiles == null || index < 0 || index >= stride || y < 0) return 0;
+        int t = (y >> WORD_SHIFT) * stride + index;
+        if (t >= tiles.length) return 0;
+        long[] tile = tiles[t];
+        int k = y & WORD_MASK;
+        return tile != null && k < tile.length ? tile[k] : 0;
+    }
+
+    /**
+     * Копирует слова строки из массива плиток в <code>dst</code>.
+     * 
+     * @param tiles Плитки карты.
+     * @param stride Шаг строки карты.
+     * @param y Номер строки.
+     * @param dst Массив для слов строки.
+     * @param pos Позиция первого слова строки в <code>dst</code>.
+     */
+    private static void gather(long[][] tiles, int stride, int y, long[] dst,
+                    int pos) {
+        int base = (y >> WORD_SHIFT) * stride;
+        int k = y & WORD_MASK;
+        for (int i = 0; i < stride; i++)
+            dst[pos + i] = tiles[base + i][k];
+    }
+
+    /**
+     * Возвращает буфер текущего потока длиной не меньше <code>size</code>.
+     * Содержимое буфера не определено. Буфер годится только для временных
+     * данных, которые не покидают вызвавший метод. Буферы длиннее
+     * {@link #SCRATCH_LIMIT} не запоминаются, чтобы потоки не удерживали
+     * память после работы с большими картами.
+     * 
+     * @param size Требуемая длина буфера.
+     */
+    static long[] scratch(int size) {
+        if (size > SCRATCH_LIMIT) return new long[size];
+        long[] buf = scratch.get();
+        if (buf == null || buf.length < size) {
+            buf = new long[size];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Работа над полосами карты, которую можно выполнять параллельно.
+     * 
+     * @see AbstractPixselMap#forBands(int, Bands)
+     */
+    private interface Bands {
+        /**
+         * Обрабатывает полосы с <code>first</code> по <code>last - 1</code>.
+         * Результат обработки полосы должен зависеть только от её номера и
+         * не должен пересекаться с результатами других полос.
+         */
+        void run(int first, int last);
+    }
+
+    /**
+     * Обрабатывает <code>count</code> полос. Если у карты не меньше
+     * {@link #PARALLEL_TILES} плиток и доступно несколько потоков, то полосы
+     * делятся между текущим потоком и {@linkplain Workers общим пулом},
+     * иначе обрабатываются в текущем потоке. Пул только читает карту,
+     * изменяет её вызвавший поток. Если поток прерван, то после окончания
+     * начатых в пуле полос все полосы обрабатываются в текущем потоке, а
+     * признак прерывания восстанавливается.
+     * 
+     * @param count Количество полос.
+     * @param work Работа над полосами.
+     */
+    private void forBands(int count, final Bands work) {
+        int n = threads < count ? threads : count;
+
+        if (n > 1 && tiles.length >= PARALLEL_TILES) {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(n);
+            for (int i = 0; i < n; i++) {
+                final int first = (int) ((long) count * i / n);
+                final int last = (int) ((long) count * (i + 1) / n);
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        work.run(first, last);
+                        return null;
+                    }
+                });
+            }
+            try {
+                Workers.invoke(tasks, n);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        work.run(0, count);
+    }
+
+    /**
+     * Возвращает количество слов, необходимое для хранения строки карты
+     * заданной ширины.
+     * 
+     * @param w Ширина карты.
+     */
+    static int stride(int w) {
+        return (w + WORD_SIZE - 1) >> WORD_SHIFT;
+    }
+
+    /**
+     * Возвращает маску используемых битов последнего слова строки карты
+     * заданной ширины.
+     * 
+     * @param w Ширина карты.
+     */
+    static long lastWordMask(int w) {
+        int r = w & WORD_MASK;
+        return r == 0 ? -1L : (1L << r) - 1;
+    }
+
+    /**
+     * Возвращает индекс слова в массиве для пикселя с заданной позицией.
+     * 
+     * @param stride Шаг строки карты.
+     * @param x Горизонтальная позиция пикселя.
+     * @param y Вертикальная позиция пикселя.
+     */
+    private static int index(int stride, int x, int y) {
+        return stride * y + (x >> WORD_SHIFT);
+    }
+
+    /**
+     * Транспонирует битовую матрицу 64x64. Бит <b>c</b> слова <b>r</b> меняется
+     * местами с битом <b>r</b> слова <b>c</b>. Матрица обрабатывается блоками,
+     * размер которых на каждом шаге уменьшается вдвое.
+     * 
+     * @param m Массив из 64 слов.
+     */
+    static void transpose(long[] m) {
+        long mask = 0x00000000ffffffffL;
+
+        for (int j = 32; j != 0; j >>= 1, mask ^= mask << j) {
+            for (int k = 0; k < WORD_SIZE; k = ((k | j) + 1) & ~j) {
+                long t = ((m[k] >>> j) ^ m[k | j]) & mask;
+                m[k] ^= t << j;
+                m[k | j] ^= t;
+            }
+        }
+    }
+
+    /**
+     * Возвращает слово с обратным порядком битов. Биты обращаются по байтам
+     * при помощи таблицы.
+     * 
+     * @param v Исходное слово.
+     */
+    static long reverse(long v) {
+        long r = 0;
+        for (int i = 0; i < 8; i++) {
+            r = (r << 8) | (REVERSE[(int) v & 0xff] & 0xff);
+            v >>>= 8;
+        }
+        return r;
+    }
+
+    /**
+     * Записывает в <code>dst</code> строку из <code>src</code> в обратном
+     * порядке пикселей. Слова строки обращаются по {@linkplain #reverse(long)
+     * таблице}, затем результат выравнивается сдвигом на количество
+     * неиспользуемых битов последнего слова. Строки не должны перекрываться.
+     * 
+     * @param src Массив с исходной строкой.
+     * @param ps Позиция первого слова строки в <code>src</code>.
+     * @param dst Массив для отражённой строки.
+     * @param pd Позиция первого слова строки в <code>dst</code>.
+     * @param stride Шаг строки.
+     * @param width Ширина строки в пикселях.
+     */
+    static void reverseRow(long[] src, int ps, long[] dst, int pd,
+                    int stride, int width) {
+        int pad = (stride << WORD_SHIFT) - width;
+        long next = reverse(src[ps + stride - 1]);
+
+        for (int i = 0; i < stride; i++) {
+            long cur = next;
+            next = i + 1 < stride ? reverse(src[ps + stride - 2 - i]) : 0;
+            if (pad == 0) dst[pd + i] = cur;
+            else dst[pd + i] = (cur >>> pad) | (next << (WORD_SIZE - pad));
+        }
+    }
+
+    /**
+     * Возвращает пиксели этой карты, повёрнутые по часовой стрелке на
+     * <code>step</code> четвертей круга. Повороты на 90 и 270 градусов
+     * выполняются транспонированием блоков 64x64 с обращением порядка строк,
+     * поворот на 180 градусов - обращением порядка строк и пикселей в
+     * строках. Блоки из пустых плиток не транспонируются, у больших карт
+     * полосы блоков обрабатываются параллельно.
+     * <p>
+     * Пиксели возвращаются в {@linkplain #scratch(int) буфере потока}
+     * строками по <code>stride(nw)</code> слов, где <b>nw</b> - ширина
+     * повёрнутой карты, и годятся только для немедленного
+     * {@linkplain #blit(int, int, long[], int, int, int) наложения}.
+     * 
+     * @param step Количество четвертей круга от 1 до 3.
+     */
+    final long[] rotated(final int step) {
+        touch();
+        final int nh = step == 2 ? height : width;
+        final int ns = stride(step == 2 ? width : height);
+        final long[] buf = scratch(ns * nh);
+
+        if (step == 2) {
+            forBands(stride(height), new Bands() {
+                @Override
+                public void run(int first, int last) {
+                    long[] row = new long[stride];
+                    int end = Math.min(last << WORD_SHIFT, height);
+                    for (int y = first << WORD_SHIFT; y < end; y++) {
+                        gather(tiles, stride, y, row, 0);
+                        reverseRow(row, 0, buf, (height - 1 - y) * ns, stride,
+                                        width);
+                    }
+                }
+            });
+            return buf;
+        }
+
+        forBands(ns, new Bands() {
+            @Override
+            public void run(int first, int last) {
+                long[] block = new long[WORD_SIZE];
+                for (int by = first; by < last; by++) {
+                    for (int bx = 0; bx < stride; bx++) {
+                        long any = 0;
+                        for (int k = 0; k < WORD_SIZE; k++) {
+                            int y = (by << WORD_SHIFT) + k;
+                            if (y >= height) block[k] = 0;
+                            else if (step == 1)
+                                block[k] = at(bx, height - 1 - y);
+                            else block[k] = at(bx, y);
+                            any |= block[k];
+                        }
+
+                        if (any != 0) transpose(block);
+
+                        for (int k = 0; k < WORD_SIZE; k++) {
+                            int y = (bx << WORD_SHIFT) + k;
+                            if (y >= nh) break;
+                            if (step != 1) y = nh - 1 - y;
+                            buf[y * ns + by] = block[k];
+                        }
+                    }
+                }
+            }
+        });
+        return buf;
+    }
+
+    /**
+     * Уточняет маски закрашенной области после очистки пикселей. Для каждой
+     * отмеченной в {@link #put(int, int, long)} плитки заново вычисляется
+     * маска столбцов, а затем маски карты - только для затронутых столбцов
+     * слов и полос плиток. Вызывается с блокировкой {@link #writeLock()} по
+     * завершении изменения карты, поэтому массовые операции платят за
+     * уточнение один раз на плитку, а не на слово.
+     */
+    private void fixInk() {
+        if (!inkStale) return;
+        inkStale = false;
+
+        int bands = stride(height);
+        long[] cols = new long[stride(stride)];
+        long[] rows = new long[stride(bands)];
+        for (int w = 0; w < staleInk.length; w++) {
+            for (long m = staleInk[w]; m != 0; m &= m - 1) {
+                int t = (w << WORD_SHIFT) + Long.numberOfTrailingZeros(m);
+                long col = 0;
+                for (long v : tiles[t])
+                    col |= v;
+                inkColumns[t] = col;
+                cols[(t % stride) >> WORD_SHIFT] |= 1L << (t % stride);
+                rows[(t / stride) >> WORD_SHIFT] |= 1L << (t / stride);
+            }
+            staleInk[w] = 0;
+        }
+
+        for (int i = 0; i < stride; i++) {
+            if ((cols[i >> WORD_SHIFT] & 1L << i) == 0) continue;
+            long col = 0;
+            for (int ty = 0; ty < bands; ty++)
+                col |= inkColumns[ty * stride + i];
+            columnInk[i] = col;
+        }
+        for (int ty = 0; ty < bands; ty++) {
+            if ((rows[ty >> WORD_SHIFT] & 1L << ty) == 0) continue;
+            long row = 0;
+            for (int i = 0; i < stride; i++)
+                row |= inkRows[ty * stride + i];
+            rowInk[ty] = row;
+        }
+    }
+
+    /**
+     * Добавляет маски плитки <code>t</code> в маски закрашенной области
+     * карты. Вызывается для плиток, перенесённых без записи слов.
+     */
+    private void addInk(int t) {
+        rowInk[t / stride] |= inkRows[t];
+        columnInk[t % stride] |= inkColumns[t];
+    }
+
+    /**
+     * Возвращает номер младшего установленного бита маски или
+     * <code>-1</code>, если маска пуста.
+     */
+    private static int lowestBit(long[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            if (mask[i] != 0)
+                return (i << WORD_SHIFT) + Long.numberOfTrailingZeros(mask[i]);
+        }
+        return -1;
+    }
+
+    /**
+     * Возвращает номер старшего установленного бита маски или
+     * <code>-1</code>, если маска пуста.
+     */
+    private static int highestBit(long[] mask) {
+        for (int i = mask.length - 1; i >= 0; i--) {
+            if (mask[i] != 0)
+                return (i << WORD_SHIFT) + WORD_MASK
+                                - Long.numberOfLeadingZeros(mask[i]);
+        }
+        return -1;
+    }
+
+    /**
+     * Записывает слова строки <code>y</code> из массива <code>src</code>,
+     * начиная с позиции <code>pos</code>. Лишние биты последнего слова
+     * сбрасываются. Границы изменений фиксируются для строки целиком: по
+     * младшему и старшему изменившемуся биту.
+     * 
+     * @param y Номер строки.
+     * @param src Массив с новыми словами строки.
+     * @param pos Позиция первого слова строки в <code>src</code>.
+     */
+    private void storeRow(int y, long[] src, int pos) {
+        int first = -1, last = -1;
+        long firstDiff = 0, lastDiff = 0;
+
+        for (int i = 0; i < stride; i++) {
+            long v = src[pos + i];
+            if (i == stride - 1) v &= lastWordMask(width);
+            long old = at(i, y);
+            long diff = old ^ v;
+            if (diff == 0) continue;
+            if (first < 0) {
+                first = i;
+                firstDiff = diff;
+            }
+            put(i, y, v);
+            last = i;
+            lastDiff = diff;
+        }
+
+        if (first < 0) return;
+        fixChange((first << WORD_SHIFT)
+                        + Long.numberOfTrailingZeros(firstDiff), y);
+        fixChange((last << WORD_SHIFT) + WORD_MASK
+                        - Long.numberOfLeadingZeros(lastDiff), y);
+    }
+
+    /**
+     * Возвращает {@linkplain PixselIterator итератор} карты с заданной областью
+     * и направлением сканирования. При создании итератора размеры могут быть
+     * скорректированы, если область сканирования выходит за границы карты.
+     * 
+     * @param x Горизонтальная начальная координата области сканирования.
+     * @param y Вертикальная начальная координата области сканирования.
+     * @param width Ширина области сканирования.
+     * @param height Высота области сканирования.
+     * @param dir Направление сканирования. Может быть одним из
+     *            <ul>
+     *            <li>{@link PixselIterator#DIR_LEFT_TOP}
+     *            <li>{@link PixselIterator#DIR_RIGHT_TOP}
+     *            <li>{@link PixselIterator#DIR_LEFT_BOTTOM}
+     *            <li>{@link PixselIterator#DIR_RIGHT_BOTTOM}
+     *            <li>{@link PixselIterator#DIR_TOP_LEFT}
+     *            <li>{@link PixselIterator#DIR_TOP_RIGHT}
+     *            <li>{@link PixselIterator#DIR_BOTTOM_LEFT}
+     *            <li>{@link PixselIterator#DIR_BOTTOM_RIGHT}
+     *            </ul>
+     * @return Итератор для карты.
+     */
+    public PixselIterator getIterator(int x, int y, int width, int height,
+                    int dir) {
+        return new PixselIterator(x, y, width, height, dir);
+    }
+
+    /**
+     * Возвращает {@linkplain SpanIterator итератор отрезков} карты с заданной
+     * областью сканирования и направлением.
+     * 
+     * @param x Позиция области по горизонтали.
+     * @param y Позиция области по вертикали.
+     * @param width Ширина области.
+     * @param height Высота области.
+     * @param dir Направление сканирования, одно из
+     *            <code>PixselIterator.DIR_*</code>.
+     * @see #getIterator(int, int, int, int, int)
+     */
+    public SpanIterator getSpanIterator(int x, int y, int width, int height,
+                    int dir) {
+        return new SpanIterator(x, y, width, height, dir);
+    }
+
+    /**
+     * Возвращает количество пикселей строки <code>y</code> в состоянии
+     * <code>value</code>, идущих подряд вправо от <code>x</code>, но не дальше
+     * <code>end</code>. Как и {@link #runLeft(int, int, int, boolean)} и
+     * {@link #runColumn(int, int, int, int, boolean)}, может вызываться без
+     * блокировки, если затем проверяется версия карты.
+     */
+    private int runRight(int y, int x, int end, boolean value) {
+        long[][] t = tiles;
+        int s = stride;
+        long inv = value ? -1L : 0;
+        int p = x;
+
+        while (p <= end) {
+            long bits = (peek(t, s, p >> WORD_SHIFT, y) ^ inv) >>> p;
+            if (bits != 0) {
+                p += Long.numberOfTrailingZeros(bits);
+                break;
+            }
+            p = (p | WORD_MASK) + 1;
+        }
+        return (p > end ? end + 1 : p) - x;
+    }
+
+    /**
+     * Возвращает количество пикселей строки <code>row</code> в состоянии
+     * <code>value</code>, идущих подряд вправо от <code>x</code>, но не дальше
+     * <code>end</code>.
+     */
+    private static int runRight(long[] row, int x, int end, boolean value) {
+        long inv = value ? -1L : 0;
+        int p = x;
+
+        /* Сдвиг long учитывает только младшие шесть битов p. */
+        while (p <= end) {
+            long bits = (row[p >> WORD_SHIFT] ^ inv) >>> p;
+            if (bits != 0) {
+                p += Long.numberOfTrailingZeros(bits);
+                break;
+            }
+            p = (p | WORD_MASK) + 1;
+        }
+        return (p > end ? end + 1 : p) - x;
+    }
+
+    /**
+     * Возвращает количество пикселей строки <code>y</code> в состоянии
+     * <code>value</code>, идущих подряд влево от <code>x</code>, но не дальше
+     * <code>end</code>.
+     */
+    private int runLeft(int y, int x, int end, boolean value) {
+        long[][] t = tiles;
+        int s = stride;
+        long inv = value ? -1L : 0;
+        int p = x;
+
+        /* ~p & WORD_MASK == WORD_MASK - (p & WORD_MASK). */
+        while (p >= end) {
+            long bits = (peek(t, s, p >> WORD_SHIFT, y) ^ inv) << ~p;
+            if (bits != 0) {
+                p -= Long.numberOfLeadingZeros(bits);
+                break;
+            }
+            p = (p & ~WORD_MASK) - 1;
+        }
+        return x - (p < end ? end - 1 : p);
+    }
+
+    /**
+     * Возвращает количество пикселей столбца <code>x</code> в состоянии
+     * <code>value</code>, идущих подряд от строки <code>y</code> с шагом
+     * <code>step</code>, но не дальше строки <code>end</code>.
+     */
+    private int runColumn(int x, int y, int end, int step, boolean value) {
+        long[][] t = tiles;
+        int s = stride;
+        int i = x >> WORD_SHIFT;
+        long mask = 1L << (x & WORD_MASK);
+        long want = value ? mask : 0;
+        int n = 0;
+
+        for (int r = y; step > 0 ? r <= end : r >= end; r += step) {
+            if ((peek(t, s, i, r) & mask) != want) break;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Возвращает <code>true</code> если карта пуста. Это значит, что по крайней
+     * мере один из размеров карты равен нулю.
+     */
+    public boolean isEmpty() {
+        long size = size();
+        return (int) (size >>> 32) == 0 || (int) size == 0;
+    }
+
+    /**
+     * Сравнение размеров карт.
+     * 
+     * @param apm карта для сравнения.
+     * @return <code>true</code> если высота и ширина этой карты и
+     *         <code>apm</code> совпадают.
+     */
+    public boolean isSameSize(AbstractPixselMap apm) {
+        return size() == apm.size();
+    }
+
+    /**
+     * Возвращает согласованные ширину и высоту карты, упакованные в одно
+     * число: ширина в старших 32 битах, высота в младших. Размеры читаются
+     * без блокировки, если карта в это время не изменяется.
+     */
+    private long size() {
+        int v = version;
+        long ret = (long) width << 32 | height;
+        if (validate(v)) return ret;
+
+        synchronized (writeLock()) {
+            return (long) width << 32 | height;
+        }
+    }
+
+    /**
+     * Метод проверяет предполагаемую высоту на допустимость.
+     * <code>AbstractPixselMap</code> всегда возвращает <code>false</code> если
+     * <code>hw</code> не равен текущей высоте.
+     * 
+     * @param h Проверяемая высота.
+     * @return <code>true</code> если проверяемая высота является допустимой.
+     * @see #isValidWidth(int)
+     * @see #changeSize(int, int)
+     * @see #copy(AbstractPixselMap)
+     */
+    protected boolean isValidHeight(int h) {
+        return h == height;
+    }
+
+    /**
+     * Метод проверяет предполагаемую ширину на допустимость.
+     * <code>AbstractPixselMap</code> всегда возвращает <code>false</code> если
+     * <code>w</code> не равен текущей ширине.
+     * 
+     * @param w Проверяемая ширина.
+     * @return <code>true</code> если проверяемая ширина является допустимой.
+     * @see #isValidHeight(int)
+     * @see #changeSize(int, int)
+     * @see #copy(AbstractPixselMap)
+     */
+    protected boolean isValidWidth(int w) {
+        return w == width;
+    }
+
+    /**
+     * Возвращает <code>true</code> если после вызова {@link #cleanChange()} был
+     * хотя бы один вызов {@link #fixChange(int, int)}.
+     */
+    protected boolean hasChange() {
+        return change;
+    }
+
+    /**
+     * Сбрасывает внутренний флаг изменений.
+     * 
+     * @see #fixChange(int, int)
+     * @see #hasChange()
+     */
+    protected void cleanChange() {
+        change = false;
+        if (changedTiles != null) Arrays.fill(changedTiles, 0);
+    }
+
+    /**
+     * Изменяет границы области изменений так, что бы точка с указанными
+     * координатами попадала в эту область. Так же устанавливается флаг
+     * изменений и сбрасывается {@linkplain #getFingerprint() отпечаток} карты.
+     * 
+     * @param x Горизонтальная координата изменённого пикселя.
+     * @param y Вертикальная координата изменённого пикселя.
+     * @see #cleanChange()
+     * @see #hasChange()
+     */
+    protected void fixChange(int x, int y) {
+        fingerprintValid = false;
+        if (writing == 0) nextRevision();
+        else modified = true;
+
+        if (!change) {
+            left = x;
+            right = x;
+            top = y;
+            bottom = y;
+        }
+
+        change = true;
+
+        left = left < x ? left : x;
+        right = right > x ? right : x;
+        top = top < y ? top : y;
+        bottom = bottom > y ? bottom : y;
+    }
+
+    /**
+     * Возвращает координаты области изменений, если они были, или
+     * <code>null</code> если изменений не было.
+     */
+    protected Rectangle getChange() {
+        if (!hasChange()) return null;
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Возвращает области плиток, изменившихся после вызова
+     * {@link #cleanChange()}, или <code>null</code> если изменений не было.
+     * Соседние по горизонтали плитки объединяются в одну область, области
+     * ограничены {@linkplain #getChange() границами изменений}.
+     * 
+     * @see #getChange()
+     */
+    protected Rectangle[] getChangedTiles() {
+        if (!hasChange()) return null;
+        if (changedTiles == null) return new Rectangle[] { getChange() };
+        return tileRects(changedTiles, stride, getChange());
+    }
+
+    /**
+     * Возвращает число плиток, под которые выделена память. Незакрашенные
+     * плитки хранятся одной общей пустой плиткой и не учитываются.
+     */
+    int getInkTiles() {
+        synchronized (writeLock()) {
+            touch();
+            int ret = 0;
+            for (int t = 0; tiles != null && t < tiles.length; t++)
+                if (tiles[t] != BLANK) ret++;
+            return ret;
+        }
+    }
+
+    /**
+     * Объединяет маску изменившихся плиток с маской <code>dst</code>.
+     * 
+     * @param dst Маска плиток или <code>null</code>.
+     * @return Объединённая маска. Если длина <code>dst</code> недостаточна, то
+     *         возвращается новый массив.
+     */
+    long[] mergeChangedTiles(long[] dst) {
+        long[] m = changedTiles;
+        if (m == null) return dst;
+        if (dst == null || dst.length < m.length)
+            dst = dst == null ? new long[m.length] : Arrays.copyOf(dst,
+                            m.length);
+        for (int i = 0; i < m.length; i++)
+            dst[i] |= m[i];
+        return dst;
+    }
+
+    /**
+     * Возвращает области плиток, отмеченных в маске. Соседние по горизонтали
+     * плитки объединяются в одну область.
+     * 
+     * @param mask Маска плиток, бит <code>ty * stride + tx</code> которой
+     *            отмечает плитку <b>tx</b> полосы <b>ty</b>.
+     * @param stride Шаг строки карты.
+     * @param clip Границы, которыми ограничиваются области.
+     */
+    static Rectangle[] tileRects(long[] mask, int stride, Rectangle clip) {
+        List<Rectangle> ret = new ArrayList<Rectangle>();
+        int bottom = clip.y + clip.height - 1;
+
+        for (int ty = clip.y >> WORD_SHIFT; ty <= bottom >> WORD_SHIFT; ty++) {
+            int tx = clip.x >> WORD_SHIFT;
+            int end = (clip.x + clip.width - 1) >> WORD_SHIFT;
+            while (tx <= end) {
+                int t = ty * stride + tx;
+                if (t >> WORD_SHIFT >= mask.length
+                                || (mask[t >> WORD_SHIFT] & 1L << t) == 0) {
+                    tx++;
+                    continue;
+                }
+                int first = tx;
+                while (++tx <= end) {
+                    t++;
+                    if ((mask[t >> WORD_SHIFT] & 1L << t) == 0) break;
+                }
+                Rectangle r = new Rectangle(first << WORD_SHIFT,
+                                ty << WORD_SHIFT, (tx - first) << WORD_SHIFT,
+                                WORD_SIZE);
+                ret.add(r.intersection(clip));
+            }
+        }
+        return ret.toArray(new Rectangle[ret.size()]);
+    }
+
+    /**
+     * Возвращает 64-битный отпечаток карты, зависящий от её размеров и
+     * пикселей. У равных карт отпечатки совпадают, поэтому отпечаток можно
+     * использовать как ключ кэша. Отпечаток вычисляется при первом запросе и
+     * сбрасывается при любом изменении карты.
+     * 
+     * @see #equals(Object)
+     */
+    public long getFingerprint() {
+        synchronized (writeLock()) {
+            if (!fingerprintValid) {
+                touch();
+                long f = 0x9e3779b97f4a7c15L * (31L * width + height + 1);
+                /* Пустые плитки не влияют на отпечаток, кроме номеров. */
+                for (int t = 0; tiles != null && t < tiles.length; t++) {
+                    if (tiles[t] == BLANK) continue;
+                    f = (f ^ t) * 0xc4ceb9fe1a85ec53L;
+                    for (long v : tiles[t]) {
+                        f = (f ^ v) * 0xff51afd7ed558ccdL;
+                        f ^= f >>> 29;
+                    }
+                }
+                fingerprint = f;
+                fingerprintValid = true;
+            }
+            return fingerprint;
+        }
     }
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + width;
-        result = prime * result + height;
-        result = prime * result + Arrays.hashCode(pixsels);
-        return result;
+        long f = getFingerprint();
+        return (int) (f ^ (f >>> 32));
+    }
+
+    /**
+     * Сравнение карт. Карты считаются равными, если у них совпадают ширина,
+     * высота и содержимое плиток пикселей. Карты с разными
+     * {@linkplain #getFingerprint() отпечатками} не сравниваются попиксельно,
+     * а общие плитки не сравниваются вовсе.
+     * 
+     * @param obj Карта для сравнения.
+     * @return <code>true</code> если карты равны.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (!(obj instanceof AbstractPixselMap)) return false;
+        AbstractPixselMap other = (AbstractPixselMap) obj;
+        if (height != other.height) return false;
+        if (width != other.width) return false;
+        if (getFingerprint() != other.getFingerprint()) return false;
+
+        /* Плитки обеих карт читаются без блокировки. */
+        int v = version, w = other.version;
+        touch();
+        other.touch();
+        if (((v | w) & 1) == 0) {
+            boolean ret = other.stride == stride
+                            && sameTiles(tiles, other.tiles, stride, height);
+            if (validate(v) && other.validate(w)) return ret;
+        }
+
+        /*
+         * Снимок второй карты берётся под её блокировкой, а сравнивается под
+         * своей, чтобы не захватывать две блокировки сразу.
+         */
+        long[][] b;
+        int bw, bh;
+        synchronized (other.writeLock()) {
+            other.touch();
+            bw = other.width;
+            bh = other.height;
+            b = other.tiles == null ? null : other.snapshot();
+        }
+        synchronized (writeLock()) {
+            touch();
+            if (bw != width || bh != height) return false;
+            return sameTiles(tiles, b, stride, height);
+        }
+    }
+
+    /**
+     * Сравнивает плитки двух карт с одинаковыми шагом строки и высотой. Если
+     * плитки прочитаны без блокировки и не соответствуют друг другу, то
+     * возвращает произвольное значение, но не выбрасывает исключение.
+     * 
+     * @param a Плитки первой карты или <code>null</code>.
+     * @param b Плитки второй карты или <code>null</code>.
+     * @param stride Шаг строки карт.
+     * @param height Высота карт.
+     */
+    private static boolean sameTiles(long[][] a, long[][] b, int stride,
+                    int height) {
+        int n = a == null ? 0 : a.length;
+        if (n != (b == null ? 0 : b.length)) return false;
+        if (n > 0 && stride <= 0) return false;
+
+        for (int t = 0; t < n; t++) {
+            long[] x = a[t], y = b[t];
+            if (x == y) continue;
+            int k = tileHeight(height, t / stride);
+            if (x == null || y == null || x.length < k || y.length < k)
+                return false;
+            while (--k >= 0) {
+                if (x[k] != y[k]) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Метод возвращает ширину и высоту карты.
+     */
+    public Dimension getSize() {
+        long size = size();
+        return new Dimension((int) (size >>> 32), (int) size);
+    }
+
+    /**
+     * Метод возвращает ширину карты.
+     * 
+     * @return Количество пикселей по горизонтали.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Метод возвращает высоту карты.
+     * 
+     * @return Количество пикселей по вертикали.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Метод возвращает шаг строки карты.
+     * 
+     * @return Количество слов <code>long</code>, занимаемых одной строкой.
+     * @see #getWord(int, int)
+     * @see #getRow(int, long[])
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Получение слова строки. Младший бит слова соответствует пикселю с
+     * горизонтальной координатой <code>index * 64</code>.
+     * 
+     * @param index Номер слова в строке. Отсчёт с нуля.
+     * @param y Номер строки. Отсчёт с нуля.
+     * @return Слово строки или ноль, если параметры выходят за границы карты.
+     * @see #getStride()
+     */
+    public long getWord(int index, int y) {
+        int v = version;
+        touch();
+        if ((v & 1) == 0) {
+            long ret = y < height ? peek(tiles, stride, index, y) : 0;
+            if (validate(v)) return ret;
+        }
+
+        synchronized (writeLock()) {
+            return word(index, y);
+        }
+    }
+
+    /**
+     * Реализация {@link #getWord(int, int)} без проверки версии. Вызывается с
+     * блокировкой {@link #writeLock()}.
+     */
+    private long word(int index, int y) {
+        if (index < 0 || index >= stride) return 0;
+        if (y < 0 || y >= height) return 0;
+
+        touch();
+        return at(index, y);
+    }
+
+    /**
+     * Получение всех слов строки.
+     * 
+     * @param y Номер строки. Отсчёт с нуля.
+     * @param dst Массив для слов строки. Если равен <code>null</code> или его
+     *            длина меньше {@link #getStride()}, то создаётся новый массив.
+     * @return Массив со словами строки. Если <code>y</code> выходит за границы
+     *         карты, то слова заполняются нулями.
+     */
+    public long[] getRow(int y, long[] dst) {
+        int v = version;
+        touch();
+        if ((v & 1) == 0) {
+            long[][] t = tiles;
+            int s = stride;
+            long[] ret = dst == null || dst.length < s ? new long[s] : dst;
+            boolean in = y < height;
+            for (int i = 0; i < s; i++)
+                ret[i] = in ? peek(t, s, i, y) : 0;
+            if (validate(v)) return ret;
+        }
+
+        synchronized (writeLock()) {
+            return row(y, dst);
+        }
+    }
+
+    /**
+     * Реализация {@link #getRow(int, long[])} без проверки версии. Вызывается
+     * с блокировкой {@link #writeLock()}.
+     */
+    private long[] row(int y, long[] dst) {
+        if (dst == null || dst.length < stride) dst = new long[stride];
+
+        if (y < 0 || y >= height || width == 0) Arrays.fill(dst, 0, stride, 0);
+        else {
+            touch();
+            gather(tiles, stride, y, dst, 0);
+        }
+
+        return dst;
+    }
+
+    /**
+     * Изменение размеров карты. Плитки, которые не требуется обрезать,
+     * переносятся без копирования. Если один из размеров равен нулю, то
+     * плитки освобождаются.
+     * 
+     * @param w Новая ширина.
+     * @param h Новая высота.
+     * @throws IllegalArgumentException если хотя бы один из размеров меньше
+     *             нуля.
+     * @throws DisallowOperationException если изменение высоты и/или ширины
+     *             запрещено текущей конфигурацией.
+     * @see #isValidWidth(int)
+     * @see #isValidHeight(int)
+     */
+    protected final void changeSize(int w, int h)
+                    throws DisallowOperationException {
+        int nw, nh;
+
+        if (w < 0 || h < 0) throw new IllegalArgumentException("bad size");
+
+        if (!isValidWidth(w))
+            throw new DisallowOperationException("change width");
+        if (!isValidHeight(h))
+            throw new DisallowOperationException("change height");
+
+        nw = w;
+        nh = h;
+
+        /* Если новые размеры равны старым, то и делать ничего не надо. */
+        if (nw == width && nh == height) return;
+
+        touch();
+        fixInk();
+        beginWrite();
+        try {
+            long[][] old = tiles;
+            boolean[] oldOwn = own;
+            long[] oldRows = inkRows, oldColumns = inkColumns;
+            int os = stride, ow = width, oh = height;
+
+            width = nw;
+            height = nh;
+            stride = stride(nw);
+            setTiles(doTiles(nw, nh));
+            resetInk();
+
+            /*
+             * Если старые плитки не пусты, переносить их (насколько возможно) в
+             * новые.
+             */
+            if (old != null && tiles != null) {
+                int cw = os > stride ? stride : os;
+                int ch = nh > oh ? oh : nh;
+                long last = nw < ow ? lastWordMask(nw) : -1L;
+
+                for (int ty = 0; ty < stride(ch); ty++) {
+                    int th = tileHeight(ch, ty);
+                    boolean whole = th == tileHeight(oh, ty)
+                                    && th == tileHeight(nh, ty);
+
+                    for (int tx = 0; tx < cw; tx++) {
+                        int ot = ty * os + tx;
+                        long[] tile = old[ot];
+                        if (tile == BLANK) continue;
+
+                        long mask = tx == cw - 1 ? last : -1L;
+                        boolean keep = whole;
+                        for (int k = 0; k < th; k++) {
+                            long v = tile[k] & mask;
+                            if (v != tile[k]) keep = false;
+                            /* Фиксируем границы перенесённых пикселей. */
+                            if (v != 0)
+                                fixWordChange(tx, (ty << WORD_SHIFT) + k, v);
+                        }
+
+                        if (keep) {
+                            int t = ty * stride + tx;
+                            tiles[t] = tile;
+                            own[t] = oldOwn[ot];
+                            inkRows[t] = oldRows[ot];
+                            inkColumns[t] = oldColumns[ot];
+                            addInk(t);
+                            continue;
+                        }
+                        for (int k = 0; k < th; k++) {
+                            long v = tile[k] & mask;
+                            if (v != 0) put(tx, (ty << WORD_SHIFT) + k, v);
+                        }
+                    }
+                }
+            }
+
+            /* Фиксируем изменения. */
+            // fixChange(0, 0);
+            fixChange(nw - 1, nh - 1);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Вставляет или удаляет столбцы карты. Каждая строка разрезается на
+     * позиции <code>pos</code>, и её хвост сдвигается на <code>num</code>
+     * пикселей целыми словами сразу в новую строку. Вставленные столбцы
+     * пусты, плитки без закрашенных пикселей остаются общими пустыми.
+     * Фиксируются изменения от столбца <code>pos</code> до правого края карты.
+     * 
+     * @param pos Позиция вставки или первого удаляемого столбца, от нуля до
+     *            ширины карты.
+     * @param num Количество столбцов. Положительное значение вставляет
+     *            столбцы, отрицательное - удаляет. Удаляемые столбцы должны
+     *            быть в пределах карты.
+     * @throws IllegalArgumentException если параметры выходят за пределы
+     *             карты.
+     * @throws DisallowOperationException если изменение ширины запрещено
+     *             текущей конфигурацией.
+     * @see #changeRows(int, int)
+     * @see #isValidWidth(int)
+     */
+    protected final void changeColumns(int pos, int num)
+                    throws DisallowOperationException {
+        int nw = width + num;
+
+        if (pos < 0 || pos > width || (num < 0 && pos - num > width))
+            throw new IllegalArgumentException("bad columns");
+        if (num == 0) return;
+        if (!isValidWidth(nw))
+            throw new DisallowOperationException("change width " + nw);
+
+        touch();
+        beginWrite();
+        try {
+            long[][] old = tiles;
+            int os = stride;
+            int ns = stride(nw);
+
+            width = nw;
+            stride = ns;
+            setTiles(doTiles(nw, height));
+            resetInk();
+
+            if (tiles != null && old != null) {
+                int tail = pos + (num > 0 ? num : 0);
+                long last = lastWordMask(nw);
+                long[] row = new long[os];
+
+                for (int y = 0; y < height; y++) {
+                    gather(old, os, y, row, 0);
+
+                    for (int i = 0; i < ns; i++) {
+                        int p = i << WORD_SHIFT;
+                        long v = 0;
+                        if (p < pos) {
+                            v = bitsAt(row, 0, os, p) & lowBits(pos - p);
+                        }
+                        if (p + WORD_SIZE > tail) {
+                            v |= bitsAt(row, 0, os, p - num)
+                                            & ~lowBits(tail - p);
+                        }
+                        if (i == ns - 1) v &= last;
+                        if (v != 0) put(i, y, v);
+                    }
+                }
+            }
+
+            fingerprintValid = false;
+            modified = true;
+
+            if (pos < nw && height > 0) {
+                fixChange(pos, 0);
+                fixChange(nw - 1, height - 1);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Вставляет или удаляет строки карты. Строки ниже <code>pos</code>
+     * переносятся в новые плитки, а полосы плиток, которые остаются
+     * выровненными, переносятся без копирования. Вставленные строки пусты.
+     * Фиксируются изменения от строки <code>pos</code> до нижнего края карты.
+     * 
+     * @param pos Позиция вставки или первой удаляемой строки, от нуля до
+     *            высоты карты.
+     * @param num Количество строк. Положительное значение вставляет строки,
+     *            отрицательное - удаляет. Удаляемые строки должны быть в
+     *            пределах карты.
+     * @throws IllegalArgumentException если параметры выходят за пределы
+     *             карты.
+     * @throws DisallowOperationException если изменение высоты запрещено
+     *             текущей конфигурацией.
+     * @see #changeColumns(int, int)
+     * @see #isValidHeight(int)
+     */
+    protected final void changeRows(int pos, int num)
+                    throws DisallowOperationException {
+        int nh = height + num;
+
+        if (pos < 0 || pos > height || (num < 0 && pos - num > height))
+            throw new IllegalArgumentException("bad rows");
+        if (num == 0) return;
+        if (!isValidHeight(nh))
+            throw new DisallowOperationException("change height " + nh);
+
+        touch();
+        fixInk();
+        beginWrite();
+        try {
+            long[][] old = tiles;
+            boolean[] oldOwn = own;
+            long[] oldRows = inkRows, oldColumns = inkColumns;
+            int oh = height;
+
+            height = nh;
+            setTiles(doTiles(width, nh));
+            resetInk();
+
+            if (tiles != null && old != null) {
+                int from = num > 0 ? pos : pos - num;
+                int to = num > 0 ? pos + num : pos;
+                moveRows(old, oldOwn, oldRows, oldColumns, oh, 0, 0, pos);
+                moveRows(old, oldOwn, oldRows, oldColumns, oh, from, to, oh
+                                - from);
+            }
+
+            fingerprintValid = false;
+            modified = true;
+
+            if (pos < nh && width > 0) {
+                fixChange(0, pos);
+                fixChange(width - 1, nh - 1);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Переносит строки из старых плиток карты в новые. Полосы, которые
+     * переносятся целиком и начинаются с границы плитки в обоих массивах,
+     * переносятся без копирования вместе с признаками принадлежности.
+     * 
+     * @param src Старые плитки карты с тем же шагом строки.
+     * @param srcOwn Признаки принадлежности старых плиток.
+     * @param srcRows Маски строк старых плиток.
+     * @param srcColumns Маски столбцов старых плиток.
+     * @param srcHeight Высота карты со старыми плитками.
+     * @param from Номер первой переносимой строки в старых плитках.
+     * @param to Номер строки для неё в новых плитках.
+     * @param count Количество переносимых строк.
+     */
+    private void moveRows(long[][] src, boolean[] srcOwn, long[] srcRows,
+                    long[] srcColumns, int srcHeight, int from, int to,
+                    int count) {
+        int n;
+
+        for (int j = 0; j < count; j += n) {
+            int ys = from + j, yd = to + j;
+            n = tileHeight(srcHeight, ys >> WORD_SHIFT);
+
+            if ((ys & WORD_MASK) == 0 && (yd & WORD_MASK) == 0
+                            && j + n <= count
+                            && n == tileHeight(height, yd >> WORD_SHIFT)) {
+                int st = (ys >> WORD_SHIFT) * stride;
+                int dt = (yd >> WORD_SHIFT) * stride;
+                System.arraycopy(src, st, tiles, dt, stride);
+                System.arraycopy(srcOwn, st, own, dt, stride);
+                System.arraycopy(srcRows, st, inkRows, dt, stride);
+                System.arraycopy(srcColumns, st, inkColumns, dt, stride);
+                for (int i = 0; i < stride; i++)
+                    addInk(dt + i);
+                continue;
+            }
+
+            n = 1;
+            for (int i = 0; i < stride; i++) {
+                long v = at(src, stride, i, ys);
+                if (v != 0) put(i, yd, v);
+            }
+        }
+    }
+
+    /**
+     * Возвращает слово, в котором установлены <code>n</code> младших битов.
+     * Значения <code>n</code> вне диапазона от 0 до 64 приводятся к
+     * ближайшей границе.
+     */
+    private static long lowBits(int n) {
+        if (n <= 0) return 0;
+        if (n >= WORD_SIZE) return -1L;
+        return (1L << n) - 1;
+    }
+
+    /**
+     * Получение пикселя из массива.
+     * 
+     * @param pixsels массив пикселей.
+     * @param w ширина карты массива <code>pixsels</code>.
+     * @param x горизонтальная позиция пикселя.
+     * @param y вертикальная позиция пикселя.
+     * @return состояние пикселя.
+     */
+    protected final static boolean get(long[] pixsels, int w, int x, int y) {
+        int i;
+        if (x < 0 || x >= w || y < 0) return false;
+        i = index(stride(w), x, y);
+        if (i >= pixsels.length) return false;
+
+        return (pixsels[i] & (1L << (x & WORD_MASK))) != 0;
+    }
+
+    /**
+     * Получение заданного пикселя.
+     * 
+     * @param x номер пикселя в строке. Отсчёт с нуля.
+     * @param y номер строки. Отсчёт с нуля.
+     * @return <code>true</code> если пиксель установлен. Метод возвращает
+     *         <code>false</code> если пиксель сброшен, а так же если параметры
+     *         <code>x</code> и <code>y</code> выходят за границы символа.
+     */
+    public boolean getPixsel(int x, int y) {
+        int v = version;
+        touch();
+        if ((v & 1) == 0) {
+            boolean ret = x >= 0 && x < width && y < height
+                            && (peek(tiles, stride, x >> WORD_SHIFT, y)
+                                            & 1L << (x & WORD_MASK)) != 0;
+            if (validate(v)) return ret;
+        }
+
+        synchronized (writeLock()) {
+            return pixsel(x, y);
+        }
+    }
+
+    /**
+     * Получение заданного пикселя без проверки версии карты. В отличие от
+     * {@link #getPixsel(int, int)} вызывается с блокировкой
+     * {@link #writeLock()} и поэтому годится для циклов, перебирающих
+     * пиксели уже заблокированной карты.
+     * 
+     * @param x номер пикселя в строке. Отсчёт с нуля.
+     * @param y номер строки. Отсчёт с нуля.
+     * @return <code>true</code> если пиксель установлен, <code>false</code>
+     *         если сброшен или параметры выходят за границы карты.
+     */
+    protected final boolean pixsel(int x, int y) {
+        if (x < 0 || x >= width) return false;
+        if (y < 0 || y >= height) return false;
+
+        touch();
+        return (at(x >> WORD_SHIFT, y) & (1L << (x & WORD_MASK))) != 0;
+    }
+
+    /**
+     * Метод изменяет заданный пиксель.
+     * 
+     * @param x номер пикселя в строке. Отсчёт с нуля.
+     * @param y номер строки. Отсчёт с нуля.
+     * @param set <code>true</code> если пиксель должен быть установлен,
+     *            <code>false</code> если нужно сбросить.
+     */
+    protected final void changePixsel(int x, int y, boolean set) {
+        int index;
+        long mask;
+
+        if (x < 0 || x >= width) return;
+        if (y < 0 || y >= height) return;
+
+        touch();
+        index = x >> WORD_SHIFT;
+        mask = 1L << (x & WORD_MASK);
+
+        // Изменения происходят если состояние пикселя не совпадает с требуемым.
+        long old = at(index, y);
+        if (((old & mask) != 0) != set) {
+            beginWrite();
+            try {
+                long v = set ? old | mask : old & ~mask;
+                put(index, y, v);
+                fixChange(x, y);
+            } finally {
+                endWrite();
+            }
+        }
+    }
+
+    /**
+     * Метод изменяет слово строки. Биты, выходящие за ширину карты,
+     * игнорируются.
+     * 
+     * @param index Номер слова в строке. Отсчёт с нуля.
+     * @param y Номер строки. Отсчёт с нуля.
+     * @param value Новое значение слова.
+     * @see #getWord(int, int)
+     */
+    protected final void changeWord(int index, int y, long value) {
+        if (index < 0 || index >= stride) return;
+        if (y < 0 || y >= height) return;
+
+        if (index == stride - 1) value &= lastWordMask(width);
+
+        touch();
+        long old = at(index, y);
+        long diff = old ^ value;
+        if (diff == 0) return;
+
+        beginWrite();
+        try {
+            put(index, y, value);
+            fixWordChange(index, y, diff);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Метод изменяет все слова строки. Биты, выходящие за ширину карты,
+     * игнорируются.
+     * 
+     * @param y Номер строки. Отсчёт с нуля.
+     * @param src Новые слова строки. Длина массива должна быть не меньше
+     *            {@link #getStride()}.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
+     * @see #getRow(int, long[])
+     */
+    protected final void changeRow(int y, long[] src) {
+        if (src == null) throw (new NullPointerException());
+        if (y < 0 || y >= height || width == 0) return;
+
+        touch();
+        beginWrite();
+        try {
+            storeRow(y, src, 0);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Сдвигает все строки карты по горизонтали на <code>step</code> пикселей.
+     * Сдвиг выполняется целыми словами с переносом битов между соседними
+     * словами строки. Освободившиеся столбцы становятся пустыми. Сдвинутые
+     * строки больших карт собираются по полосам параллельно.
+     * 
+     * @param step Величина сдвига. Положительное значение сдвигает пиксели
+     *            вправо, отрицательное - влево.
+     * @see #shiftRows(int)
+     */
+    protected final void shiftColumns(final int step) {
+        touch();
+        if (step == 0 || tiles == null) return;
+        beginWrite();
+        try {
+            int s = step < 0 ? -step : step;
+            if (s > width) s = width;
+            final int ws = s >> WORD_SHIFT;
+            final int bs = s & WORD_MASK;
+            final long[] buf = scratch(stride * height);
+
+            forBands(stride(height), new Bands() {
+                @Override
+                public void run(int first, int last) {
+                    long[] src = new long[stride];
+                    int end = Math.min(last << WORD_SHIFT, height);
+                    for (int y = first << WORD_SHIFT; y < end; y++) {
+                        gather(tiles, stride, y, src, 0);
+                        int pos = y * stride;
+
+                        for (int i = 0; i < stride; i++) {
+                            long v;
+                            if (step > 0) {
+                                int j = i - ws;
+                                v = j >= 0 ? src[j] << bs : 0;
+                                if (bs != 0 && j > 0)
+                                    v |= src[j - 1] >>> (WORD_SIZE - bs);
+                            } else {
+                                int j = i + ws;
+                                v = j < stride ? src[j] >>> bs : 0;
+                                if (bs != 0 && j + 1 < stride)
+                                    v |= src[j + 1] << (WORD_SIZE - bs);
+                            }
+                            buf[pos + i] = v;
+                        }
+                    }
+                }
+            });
+
+            for (int y = 0; y < height; y++)
+                storeRow(y, buf, y * stride);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Сдвигает все строки карты по вертикали на <code>step</code> пикселей.
+     * Строки переносятся целыми словами из снимка плиток. Освободившиеся
+     * строки становятся пустыми.
+     * 
+     * @param step Величина сдвига. Положительное значение сдвигает пиксели
+     *            вниз, отрицательное - вверх.
+     * @see #shiftColumns(int)
+     */
+    protected final void shiftRows(int step) {
+        touch();
+        if (step == 0 || tiles == null) return;
+        beginWrite();
+        try {
+            int s = step < 0 ? -step : step;
+            if (s > height) s = height;
+            long[][] src = snapshot();
+            long[] row = new long[stride];
+
+            for (int y = 0; y < height; y++) {
+                int from = step > 0 ? y - s : y + s;
+                if (from < 0 || from >= height) Arrays.fill(row, 0);
+                else gather(src, stride, from, row, 0);
+                storeRow(y, row, 0);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Отражает карту относительно вертикальной оси: пиксель <b>x</b> каждой
+     * строки меняется местами с пикселем <code>getWidth() - 1 - x</code>.
+     * Отражённые строки больших карт собираются по полосам параллельно.
+     * 
+     * @see #reflectRows()
+     */
+    protected final void reflectColumns() {
+        touch();
+        if (tiles == null) return;
+        beginWrite();
+        try {
+            final long[] buf = scratch(stride * height);
+            forBands(stride(height), new Bands() {
+                @Override
+                public void run(int first, int last) {
+                    long[] row = new long[stride];
+                    int end = Math.min(last << WORD_SHIFT, height);
+                    for (int y = first << WORD_SHIFT; y < end; y++) {
+                        gather(tiles, stride, y, row, 0);
+                        reverseRow(row, 0, buf, y * stride, stride, width);
+                    }
+                }
+            });
+
+            for (int y = 0; y < height; y++)
+                storeRow(y, buf, y * stride);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Отражает карту относительно горизонтальной оси: строка <b>y</b> меняется
+     * местами со строкой <code>getHeight() - 1 - y</code>. Строки переносятся
+     * целыми словами из снимка плиток.
+     * 
+     * @see #reflectColumns()
+     */
+    protected final void reflectRows() {
+        touch();
+        if (tiles == null) return;
+        beginWrite();
+        try {
+            long[][] src = snapshot();
+            long[] row = new long[stride];
+            for (int y = 0; y < height; y++) {
+                gather(src, stride, height - 1 - y, row, 0);
+                storeRow(y, row, 0);
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
-     * Сравнение карт. Карты считаются равными, если у них совпадают ширина,
-     * высота и содержимое массивов пикселей.
+     * Заливка области пикселей, связанной с пикселем <code>x</code>:
+     * <code>y</code>. Область состоит из пикселей того же состояния, что и
+     * начальный, и после заливки все её пиксели получают состояние
+     * <code>state</code>. Заливка идёт отрезками строк: отрезок находится и
+     * закрашивается целыми словами, а в соседних строках ищутся отрезки
+     * области, которые помещаются в очередь.
      * 
-     * @param obj Карта для сравнения.
-     * @return <code>true</code> если карты равны.
+     * @param x Горизонтальная позиция начального пикселя.
+     * @param y Вертикальная позиция начального пикселя.
+     * @param state Новое состояние пикселей области.
+     * @param diagonal <code>true</code> если пиксели, соседние по диагонали,
+     *            считаются связанными (8-связность), <code>false</code> если
+     *            связаны только соседние по горизонтали и вертикали пиксели
+     *            (4-связность).
+     * @see #label(int[], boolean)
      */
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) return true;
-        if (obj == null) return false;
-        if (!(obj instanceof AbstractPixselMap)) return false;
-        AbstractPixselMap other = (AbstractPixselMap) obj;
-        if (height != other.height) return false;
-        if (!Arrays.equals(pixsels, other.pixsels)) return false;
-        if (width != other.width) return false;
-        return true;
+    protected final void fillArea(int x, int y, boolean state,
+                    boolean diagonal) {
+        if (x < 0 || x >= width) return;
+        if (y < 0 || y >= height) return;
+
+        touch();
+        boolean target = (at(x >> WORD_SHIFT, y) & (1L << x)) != 0;
+        if (target == state) return;
+
+        beginWrite();
+        try {
+            int d = diagonal ? 1 : 0;
+            int[] queue = new int[16];
+            int size = 0;
+            queue[size++] = x;
+            queue[size++] = y;
+
+            while (size > 0) {
+                int sy = queue[--size];
+                int sx = queue[--size];
+
+                // Отрезок мог быть залит из другой строки.
+                if ((at(sx >> WORD_SHIFT, sy) & (1L << sx)) != 0 != target)
+                    continue;
+
+                int l = sx - runLeft(sy, sx, 0, target) + 1;
+                int r = sx + runRight(sy, sx, width - 1, target) - 1;
+                changeRun(sy, l, r, state ? PixselMap.DRAW_SET
+                                : PixselMap.DRAW_CLEAR);
+
+                int a = l - d < 0 ? 0 : l - d;
+                int b = r + d >= width ? width - 1 : r + d;
+                for (int ny = sy - 1; ny <= sy + 1; ny += 2) {
+                    if (ny < 0 || ny >= height) continue;
+
+                    int p = a + runRight(ny, a, b, !target);
+                    while (p <= b) {
+                        if (size + 2 > queue.length)
+                            queue = Arrays.copyOf(queue, queue.length * 2);
+                        queue[size++] = p;
+                        queue[size++] = ny;
+                        p += runRight(ny, p, b, target);
+                        if (p <= b) p += runRight(ny, p, b, !target);
+                    }
+                }
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
-     * Метод возвращает ширину и высоту карты.
+     * Изменяет пиксели строки <code>y</code> с <code>l</code> по
+     * <code>r</code> включительно. Часть отрезка за границами карты
+     * отбрасывается. Слова строки изменяются по маске, фиксируются только
+     * действительно изменившиеся пиксели.
+     * 
+     * @param mode Способ изменения: {@link PixselMap#DRAW_SET},
+     *            {@link PixselMap#DRAW_CLEAR} или {@link PixselMap#DRAW_NEG}.
+     *            Любое другое значение считается {@link PixselMap#DRAW_NEG}.
      */
-    public Dimension getSize() {
-        return new Dimension(width, height);
+    private void changeRun(int y, int l, int r, int mode) {
+        if (y < 0 || y >= height) return;
+        if (l < 0) l = 0;
+        if (r >= width) r = width - 1;
+        if (l > r) return;
+
+        int first = l >> WORD_SHIFT, last = r >> WORD_SHIFT;
+        for (int i = first; i <= last; i++) {
+            long mask = -1L;
+            if (i == first) mask &= -1L << l;
+            if (i == last) mask &= -1L >>> (WORD_MASK - (r & WORD_MASK));
+
+            long old = at(i, y), v;
+            switch (mode) {
+            case PixselMap.DRAW_SET:
+                v = old | mask;
+                break;
+            case PixselMap.DRAW_CLEAR:
+                v = old & ~mask;
+                break;
+            default:
+                v = old ^ mask;
+            }
+            if (v == old) continue;
+
+            put(i, y, v);
+            fixWordChange(i, y, old ^ v);
+        }
     }
 
     /**
-     * Метод возвращает ширину карты.
+     * Рисует прямоугольник. Каждая строка прямоугольника изменяется
+     * отрезками, часть прямоугольника за границами карты отбрасывается.
      * 
-     * @return Количество пикселей по горизонтали.
+     * @param x Левая граница прямоугольника.
+     * @param y Верхняя граница прямоугольника.
+     * @param w Ширина прямоугольника.
+     * @param h Высота прямоугольника.
+     * @param filled <code>true</code> для закрашенного прямоугольника,
+     *            <code>false</code> для рамки шириной в один пиксель.
+     * @param mode Способ изменения пикселей, одна из констант
+     *            <code>PixselMap.DRAW_*</code>.
      */
-    public int getWidth() {
-        return width;
+    protected final void changeRectangle(int x, int y, int w, int h,
+                    boolean filled, int mode) {
+        if (w <= 0 || h <= 0) return;
+
+        touch();
+        beginWrite();
+        try {
+            int r = x + w - 1, b = y + h - 1;
+            int last = b < height ? b : height - 1;
+            for (int j = y < 0 ? 0 : y; j <= last; j++) {
+                if (filled || j == y || j == b) {
+                    changeRun(j, x, r, mode);
+                } else {
+                    changeRun(j, x, x, mode);
+                    if (r != x) changeRun(j, r, r, mode);
+                }
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
-     * Метод возвращает высоту карты.
+     * Рисует отрезок прямой от пикселя <code>x1</code>:<code>y1</code> до
+     * пикселя <code>x2</code>:<code>y2</code> включительно по алгоритму
+     * Брезенхэма. Соседние пиксели отрезка, лежащие в одной строке,
+     * изменяются одним отрезком строки, поэтому каждый пиксель изменяется
+     * ровно один раз.
      * 
-     * @return Количество пикселей по вертикали.
+     * @param mode Способ изменения пикселей, одна из констант
+     *            <code>PixselMap.DRAW_*</code>.
      */
-    public int getHeight() {
-        return height;
+    protected final void changeLine(int x1, int y1, int x2, int y2, int mode) {
+        int dx = Math.abs(x2 - x1), sx = x1 < x2 ? 1 : -1;
+        int dy = -Math.abs(y2 - y1), sy = y1 < y2 ? 1 : -1;
+        int err = dx + dy;
+        int x = x1, y = y1, start = x1;
+
+        touch();
+        beginWrite();
+        try {
+            for (;;) {
+                boolean end = x == x2 && y == y2;
+                int nx = x, ny = y;
+                if (!end) {
+                    int e2 = 2 * err;
+                    if (e2 >= dy) {
+                        err += dy;
+                        nx += sx;
+                    }
+                    if (e2 <= dx) {
+                        err += dx;
+                        ny += sy;
+                    }
+                }
+                if (end || ny != y) {
+                    changeRun(y, Math.min(start, x), Math.max(start, x), mode);
+                    start = nx;
+                }
+                if (end) break;
+                x = nx;
+                y = ny;
+            }
+        } finally {
+            endWrite();
+        }
     }
 
     /**
-     * Изменение размеров карты. Так же меняется размер массива пикселей. Если
-     * один из размеров равен нулю, то внутренний массив пикселей освобождается.
+     * Рисует эллипс, вписанный в прямоугольник. В строку эллипса входят
+     * пиксели, центры которых лежат внутри эллипса, но не меньше одного или
+     * двух центральных пикселей, поэтому эллипс касается всех сторон
+     * прямоугольника. Рамка эллипса состоит из его пикселей, у которых есть
+     * сосед по горизонтали или вертикали вне эллипса.
      * 
-     * @param w Новая ширина.
-     * @param h Новая высота.
-     * @throws IllegalArgumentException если хотя бы один из размеров меньше
-     *             нуля.
-     * @throws DisallowOperationException если изменение высоты и/или ширины
-     *             запрещено текущей конфигурацией.
-     * @see #isValidWidth(int)
-     * @see #isValidHeight(int)
+     * @param x Левая граница прямоугольника.
+     * @param y Верхняя граница прямоугольника.
+     * @param w Ширина прямоугольника.
+     * @param h Высота прямоугольника.
+     * @param filled <code>true</code> для закрашенного эллипса,
+     *            <code>false</code> для рамки шириной в один пиксель.
+     * @param mode Способ изменения пикселей, одна из констант
+     *            <code>PixselMap.DRAW_*</code>.
      */
-    protected final void changeSize(int w, int h)
-                    throws DisallowOperationException {
-        int nw, nh;
+    protected final void changeEllipse(int x, int y, int w, int h,
+                    boolean filled, int mode) {
+        if (w <= 0 || h <= 0) return;
 
-        if (w < 0 || h < 0) throw new IllegalArgumentException("bad size");
-
-        if (!isValidWidth(w))
-            throw new DisallowOperationException("change width");
-        if (!isValidHeight(h))
-            throw new DisallowOperationException("change height");
-
-        nw = w;
-        nh = h;
-
-        /* Если новые размеры равны старым, то и делать ничего не надо. */
-        if (nw == width && nh == height) return;
-
-        /* Если один из размеров равен нулю, обнуляем символ. */
-        if (nw == 0 || nh == 0) pixsels = null;
-        else {
-            /*
-             * Если старый массив не пуст, копировать его (насколько возможно) в
-             * новый.
-             */
-            if (pixsels == null) pixsels = doPixselArray(nw, nh);
-            else {
-                byte[] temp = pixsels;
-                int oldW = width;
-                pixsels = doPixselArray(nw, nh);
+        touch();
+        beginWrite();
+        try {
+            int last = y + h - 1 < height ? h - 1 : height - 1 - y;
+            for (int j = y < 0 ? -y : 0; j <= last; j++) {
+                int half = ellipseHalf(w, h, j);
+                int a = x + (w - 1 - half) / 2, b = x + (w - 1 + half) / 2;
+                if (filled) {
+                    changeRun(y + j, a, b, mode);
+                    continue;
+                }
 
-                int cw = nw > width ? width : nw;
-                int ch = nh > height ? height : nh;
+                int up = ellipseHalf(w, h, j - 1);
+                int down = ellipseHalf(w, h, j + 1);
+                int inner = Math.min(half - 2, Math.min(up, down));
+                if (inner < 0) {
+                    changeRun(y + j, a, b, mode);
+                } else {
+                    changeRun(y + j, a, x + (w - 1 - inner) / 2 - 1, mode);
+                    changeRun(y + j, x + (w - 1 + inner) / 2 + 1, b, mode);
+                }
+            }
+        } finally {
+            endWrite();
+        }
+    }
 
-                width = nw;
-                height = nh;
+    /**
+     * Возвращает полуширину строки <code>j</code> эллипса, вписанного в
+     * прямоугольник <code>w</code>x<code>h</code>, в удвоенных координатах:
+     * строка занимает пиксели от <code>(w - 1 - half) / 2</code> до
+     * <code>(w - 1 + half) / 2</code>. Для строк вне прямоугольника
+     * возвращается -1.
+     */
+    private static int ellipseHalf(int w, int h, int j) {
+        if (j < 0 || j >= h) return -1;
+
+        // Центр пикселя X лежит внутри, если X^2 * h^2 <= w^2 * (h^2 - Y^2).
+        long yy = 2L * j - (h - 1);
+        long hh = (long) h * h;
+        long lim = (long) w * w * (hh - yy * yy);
+        long half = (long) Math.sqrt((double) lim / hh);
+        while (half * half * hh > lim)
+            half--;
+        while ((half + 1) * (half + 1) * hh <= lim)
+            half++;
+        if (((half ^ (w - 1)) & 1) != 0) half--;
+        if (half < 0) half = (w - 1) & 1;
+        return (int) half;
+    }
 
-                for (int x = 0; x < cw; x++) {
-                    for (int y = 0; y < ch; y++) {
-                        changePixsel(x, y, get(temp, oldW, x, y));
-                    }
+    /**
+     * Штамп кистью <code>brush</code> с позиции <code>x</code>:<code>y</code>.
+     * Изменяются только пиксели карты под закрашенными пикселями кисти,
+     * закрашенные пиксели каждой строки кисти переносятся отрезками.
+     * 
+     * @param brush Кисть. Может быть этой же картой.
+     * @param mode Способ изменения пикселей, одна из констант
+     *            <code>PixselMap.DRAW_*</code>.
+     * @throws NullPointerException если <code>brush</code> равен
+     *             <code>null</code>
+     */
+    protected final void changeBrush(int x, int y, AbstractPixselMap brush,
+                    int mode) {
+        int bw = brush.width, bs = brush.stride;
+        long[][] src;
+
+        brush.touch();
+        touch();
+        if (brush.tiles == null) return;
+        // Кисть может изменяться во время штампа.
+        if (brush == this) src = snapshot();
+        else src = brush.tiles;
+        long[] row = new long[bs];
+
+        beginWrite();
+        try {
+            int last = y + brush.height - 1 < height ? brush.height - 1 : height
+                            - 1 - y;
+            for (int j = y < 0 ? -y : 0; j <= last; j++) {
+                gather(src, bs, j, row, 0);
+                int p = runRight(row, 0, bw - 1, false);
+                while (p < bw) {
+                    int r = p + runRight(row, p, bw - 1, true) - 1;
+                    changeRun(y + j, x + p, x + r, mode);
+                    p = r + 1;
+                    if (p < bw) p += runRight(row, p, bw - 1, false);
                 }
             }
+        } finally {
+            endWrite();
         }
+    }
 
-        /* Фиксируем изменения. */
-        // fixChange(0, 0);
-        fixChange(nw - 1, nh - 1);
+    /**
+     * Фиксирует изменения слова строки по младшему и старшему изменившемуся
+     * биту.
+     * 
+     * @param index Номер слова в строке.
+     * @param y Номер строки.
+     * @param diff Разница между старым и новым значением слова.
+     */
+    private void fixWordChange(int index, int y, long diff) {
+        fixChange((index << WORD_SHIFT) + Long.numberOfTrailingZeros(diff), y);
+        fixChange((index << WORD_SHIFT) + WORD_MASK
+                        - Long.numberOfLeadingZeros(diff), y);
+    }
 
-        width = nw;
-        height = nh;
-        return;
+    /**
+     * Фиксирует изменения плитки <code>t</code> при замене её слов из массива
+     * <code>a</code> словами из массива <code>b</code> и отмечает плитку
+     * изменившейся, если они различаются. Сами массивы не изменяются.
+     */
+    private void fixTileChange(int t, long[] a, long[] b) {
+        int tx = t % stride, y = (t / stride) << WORD_SHIFT;
+        boolean ret = false;
+
+        for (int k = tileHeight(height, t / stride) - 1; k >= 0; k--) {
+            long diff = a[k] ^ b[k];
+            if (diff == 0) continue;
+            fixWordChange(tx, y + k, diff);
+            ret = true;
+        }
+        if (ret) changedTiles[t >> WORD_SHIFT] |= 1L << t;
     }
 
     /**
-     * Получение пикселя из массива.
+     * Возвращает 64 пикселя строки, начиная с пикселя <code>pos</code>.
+     * Пиксели за пределами строки считаются пустыми.
      * 
-     * @param pixsels массив пикселей.
-     * @param w ширина карты массива <code>pixsels</code>.
-     * @param x горизонтальная позиция пикселя.
-     * @param y вертикальная позиция пикселя.
-     * @return состояние пикселя.
+     * @param a Массив пикселей.
+     * @param base Позиция первого слова строки в <code>a</code>.
+     * @param stride Шаг строки.
+     * @param pos Номер первого пикселя. Может быть отрицательным.
      */
-    protected final static boolean get(byte[] pixsels, int w, int x, int y) {
-        int i;
-        if (x < 0 || x >= w) return false;
-        i = index(w, x, y);
-        if (i >= pixsels.length) return false;
-
-        return (pixsels[i] & (1 << (x & ITEM_MASK))) != 0;
+    private static long bitsAt(long[] a, int base, int stride, int pos) {
+        int i = pos >> WORD_SHIFT;
+        int b = pos & WORD_MASK;
+        long lo = i >= 0 && i < stride ? a[base + i] : 0;
+        if (b == 0) return lo;
+        long hi = i + 1 >= 0 && i + 1 < stride ? a[base + i + 1] : 0;
+        return (lo >>> b) | (hi << (WORD_SIZE - b));
     }
 
     /**
-     * Получение заданного пикселя.
+     * Наложение карты <code>src</code> с позиции <code>x</code>:<code>y</code>.
+     * Часть штампа, выходящая за границы карты, отбрасывается. Строки
+     * обрабатываются целыми словами при любом взаимном выравнивании карты и
+     * штампа, крайние слова каждой строки изменяются по маске. Фиксируются
+     * только действительно изменившиеся пиксели.
      * 
-     * @param x номер пикселя в строке. Отсчёт с нуля.
-     * @param y номер строки. Отсчёт с нуля.
-     * @return <code>true</code> если пиксель установлен. Метод возвращает
-     *         <code>false</code> если пиксель сброшен, а так же если параметры
-     *         <code>x</code> и <code>y</code> выходят за границы символа.
+     * @param x Горизонтальная позиция штампа в карте.
+     * @param y Вертикальная позиция штампа в карте.
+     * @param src Карта, выступающая в роли штампа. Может быть этой же картой.
+     * @param op Выполняемая операция: {@link PixselMap#OVERLAY_PLACE},
+     *            {@link PixselMap#OVERLAY_OR}, {@link PixselMap#OVERLAY_AND}
+     *            или {@link PixselMap#OVERLAY_XOR}. Любое другое значение
+     *            считается {@link PixselMap#OVERLAY_PLACE}.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
      */
-    public boolean getPixsel(int x, int y) {
-        return get(pixsels, width, x, y);
+    protected final void blit(int x, int y, AbstractPixselMap src, int op) {
+        src.touch();
+        if (src.tiles == null) return;
+
+        /*
+         * Наложение карты на саму себя требует неизменного источника: плитки
+         * становятся общими со снимком и копируются перед записью.
+         */
+        long[][] st = src == this ? snapshot() : src.tiles;
+        blit(x, y, st, null, src.stride, src.width, src.height, op);
     }
 
     /**
-     * Метод изменяет заданный пиксель.
+     * Наложение пикселей из массива <code>src</code> с позиции <code>x</code>:
+     * <code>y</code> так же, как
+     * {@link #blit(int, int, AbstractPixselMap, int)} накладывает карту.
      * 
-     * @param x номер пикселя в строке. Отсчёт с нуля.
-     * @param y номер строки. Отсчёт с нуля.
-     * @param set <code>true</code> если пиксель должен быть установлен,
-     *            <code>false</code> если нужно сбросить.
+     * @param x Горизонтальная позиция штампа в карте.
+     * @param y Вертикальная позиция штампа в карте.
+     * @param src Строки штампа, каждая занимает <code>stride(w)</code> слов
+     *            в формате {@link #getRow(int, long[])}.
+     * @param w Ширина штампа.
+     * @param h Высота штампа.
+     * @param op Выполняемая операция, одна из констант
+     *            <code>PixselMap.OVERLAY_*</code>.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
      */
-    protected final void changePixsel(int x, int y, boolean set) {
-        int index;
-        byte mask;
+    protected final void blit(int x, int y, long[] src, int w, int h, int op) {
+        if (src == null) throw (new NullPointerException());
+        blit(x, y, null, src, stride(w), w, h, op);
+    }
 
-        if (x < 0 || x >= width) return;
-        if (y < 0 || y >= height) return;
+    /**
+     * Реализация наложения штампа, строки которого берутся из плиток
+     * <code>st</code> или, если они равны <code>null</code>, из массива
+     * <code>sa</code>.
+     */
+    private void blit(int x, int y, long[][] st, long[] sa, int ss, int w,
+                    int h, int op) {
+        int sx = 0, sy = 0;
+
+        if (x < 0) {
+            sx = -x;
+            w += x;
+            x = 0;
+        }
+        if (y < 0) {
+            sy = -y;
+            h += y;
+            y = 0;
+        }
+        if (w > width - x) w = width - x;
+        if (h > height - y) h = height - y;
+        if (w <= 0 || h <= 0) return;
 
-        index = index(width, x, y);
-        mask = (byte) (1 << (x & ITEM_MASK));
+        touch();
+        beginWrite();
+        try {
+            long[] srow = st == null ? sa : new long[ss];
+            int first = x >> WORD_SHIFT;
+            int last = (x + w - 1) >> WORD_SHIFT;
+            long firstMask = -1L << (x & WORD_MASK);
+            long lastMask = -1L >>> (WORD_MASK - ((x + w - 1) & WORD_MASK));
+
+            for (int r = 0; r < h; r++) {
+                int base = 0;
+                if (st != null) gather(st, ss, sy + r, srow, 0);
+                else base = (sy + r) * ss;
+
+                for (int i = first; i <= last; i++) {
+                    long m = -1L;
+                    if (i == first) m &= firstMask;
+                    if (i == last) m &= lastMask;
+
+                    long s = bitsAt(srow, base, ss, (i << WORD_SHIFT) - x + sx);
+                    long old = at(i, y + r);
+                    long v;
+                    switch (op) {
+                    case PixselMap.OVERLAY_OR:
+                        v = old | (s & m);
+                        break;
+                    case PixselMap.OVERLAY_AND:
+                        v = old & (s | ~m);
+                        break;
+                    case PixselMap.OVERLAY_XOR:
+                        v = old ^ (s & m);
+                        break;
+                    default:
+                        v = (old & ~m) | (s & m);
+                    }
 
-        // Изменения происходят если состояние пикселя не совпадает с требуемым.
-        if (((pixsels[index] & mask) != 0) != set) {
-            if (set) {
-                pixsels[index] |= mask;
-            } else {
-                pixsels[index] &= (byte) ~mask;
+                    long diff = old ^ v;
+                    if (diff == 0) continue;
+                    put(i, y + r, v);
+                    fixWordChange(i, y + r, diff);
+                }
             }
-            fixChange(x, y);
+        } finally {
+            endWrite();
         }
     }
 
     /**
-     * Копирование из карты <code>src</code>. Кроме массива пикселей изменяются
-     * переменные {@link #width}, {@link #height}.
+     * Копирование из карты <code>src</code>. Кроме пикселей изменяются
+     * переменные {@link #width}, {@link #height}. Плитки пикселей не
+     * копируются, а используются обеими картами до первого изменения в них.
+     * Если размеры карт совпадают, то изменения фиксируются только для
+     * действительно отличающихся плиток.
      * 
      * @param src Источник копирования.
      * @throws DisallowOperationException если изменение высоты и/или ширины
@@ -774,52 +3284,183 @@ public class AbstractPixselMap {
                                 + src.height);
 
             synchronized (writeLock()) {
-                if (isSameSize(src)) {
-                    for (int y = 0; y < height; y++) {
-                        for (int x = 0; x < width; x++) {
-                            changePixsel(x, y, src.getPixsel(x, y));
+                beginWrite();
+                try {
+                    if (isSameSize(src)) {
+                        touch();
+                        src.touch();
+                        src.fixInk();
+                        for (int t = 0; tiles != null && t < tiles.length;
+                                        t++) {
+                            if (tiles[t] == src.tiles[t]) continue;
+                            fixTileChange(t, tiles[t], src.tiles[t]);
+                            tiles[t] = src.tiles[t];
+                            own[t] = false;
+                            src.own[t] = false;
                         }
-                    }
-                } else {
-                    pixsels = doPixselArray(src.width, src.height);
 
-                    if (pixsels != null) {
-                        System.arraycopy(src.pixsels, 0, pixsels, 0,
-                                        pixsels.length);
-                        fixChange(0, 0);
-                        fixChange(width - 1, height - 1);
+                        /* Маски закрашенной области берутся у источника. */
+                        if (tiles != null) {
+                            System.arraycopy(src.inkRows, 0, inkRows, 0,
+                                            inkRows.length);
+                            System.arraycopy(src.inkColumns, 0, inkColumns, 0,
+                                            inkColumns.length);
+                            Arrays.fill(staleInk, 0);
+                            inkStale = false;
+                        }
+                        if (src.rowInk != null) {
+                            rowInk = src.rowInk.clone();
+                            columnInk = src.columnInk.clone();
+                        }
+                    } else {
+                        share(src);
+
+                        if (tiles != null) {
+                            fixChange(0, 0);
+                            fixChange(width - 1, height - 1);
+                        }
                     }
-                    width = src.width;
-                    height = src.height;
+
+                    /* Содержимое совпадает с источником, как и отпечаток. */
+                    fingerprint = src.fingerprint;
+                    fingerprintValid = src.fingerprintValid;
+                } finally {
+                    endWrite();
                 }
             } // end synchronized (writeLock())
         } // end synchronized (src.writeLock())
     }
 
+    /**
+     * Возвращает количество байтов, необходимое для хранения пикселей карты в
+     * упакованном виде.
+     * 
+     * @see #getBytes()
+     * @see #getBytes(ByteBuffer)
+     */
+    public int getBytesLength() {
+        return (width * height + 7) / 8;
+    }
+
     /**
      * Метод возвращает <b>копию</b> массива пикселей, упакованную в
      * <code>byte</code>. Если символ имеет нулевую ширину и/или высоту, то
      * возвращается <code>null</code>. <br>
      * Пиксели заполняют возвращаемый массив последовательно начиная с младшего
      * бита самого первого элемента.
+     * 
+     * @see #getBytes(ByteBuffer)
      */
     public byte[] getBytes() {
-        if (pixsels == null) return null;
+        int v = version;
+        if ((v & 1) == 0) {
+            byte[] ret = bytes(tiles, packed, width, height);
+            if (validate(v)) return ret;
+        }
 
-        PixselIterator pi = new PixselIterator(0, 0, width, height,
-                        DIR_LEFT_TOP);
+        synchronized (writeLock()) {
+            return bytes(tiles, packed, width, height);
+        }
+    }
+
+    /**
+     * Реализация {@link #getBytes()} без проверки версии.
+     * 
+     * @param tiles Плитки карты или <code>null</code>.
+     * @param packed Сжатые строки карты или <code>null</code>.
+     * @param width Ширина карты.
+     * @param height Высота карты.
+     */
+    private static byte[] bytes(long[][] tiles, byte[] packed, int width,
+                    int height) {
+        if (tiles == null && packed == null) return null;
 
         byte[] rv = new byte[(width * height + 7) / 8];
+        bytes(tiles, packed, width, height, ByteBuffer.wrap(rv));
+        return rv;
+    }
 
-        for (int i = 0; pi.hasNext() && i < rv.length; i++) {
-            byte m = 1;
-            rv[i] = 0;
-            for (int c = 0; pi.hasNext() && c < 8; c++) {
-                if (pi.getNext()) rv[i] |= m;
-                m = (byte) (m << 1);
+    /**
+     * Метод записывает пиксели карты, упакованные в <code>byte</code>, в буфер
+     * <code>dst</code> начиная с его текущей позиции. Формат такой же, как у
+     * {@link #getBytes()}. Записывается {@link #getBytesLength()} байтов,
+     * позиция буфера сдвигается на это же число. Строки карты переносятся в
+     * поток целыми словами.
+     * 
+     * @param dst Буфер для пикселей.
+     * @throws NullPointerException если <code>dst</code> равен
+     *             <code>null</code>
+     * @throws java.nio.BufferOverflowException если в буфере недостаточно
+     *             места.
+     */
+    public void getBytes(ByteBuffer dst) {
+        if (dst == null) throw (new NullPointerException());
+
+        int v = version;
+        if ((v & 1) == 0) {
+            int w = width, h = height;
+            /* Переполнение буфера проверяется с блокировкой. */
+            if (dst.remaining() >= (w * h + 7) / 8) {
+                int pos = dst.position();
+                bytes(tiles, packed, w, h, dst);
+                if (validate(v)) return;
+                dst.position(pos);
             }
         }
-        return rv;
+
+        synchronized (writeLock()) {
+            bytes(tiles, packed, width, height, dst);
+        }
+    }
+
+    /**
+     * Реализация {@link #getBytes(ByteBuffer)} без проверки версии. Если
+     * параметры прочитаны без блокировки и не соответствуют друг другу, то
+     * записываются произвольные пиксели, но не больше
+     * <code>(width * height + 7) / 8</code> байтов.
+     * 
+     * @param tiles Плитки карты или <code>null</code>.
+     * @param packed Сжатые строки карты или <code>null</code>.
+     * @param width Ширина карты.
+     * @param height Высота карты.
+     * @param dst Буфер для пикселей.
+     */
+    private static void bytes(long[][] tiles, byte[] packed, int width,
+                    int height, ByteBuffer dst) {
+        /* Сжатая карта записывается без распаковки. */
+        if (tiles == null && packed != null)
+            tiles = unpackTiles(packed, width, height);
+        if (tiles == null) return;
+        int stride = stride(width);
+
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            long acc = 0;
+            int n = 0;
+
+            for (int y = 0; y < height; y++) {
+                for (int i = 0; i < stride; i++) {
+                    int k = i == stride - 1 ? width - (i << WORD_SHIFT)
+                                    : WORD_SIZE;
+                    long v = peek(tiles, stride, i, y);
+
+                    acc |= v << n;
+                    if (n + k >= WORD_SIZE) {
+                        dst.putLong(acc);
+                        acc = n == 0 ? 0 : v >>> (WORD_SIZE - n);
+                        n += k - WORD_SIZE;
+                    } else n += k;
+                }
+            }
+
+            for (; n > 0; n -= 8) {
+                dst.put((byte) acc);
+                acc >>>= 8;
+            }
+        } finally {
+            dst.order(order);
+        }
     }
 
     /**
@@ -830,20 +3471,191 @@ public class AbstractPixselMap {
      * @param src Копируемый массив пикселей.
      * @throws NullPointerException если <code>src</code> равен
      *             <code>null</code>
+     * @see #setBytes(ByteBuffer)
      */
     protected final void setBytes(byte[] src) throws NullPointerException {
         if (src == null) throw (new NullPointerException());
+        setBytes(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * Метод копирует пиксели, упакованные в <code>byte</code>, из буфера
+     * <code>src</code> начиная с его текущей позиции. Формат такой же, как у
+     * {@link #setBytes(byte[])}. Читается не больше {@link #getBytesLength()}
+     * байтов. Если в буфере меньше данных, то остальные пиксели карты не
+     * изменяются.
+     * 
+     * @param src Буфер с пикселями.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
+     */
+    protected final void setBytes(ByteBuffer src) throws NullPointerException {
+        if (src == null) throw (new NullPointerException());
+        touch();
+        if (tiles == null) return;
 
-        PixselIterator pi = new PixselIterator(0, 0, width, height,
-                        DIR_LEFT_TOP);
+        ByteOrder order = src.order();
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        beginWrite();
+        try {
+            long[] row = new long[stride];
+            long[] cur = new long[stride];
+            long acc = 0;
+            int n = 0;
+            int left = Math.min(src.remaining(), getBytesLength());
+            boolean end = false;
+
+            for (int y = 0; y < height && !end; y++) {
+                gather(tiles, stride, y, cur, 0);
+                for (int i = 0; i < stride; i++) {
+                    int k = i == stride - 1 ? width - (i << WORD_SHIFT)
+                                    : WORD_SIZE;
+                    long v = 0;
+                    int have = 0;
+
+                    while (have < k) {
+                        if (n == 0) {
+                            if (left >= 8) {
+                                acc = src.getLong();
+                                n = WORD_SIZE;
+                                left -= 8;
+                            } else {
+                                for (; left > 0; left--) {
+                                    acc |= (src.get() & 0xffL) << n;
+                                    n += 8;
+                                }
+                                if (n == 0) break;
+                            }
+                        }
+
+                        int take = k - have < n ? k - have : n;
+                        if (take == WORD_SIZE) {
+                            v = acc;
+                            acc = 0;
+                        } else {
+                            v |= (acc & ((1L << take) - 1)) << have;
+                            acc >>>= take;
+                        }
+                        n -= take;
+                        have += take;
+                    }
+
+                    /* Пиксели, на которые не хватило данных, не изменяются. */
+                    long mask = have == WORD_SIZE ? -1L : (1L << have) - 1;
+                    row[i] = (cur[i] & ~mask) | (v & mask);
+                    if (have < k) {
+                        end = true;
+                        System.arraycopy(cur, i + 1, row, i + 1,
+                                        stride - i - 1);
+                        break;
+                    }
+                }
+                storeRow(y, row, 0);
+            }
+        } finally {
+            src.order(order);
+            endWrite();
+        }
+    }
 
-        for (int i = 0; pi.hasNext() && i < src.length; i++) {
-            byte m = 1;
-            for (int c = 0; pi.hasNext() && c < 8; c++) {
-                pi.setNext((src[i] & m) != 0);
-                m = (byte) (m << 1);
+    /**
+     * Разметка связных областей закрашенных пикселей. Каждой области
+     * присваивается номер, начиная с единицы, в порядке появления областей
+     * при просмотре карты сверху вниз и слева направо. Закрашенные пиксели
+     * строк собираются в отрезки целыми словами, и отрезки соседних строк,
+     * касающиеся друг друга, объединяются в одну область.
+     * 
+     * @param dst Массив для номеров областей. Номер пикселя <code>x</code>:
+     *            <code>y</code> записывается в элемент
+     *            <code>y * getWidth() + x</code>, для незакрашенных пикселей
+     *            записывается ноль. Если равен <code>null</code>, то
+     *            подсчитывается только количество областей.
+     * @param diagonal <code>true</code> если пиксели, соседние по диагонали,
+     *            считаются связанными (8-связность), <code>false</code> если
+     *            связаны только соседние по горизонтали и вертикали пиксели
+     *            (4-связность).
+     * @return Количество связных областей.
+     * @throws ArrayIndexOutOfBoundsException если длина <code>dst</code>
+     *             меньше количества пикселей карты.
+     * @see #fillArea(int, int, boolean, boolean)
+     */
+    public int label(int[] dst, boolean diagonal) {
+        synchronized (writeLock()) {
+            int d = diagonal ? 1 : 0;
+            int[] start = new int[16], end = new int[16], parent = new int[16];
+            int[] line = new int[height + 1];
+            int n = 0;
+
+            touch();
+            for (int y = 0; y < height; y++) {
+                int prev = y > 0 ? line[y - 1] : 0;
+                line[y] = n;
+
+                int p = runRight(y, 0, width - 1, false);
+                while (p < width) {
+                    int r = p + runRight(y, p, width - 1, true) - 1;
+                    if (n == start.length) {
+                        start = Arrays.copyOf(start, n * 2);
+                        end = Arrays.copyOf(end, n * 2);
+                        parent = Arrays.copyOf(parent, n * 2);
+                    }
+                    start[n] = p;
+                    end[n] = r;
+                    parent[n] = n;
+
+                    // Отрезки предыдущей строки упорядочены слева направо.
+                    while (prev < line[y] && end[prev] + d < p)
+                        prev++;
+                    for (int k = prev; k < line[y] && start[k] <= r + d; k++)
+                        union(parent, k, n);
+
+                    n++;
+                    p = r + 1;
+                    if (p < width) p += runRight(y, p, width - 1, false);
+                }
+            }
+            line[height] = n;
+
+            for (int i = 0; i < n; i++)
+                parent[i] = find(parent, i);
+
+            // Корень области всегда раньше остальных её отрезков.
+            int count = 0;
+            for (int i = 0; i < n; i++)
+                parent[i] = parent[i] == i ? ++count : parent[parent[i]];
+
+            if (dst != null) {
+                Arrays.fill(dst, 0, width * height, 0);
+                for (int y = 0; y < height; y++) {
+                    for (int i = line[y]; i < line[y + 1]; i++)
+                        Arrays.fill(dst, y * width + start[i], y * width
+                                        + end[i] + 1, parent[i]);
+                }
             }
+            return count;
+        }
+    }
+
+    /**
+     * Возвращает корень дерева отрезка <code>i</code>, сокращая путь к нему.
+     */
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
         }
+        return i;
+    }
+
+    /**
+     * Объединяет деревья отрезков <code>a</code> и <code>b</code>. Корнем
+     * становится отрезок с меньшим номером.
+     */
+    private static void union(int[] parent, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        if (a < b) parent[b] = a;
+        else if (b < a) parent[a] = b;
     }
 
     /**
@@ -854,13 +3666,7 @@ public class AbstractPixselMap {
      * @see #emptyRight()
      */
     public int emptyLeft() {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (getPixsel(x, y)) return x;
-            }
-        }
-
-        return width;
+        return empty(true, false);
     }
 
     /**
@@ -871,15 +3677,7 @@ public class AbstractPixselMap {
      * @see #emptyLeft()
      */
     public int emptyRight() {
-        if (isEmpty()) return 0;
-
-        for (int x = width - 1; x >= 0; x--) {
-            for (int y = 0; y < height; y++) {
-                if (getPixsel(x, y)) return width - 1 - x;
-            }
-        }
-
-        return width;
+        return empty(true, true);
     }
 
     /**
@@ -890,15 +3688,7 @@ public class AbstractPixselMap {
      * @see #emptyRight()
      */
     public int emptyTop() {
-        if (isEmpty()) return 0;
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (getPixsel(x, y)) return y;
-            }
-        }
-
-        return height;
+        return empty(false, false);
     }
 
     /**
@@ -909,14 +3699,44 @@ public class AbstractPixselMap {
      * @see #emptyRight()
      */
     public int emptyBottom() {
-        if (isEmpty()) return 0;
+        return empty(false, true);
+    }
 
-        for (int y = height - 1; y >= 0; y--) {
-            for (int x = 0; x < width; x++) {
-                if (getPixsel(x, y)) return height - 1 - y;
-            }
+    /**
+     * Возвращает количество пустых столбцов или строк с одной из сторон
+     * карты. Маски закрашенной области читаются без блокировки, если карта в
+     * это время не изменяется и маски точны.
+     * 
+     * @param columns <code>true</code> для столбцов, <code>false</code> для
+     *            строк.
+     * @param end <code>true</code> для правой или нижней стороны.
+     */
+    private int empty(boolean columns, boolean end) {
+        int v = version;
+        if ((v & 1) == 0 && !inkStale) {
+            int ret = countEmpty(columns, end);
+            if (validate(v)) return ret;
         }
 
-        return height;
+        synchronized (writeLock()) {
+            fixInk();
+            return countEmpty(columns, end);
+        }
+    }
+
+    /**
+     * Реализация {@link #empty(boolean, boolean)} без проверки версии.
+     */
+    private int countEmpty(boolean columns, boolean end) {
+        int w = width, h = height;
+        /* У карты без строк все столбцы считаются пустыми слева. */
+        if (w == 0 || h == 0) return columns && !end ? w : 0;
+
+        long[] mask = columns ? columnInk : rowInk;
+        int size = columns ? w : h;
+        int bit = mask == null ? -1 : end ? highestBit(mask)
+                        : lowestBit(mask);
+        if (bit < 0) return size;
+        return end ? size - 1 - bit : bit;
     }
 }
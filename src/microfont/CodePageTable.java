@@ -0,0 +1,239 @@
+package microfont;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.UnmappableCharacterException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Таблицы преобразования кодов символов в уникод и обратно для одной
+ * кодировки.
+ * <p>
+ * Таблицы двухуровневые: старший байт кода или уникода выбирает строку из 256
+ * значений, которая заполняется при первом обращении к ней. Для однобайтных
+ * кодовых страниц используется единственная строка, то есть плотный массив
+ * <code>int[256]</code>, для двухбайтных - столько строк, сколько старших
+ * байтов встречается на самом деле. Коды длиннее двух байтов и уникоды за
+ * пределами основной плоскости преобразуются кодером без таблиц.
+ * <p>
+ * Строки заполняются тем же преобразованием, что и раньше выполнялось для
+ * каждого символа, поэтому результат не зависит от того, взят он из таблицы
+ * или вычислен. Если преобразование выбрасывает непроверяемое исключение или
+ * даёт отрицательный код, то ячейка помечается, и такое значение всегда
+ * вычисляется кодером. Таблицы общие для всех шрифтов и создаются один раз
+ * для каждой кодировки, см. {@link #forCharset(Charset)}. Класс
+ * потокобезопасен.
+ */
+class CodePageTable {
+    /** Значение ячейки таблицы для кода, которого нет в кодировке. */
+    private static final int NONE = -1;
+    /** Значение ячейки, которое вычисляется кодером без таблицы. */
+    private static final int SLOW = -2;
+    /** Таблицы уже встречавшихся кодировок. */
+    private static final ConcurrentMap<Charset, CodePageTable> tables =
+                    new ConcurrentHashMap<Charset, CodePageTable>();
+
+    private final Charset                     charset;
+    private final boolean                     encode;
+    /** Строки таблицы код - уникод по старшему байту кода. */
+    private final AtomicReferenceArray<int[]> unicodes;
+    /** Строки таблицы уникод - код по старшему байту уникода. */
+    private final AtomicReferenceArray<int[]> codes;
+
+    /**
+     * Создаёт пустые таблицы для кодировки <code>cs</code>.
+     */
+    private CodePageTable(Charset cs) {
+        charset = cs;
+        encode = cs.canEncode();
+        unicodes = new AtomicReferenceArray<int[]>(256);
+        codes = new AtomicReferenceArray<int[]>(256);
+    }
+
+    /**
+     * Возвращает таблицы для кодировки <code>cs</code>. Таблицы создаются при
+     * первом обращении и затем используются всеми шрифтами.
+     * 
+     * @throws NullPointerException если <code>cs</code> равен
+     *             <code>null</code>
+     */
+    static CodePageTable forCharset(Charset cs) {
+        CodePageTable ret = tables.get(cs);
+        if (ret != null) return ret;
+
+        ret = new CodePageTable(cs);
+        CodePageTable old = tables.putIfAbsent(cs, ret);
+        return old == null ? ret : old;
+    }
+
+    /**
+     * Возвращает кодировку таблиц.
+     */
+    Charset charset() {
+        return charset;
+    }
+
+    /**
+     * Преобразование из уникода в код символа.
+     * 
+     * @throws UnsupportedOperationException Кодировка не поддерживает
+     *             преобразований уникода в код.
+     * @throws CharacterCodingException Если символа с таким
+     *             <code>unicode</code> нет в кодировке.
+     * @see AbstractMFont#toCode(int)
+     */
+    int toCode(int unicode) throws UnsupportedOperationException,
+                    CharacterCodingException {
+        if (!encode) throw new UnsupportedOperationException();
+        if (unicode < 0 || unicode > 0xffff) return encode(unicode);
+
+        int[] row = codes.get(unicode >> 8);
+        if (row == null) row = fillCodes(unicode >> 8);
+        int ret = row[unicode & 0xff];
+        if (ret == NONE) throw new UnmappableCharacterException(1);
+        if (ret == SLOW) return encode(unicode);
+        return ret;
+    }
+
+    /**
+     * Преобразование из кода символа в уникод.
+     * 
+     * @throws CharacterCodingException Если символа с таким <code>code</code>
+     *             нет в кодировке.
+     * @see AbstractMFont#toUnicode(int)
+     */
+    int toUnicode(int code) throws CharacterCodingException {
+        if (code < 0 || code > 0xffff) return decode(code);
+
+        int[] row = unicodes.get(code >> 8);
+        if (row == null) row = fillUnicodes(code >> 8);
+        int ret = row[code & 0xff];
+        if (ret == NONE) throw new UnmappableCharacterException(1);
+        if (ret == SLOW) return decode(code);
+        return ret;
+    }
+
+    /**
+     * Заполняет строку таблицы уникод - код для старшего байта
+     * <code>high</code>.
+     */
+    private int[] fillCodes(int high) {
+        int[] row = new int[256];
+        CharsetEncoder cse = newEncoder();
+
+        for (int i = 0; i < 256; i++) {
+            try {
+                row[i] = encode(cse, (high << 8) | i);
+                if (row[i] < 0) row[i] = SLOW;
+            } catch (CharacterCodingException e) {
+                row[i] = NONE;
+            } catch (RuntimeException e) {
+                row[i] = SLOW;
+            }
+        }
+        codes.compareAndSet(high, null, row);
+        return codes.get(high);
+    }
+
+    /**
+     * Заполняет строку таблицы код - уникод для старшего байта
+     * <code>high</code>.
+     */
+    private int[] fillUnicodes(int high) {
+        int[] row = new int[256];
+        CharsetDecoder csd = newDecoder();
+
+        for (int i = 0; i < 256; i++) {
+            try {
+                row[i] = decode(csd, (high << 8) | i);
+            } catch (CharacterCodingException e) {
+                row[i] = NONE;
+            } catch (RuntimeException e) {
+                row[i] = SLOW;
+            }
+        }
+        unicodes.compareAndSet(high, null, row);
+        return unicodes.get(high);
+    }
+
+    /**
+     * Создаёт кодер, сообщающий об отсутствующих в кодировке символах.
+     */
+    private CharsetEncoder newEncoder() {
+        CharsetEncoder cse = charset.newEncoder();
+        cse.onUnmappableCharacter(CodingErrorAction.REPORT);
+        return cse;
+    }
+
+    /**
+     * Создаёт декодер, сообщающий об отсутствующих в кодировке кодах.
+     */
+    private CharsetDecoder newDecoder() {
+        CharsetDecoder csd = charset.newDecoder();
+        csd.onUnmappableCharacter(CodingErrorAction.REPORT);
+        return csd;
+    }
+
+    /**
+     * Преобразование из уникода в код кодером, без таблиц.
+     */
+    private int encode(int unicode) throws CharacterCodingException {
+        return encode(newEncoder(), unicode);
+    }
+
+    /**
+     * Преобразование из кода в уникод декодером, без таблиц.
+     */
+    private int decode(int code) throws CharacterCodingException {
+        return decode(newDecoder(), code);
+    }
+
+    /**
+     * Преобразование из уникода в код кодером <code>cse</code>. Байты кода
+     * собираются в число начиная с младшего.
+     */
+    private static int encode(CharsetEncoder cse, int unicode)
+                    throws CharacterCodingException {
+        int ret = 0;
+        CharBuffer cb = CharBuffer.wrap(Character.toChars(unicode));
+        byte[] bts = cse.encode(cb).array();
+
+        for (int i = bts.length - 1; i >= 0; i--) {
+            // byte bts[i] расширяется до int с учётом знака!!! Поэтому надо
+            // у этого значения обнулить старшие три байта.
+            ret = (ret << 8) | (bts[i] & 0xff);
+        }
+        return ret;
+    }
+
+    /**
+     * Преобразование из кода в уникод декодером <code>csd</code>. Значащие
+     * байты кода подаются на вход декодера начиная с младшего.
+     */
+    private static int decode(CharsetDecoder csd, int code)
+                    throws CharacterCodingException {
+        byte[] bts = new byte[4];
+        /*
+         * Это место доставило мне немало хлопот. А всё из-за попытки сделать
+         * CharBuffer.putInt(code), такой способ не работал.
+         */
+        int byteNum = 1;
+        for (int i = 0; i < 4; i++) {
+            bts[i] = (byte) code;
+            if (bts[i] != 0) byteNum = i + 1;
+            code >>= 8;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(bts, 0, byteNum);
+        char[] chars = csd.decode(bb).array();
+
+        return Character.codePointAt(chars, 0);
+    }
+}
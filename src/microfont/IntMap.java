@@ -0,0 +1,128 @@
+package microfont;
+
+/**
+ * Отображение <code>int</code> в <code>int</code> с открытой адресацией.
+ * <p>
+ * Ключи и значения хранятся в двух примитивных массивах, поэтому поиск не
+ * создаёт объектов. Коллизии разрешаются линейным пробированием, при удалении
+ * следующие элементы цепочки сдвигаются на освободившееся место, так что
+ * таблица не засоряется удалёнными ячейками. Таблица удваивается, когда
+ * заполнена больше чем наполовину.
+ * <p>
+ * Отображение не синхронизировано.
+ */
+class IntMap {
+    /** Значение, которое возвращается для отсутствующего ключа. */
+    static final int         MISSING      = Integer.MIN_VALUE;
+    /** Начальная ёмкость таблицы, степень двойки. */
+    private static final int MIN_CAPACITY = 16;
+
+    private int[]            keys;
+    private int[]            values;
+    private boolean[]        used;
+    private int              size;
+
+    /**
+     * Создаёт пустое отображение.
+     */
+    IntMap() {
+        clear();
+    }
+
+    /**
+     * Возвращает количество ключей.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Возвращает значение для ключа <code>key</code> или {@link #MISSING},
+     * если ключа нет.
+     */
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return MISSING;
+    }
+
+    /**
+     * Связывает ключ <code>key</code> со значением <code>value</code>.
+     */
+    void put(int key, int value) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+    }
+
+    /**
+     * Удаляет ключ <code>key</code>, если он связан со значением
+     * <code>value</code>.
+     */
+    void remove(int key, int value) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) break;
+        }
+        if (!used[i] || values[i] != value) return;
+
+        // Сдвиг следующих элементов цепочки на освободившееся место.
+        for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+            int h = hash(keys[j]) & mask;
+            if (((j - h) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        used[i] = false;
+        size--;
+    }
+
+    /**
+     * Удаляет все ключи.
+     */
+    void clear() {
+        keys = new int[MIN_CAPACITY];
+        values = new int[MIN_CAPACITY];
+        used = new boolean[MIN_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Перемешивает биты ключа, чтобы соседние ключи попадали в разные части
+     * таблицы.
+     */
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Переносит элементы в таблицу ёмкостью <code>capacity</code>.
+     */
+    private void rehash(int capacity) {
+        int[] k = keys, v = values;
+        boolean[] u = used;
+
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        size = 0;
+        for (int i = 0; i < k.length; i++) {
+            if (u[i]) put(k[i], v[i]);
+        }
+    }
+}
@@ -228,21 +228,23 @@ public class MFont extends AbstractMFont implements Metrics {
     }
 
     @Override
-    public void setWidth(int w) {
+    public boolean setWidth(int w, MFontProgress progress) {
         synchronized (getLock()) {
-            super.setWidth(w);
+            if (!super.setWidth(w, progress)) return false;
 
             setMetric(METRIC_LEFT, getMetric(METRIC_LEFT));
             setMetric(METRIC_RIGHT, getMetric(METRIC_RIGHT));
+            return true;
         }
     }
 
     @Override
-    public void setHeight(int h) {
+    public boolean setHeight(int h, MFontProgress progress) {
         synchronized (getLock()) {
-            super.setHeight(h);
+            if (!super.setHeight(h, progress)) return false;
 
             setMetric(METRIC_BASELINE, getMetric(METRIC_BASELINE));
+            return true;
         }
     }
 
@@ -782,6 +784,48 @@ public class MFont extends AbstractMFont implements Metrics {
         }
     }
 
+    /**
+     * Отражает символы с индексами от <code>first</code> до <code>last</code>
+     * включительно относительно вертикальной оси. Каждый символ выпускает одно
+     * сообщение об изменении пикселей.
+     * 
+     * @param first Индекс первого символа.
+     * @param last Индекс последнего символа.
+     * @see PixselMap#reflectVerticale()
+     * @see #reflectHorizontale(int, int)
+     */
+    public void reflectVerticale(int first, int last) {
+        synchronized (getLock()) {
+            if (first < 0) first = 0;
+            if (last >= length()) last = length() - 1;
+
+            for (int i = first; i <= last; i++) {
+                symbolByIndex(i).reflectVerticale();
+            }
+        }
+    }
+
+    /**
+     * Отражает символы с индексами от <code>first</code> до <code>last</code>
+     * включительно относительно горизонтальной оси. Каждый символ выпускает
+     * одно сообщение об изменении пикселей.
+     * 
+     * @param first Индекс первого символа.
+     * @param last Индекс последнего символа.
+     * @see PixselMap#reflectHorizontale()
+     * @see #reflectVerticale(int, int)
+     */
+    public void reflectHorizontale(int first, int last) {
+        synchronized (getLock()) {
+            if (first < 0) first = 0;
+            if (last >= length()) last = length() - 1;
+
+            for (int i = first; i <= last; i++) {
+                symbolByIndex(i).reflectHorizontale();
+            }
+        }
+    }
+
     /**
      * Выпускает сообщение об изменении актуальности метрик шрифта.
      * 
@@ -0,0 +1,16 @@
+package microfont;
+
+/**
+ * Получатель сведений о ходе длительной операции над всеми символами шрифта,
+ * например {@link AbstractMFont#setWidth(int, MFontProgress)}. Вызывается в
+ * потоке, начавшем операцию.
+ */
+public interface MFontProgress {
+    /**
+     * Сообщает о ходе операции.
+     * 
+     * @param percent Выполненная часть операции в процентах.
+     * @return <code>false</code> чтобы отменить операцию.
+     */
+    public boolean progress(int percent);
+}
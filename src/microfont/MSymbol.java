@@ -25,7 +25,12 @@ import java.util.logging.Level;
  * значения возможно методом {@link #getUnicode()}. Это свойство может быть
  * неактуальным, что можно проверить при помощи {@link #isUnicode()}.
  * </ol>
+ * 
+ * <h3>Сжатие.</h3>
  * <p>
+ * Пиксели символов шрифта, к которым давно не обращались, хранятся в сжатом
+ * виде и распаковываются при первом обращении. Сколько символов шрифта
+ * остаётся распакованными, определяет {@link SymbolCache}.
  */
 public class MSymbol extends PixselMap {
     /** Шрифт, к которому принадлежит символ. */
@@ -36,6 +41,12 @@ public class MSymbol extends PixselMap {
     private int                unicode;
     /** Был ли установлен код символа. */
     private boolean            hasUnicode;
+    /** Соседи символа в очереди {@linkplain SymbolCache кэша} шрифта. */
+    MSymbol                    older, newer;
+    /** Символ находится в очереди кэша шрифта. */
+    boolean                    cached;
+    /** Размер символа, учтённый кэшем шрифта. */
+    int                        cachedBytes;
 
     /**
      * Название свойства кода символа.
@@ -86,12 +97,13 @@ public class MSymbol extends PixselMap {
     /**
      * Создание копии символа.<br>
      * Важно знать, что <b>списки получателей сообщений не копируются</b>.
+     * Пиксели копируются только при первом изменении одного из символов.
      * 
      * @see #copy(MSymbol)
      */
     @Override
     public MSymbol clone() {
-        MSymbol ret = new MSymbol(getCode(), getWidth(), getHeight());
+        MSymbol ret = new MSymbol(getCode(), 0, 0);
         try {
             ret.copy(this);
         } catch (DisallowOperationException e) {
@@ -114,6 +126,24 @@ public class MSymbol extends PixselMap {
         return owner.getLock();
     }
 
+    /**
+     * Сообщает о распаковке символа {@linkplain SymbolCache кэшу} шрифта, если
+     * символ принадлежит шрифту.
+     */
+    @Override
+    void unpacked(int length) {
+        if (owner != null) owner.getSymbolCache().unpacked(this, length);
+    }
+
+    /**
+     * Изменение символа увеличивает и номер редакции шрифта, к которому
+     * принадлежит символ.
+     */
+    @Override
+    void revised() {
+        if (owner != null) owner.nextRevision();
+    }
+
     /**
      * Результат проверки допустимости высоты зависит от того, принадлежит ли
      * символ шрифту или нет.<br>
@@ -153,10 +183,13 @@ public class MSymbol extends PixselMap {
     }
 
     /**
-     * Метод изменяет код символа. Никаких других действий не производится.
+     * Метод изменяет код символа. Кроме увеличения номера редакции никаких
+     * других действий не производится.
      */
     void changeCode(int c) {
+        if (code == c) return;
         code = c;
+        nextRevision();
     }
 
     /**
@@ -212,17 +245,22 @@ public class MSymbol extends PixselMap {
         synchronized (writeLock()) {
             if (owner != null && owner.isUnicode())
                 throw new DisallowOperationException();
+            if (!hasUnicode) return;
             hasUnicode = false;
+            nextRevision();
             firePropertyChange(PROPERTY_HAS_UNICODE, true, false);
         }
     }
 
     /**
-     * Метод изменяет уникод символа. Никаких других действий не производится.
+     * Метод изменяет уникод символа. Кроме увеличения номера редакции никаких
+     * других действий не производится.
      */
     void changeUnicode(int u) {
+        if (unicode == u && hasUnicode) return;
         unicode = u;
         hasUnicode = true;
+        nextRevision();
     }
 
     /**
@@ -0,0 +1,99 @@
+package microfont;
+
+/**
+ * Сжатие массива байтов методом PackBits. Сжатые данные состоят из блоков,
+ * каждый из которых начинается с байта заголовка <b>n</b>:
+ * <ul>
+ * <li>от 0 до 127 - за заголовком следуют <code>n + 1</code> байтов без
+ * изменений;
+ * <li>от -1 до -127 - следующий за заголовком байт повторяется
+ * <code>1 - n</code> раз;
+ * <li>-128 - блок не содержит данных и пропускается.
+ * </ul>
+ * Метод хорошо подходит для карт пикселей, в которых много пустых строк и
+ * длинных одинаковых участков.
+ */
+final class PackBits {
+    /** Наибольшая длина блока. */
+    private static final int MAX_RUN = 128;
+
+    private PackBits() {
+    }
+
+    /**
+     * Возвращает сжатую копию массива <code>src</code>.
+     * 
+     * @param src Исходный массив.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
+     * @see #decode(byte[], int)
+     */
+    static byte[] encode(byte[] src) {
+        int max = src.length + (src.length + MAX_RUN - 1) / MAX_RUN;
+        byte[] buf = new byte[max];
+        int n = 0;
+        int i = 0;
+
+        while (i < src.length) {
+            /* Длина повтора, начинающегося с позиции i. */
+            int run = 1;
+            while (i + run < src.length && run < MAX_RUN
+                            && src[i + run] == src[i])
+                run++;
+
+            if (run > 2) {
+                buf[n++] = (byte) (1 - run);
+                buf[n++] = src[i];
+                i += run;
+                continue;
+            }
+
+            /* Копируемый блок заканчивается перед повтором из трёх байтов. */
+            int start = i;
+            while (i < src.length && i - start < MAX_RUN) {
+                if (i + 2 < src.length && src[i] == src[i + 1]
+                                && src[i] == src[i + 2])
+                    break;
+                i++;
+            }
+            buf[n++] = (byte) (i - start - 1);
+            System.arraycopy(src, start, buf, n, i - start);
+            n += i - start;
+        }
+
+        byte[] ret = new byte[n];
+        System.arraycopy(buf, 0, ret, 0, n);
+        return ret;
+    }
+
+    /**
+     * Распаковывает массив, сжатый {@link #encode(byte[])}.
+     * 
+     * @param src Сжатые данные.
+     * @param length Длина исходного массива.
+     * @return Массив длиной <code>length</code>. Если сжатых данных не
+     *         хватает, то остаток массива заполнен нулями.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
+     */
+    static byte[] decode(byte[] src, int length) {
+        byte[] ret = new byte[length];
+        int n = 0;
+        int i = 0;
+
+        while (i < src.length && n < length) {
+            int h = src[i++];
+            if (h >= 0) {
+                int len = Math.min(h + 1, Math.min(length - n, src.length - i));
+                System.arraycopy(src, i, ret, n, len);
+                i += h + 1;
+                n += len;
+            } else if (h != -MAX_RUN && i < src.length) {
+                byte v = src[i++];
+                for (int k = 1 - h; k > 0 && n < length; k--)
+                    ret[n++] = v;
+            }
+        }
+        return ret;
+    }
+}
@@ -2,8 +2,11 @@
 package microfont;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import microfont.events.PixselMapEvent;
 import microfont.events.PixselMapListener;
@@ -26,6 +29,10 @@ import utils.event.ListenerChain;
  * {@link PropertyChangeListener} . Это сообщение генерируется при изменении
  * размеров карты.
  * </ul>
+ * <p>
+ * Множество мелких изменений, например, рисование линии по пикселям, можно
+ * объединить в одно сообщение <code>PixselMapEvent</code>. Для этого изменения
+ * помещаются между вызовами {@link #beginUpdate()} и {@link #endUpdate()}.
  * 
  * <h3>Операции с картой.</h3>
  * <p>
@@ -45,6 +52,14 @@ import utils.event.ListenerChain;
  * <li><b>Изменение фрагмента</b>. {@link #set(int, int, int, int, boolean)}
  * изменяет все пиксели указанного фрагмента. {@link #neg(int, int, int, int)}
  * производит инверсию пикселей фрагмента.
+ * <li><b>Рисование</b>. {@link #line(int, int, int, int, int)},
+ * {@link #rectangle(int, int, int, int, boolean, int)},
+ * {@link #ellipse(int, int, int, int, boolean, int)} и
+ * {@link #stamp(int, int, AbstractPixselMap, int)} закрашивают, стирают или
+ * инвертируют пиксели фигуры.
+ * <li><b>Заливка</b>. Метод {@link #fill(int, int, boolean, boolean)}
+ * изменяет связную область пикселей одного состояния. Найти все такие области
+ * позволяет {@link #label(int[], boolean)}.
  * </ul>
  * <li>Операции с двумя картами. Эти операции используют вторую карту в качестве
  * штампа. Что бы получить фрагмент карты используйте
@@ -79,6 +94,13 @@ public class PixselMap extends AbstractPixselMap {
      * Операция исключения в {@link #overlay(int, int, AbstractPixselMap, int)}.
      */
     public static final int    OVERLAY_XOR   = 3;
+
+    /** Рисование закрашивает пиксели. */
+    public static final int    DRAW_SET      = 0;
+    /** Рисование стирает пиксели. */
+    public static final int    DRAW_CLEAR    = 1;
+    /** Рисование инвертирует пиксели. */
+    public static final int    DRAW_NEG      = 2;
     /**
      * Название свойства size.
      * 
@@ -89,6 +111,23 @@ public class PixselMap extends AbstractPixselMap {
     /** Хранилище получателей сообщений. */
     protected ListenerChain    listeners     = new ListenerChain();
 
+    /** Глубина вложенности {@link #beginUpdate()}. */
+    private int                updateLevel;
+    /** Поток, в котором выполняется пакетное изменение. */
+    private Thread             updateThread;
+    /** Были ли изменения пикселей за время пакетного изменения. */
+    private boolean            updateChange;
+    /** Границы изменений, накопленных за время пакетного изменения. */
+    private int                updateLeft, updateRight, updateTop,
+                    updateBottom;
+    /** Маска плиток, изменившихся за время пакетного изменения. */
+    private long[]             updateTiles;
+    /**
+     * Шаг строки, для которого собрана маска плиток, или -1, если шаг
+     * менялся за время пакетного изменения.
+     */
+    private int                updateStride;
+
     /**
      * Конструктор для создания карты с заданными размерами. Все пиксели
      * сброшены в <code>false</code>.
@@ -122,13 +161,14 @@ public class PixselMap extends AbstractPixselMap {
     }
 
     /**
-     * Получение копии карты.
+     * Получение копии карты. Копия использует массив пикселей совместно с
+     * этой картой, пока одна из них не будет изменена.
      * 
      * @see #copy(AbstractPixselMap)
      */
     @Override
     public PixselMap clone() {
-        PixselMap ret = new PixselMap(getWidth(), getHeight());
+        PixselMap ret = new PixselMap();
         try {
             ret.copy(this);
         } catch (DisallowOperationException e) {
@@ -268,13 +308,67 @@ public class PixselMap extends AbstractPixselMap {
      * функцией {@link #addPixselMapListener(PixselMapListener)}.
      */
     protected void firePixselEvent() {
-        PixselMapEvent change;
-        Object[] listenerArray;
+        if (!hasChange()) return;
+
+        /*
+         * Внутри пакетного изменения флаг изменений не сбрасывается, и его
+         * границы сами накапливают изменения пакета до endUpdate().
+         */
+        if (updateLevel > 0 && updateThread == Thread.currentThread()) return;
+
+        firePixselEvent(new PixselMapEvent(this, left, top, right - left + 1,
+                        bottom - top + 1, getChangedTiles()));
+
+        /* Чужое изменение не должно попасть в сообщение пакета. */
+        if (updateLevel > 0) super.cleanChange();
+    }
+
+    /**
+     * Сбрасывает внутренний флаг изменений. Внутри пакетного изменения в
+     * потоке пакета ничего не делает: изменения копятся во флаге до
+     * {@link #endUpdate()}. Если изменять карту берётся другой поток, то
+     * накопленное переносится в границы пакета.
+     */
+    @Override
+    protected void cleanChange() {
+        if (updateLevel > 0) {
+            if (updateThread == Thread.currentThread()) return;
+            saveUpdate();
+        }
+        super.cleanChange();
+    }
 
+    /**
+     * Переносит накопленные флагом изменения в границы пакетного изменения.
+     */
+    private void saveUpdate() {
         if (!hasChange()) return;
 
-        change = new PixselMapEvent(this, left, top, right - left + 1, bottom
-                        - top + 1);
+        if (!updateChange) {
+            updateLeft = left;
+            updateRight = right;
+            updateTop = top;
+            updateBottom = bottom;
+            updateChange = true;
+            updateStride = getStride();
+            if (updateTiles != null) Arrays.fill(updateTiles, 0);
+        } else {
+            if (left < updateLeft) updateLeft = left;
+            if (right > updateRight) updateRight = right;
+            if (top < updateTop) updateTop = top;
+            if (bottom > updateBottom) updateBottom = bottom;
+            if (updateStride != getStride()) updateStride = -1;
+        }
+        if (updateStride >= 0) updateTiles = mergeChangedTiles(updateTiles);
+    }
+
+    /**
+     * Рассылает сообщение об изменении пикселей получателям.
+     * 
+     * @param change Сообщение.
+     */
+    private void firePixselEvent(PixselMapEvent change) {
+        Object[] listenerArray;
 
         listenerArray = listeners.getListenerList();
         for (int i = 0; i < listenerArray.length; i += 2) {
@@ -284,6 +378,81 @@ public class PixselMap extends AbstractPixselMap {
         }
     }
 
+    /**
+     * Начинает пакетное изменение карты. До парного вызова
+     * {@link #endUpdate()} изменения пикселей, сделанные в этом потоке, не
+     * генерируют сообщений {@link PixselMapEvent}. Вместо этого их границы
+     * объединяются, и по завершении пакета выпускается одно сообщение.
+     * Изменения из других потоков сообщаются как обычно.
+     * <p>
+     * Вызовы могут быть вложенными, сообщение выпускается при завершении
+     * внешнего пакета. Сообщения об изменении размеров карты не
+     * откладываются.
+     * <p>
+     * Каждое изменение внутри пакета по-прежнему меняет
+     * {@linkplain #getVersion() версию} карты, поэтому другие потоки читают
+     * её без блокировки. Откладывается только уточнение границ закрашенной
+     * области после стирания пикселей: до {@link #endUpdate()}
+     * {@link #emptyLeft()} и подобные методы читают их с блокировкой.
+     * 
+     * @throws IllegalStateException если пакетное изменение уже начато в
+     *             другом потоке.
+     * @see #endUpdate()
+     */
+    public void beginUpdate() {
+        synchronized (writeLock()) {
+            Thread current = Thread.currentThread();
+            if (updateLevel > 0 && updateThread != current)
+                throw new IllegalStateException("update in other thread");
+            if (updateLevel++ == 0) {
+                deferInk(true);
+                super.cleanChange();
+                updateThread = current;
+                updateChange = false;
+            }
+        }
+    }
+
+    /**
+     * Завершает пакетное изменение карты, начатое {@link #beginUpdate()}.
+     * Если завершается внешний пакет и пиксели менялись, то выпускается одно
+     * сообщение {@link PixselMapEvent}, охватывающее все изменения пакета.
+     * 
+     * @throws IllegalStateException если пакетное изменение не было начато в
+     *             этом потоке.
+     * @see #beginUpdate()
+     */
+    public void endUpdate() {
+        synchronized (writeLock()) {
+            if (updateLevel == 0 || updateThread != Thread.currentThread())
+                throw new IllegalStateException("no update in this thread");
+            if (--updateLevel > 0) return;
+
+            try {
+                saveUpdate();
+            } finally {
+                super.cleanChange();
+                updateThread = null;
+                deferInk(false);
+            }
+            if (!updateChange) return;
+            updateChange = false;
+
+            /* Карта могла уменьшиться за время пакета. */
+            int r = updateRight < getWidth() ? updateRight : getWidth() - 1;
+            int b = updateBottom < getHeight() ? updateBottom : getHeight() - 1;
+            if (r < updateLeft || b < updateTop) return;
+
+            Rectangle rect = new Rectangle(updateLeft, updateTop, r
+                            - updateLeft + 1, b - updateTop + 1);
+            Rectangle[] tiles = null;
+            if (updateStride >= 0 && updateTiles != null)
+                tiles = tileRects(updateTiles, updateStride, rect);
+            firePixselEvent(new PixselMapEvent(this, rect.x, rect.y,
+                            rect.width, rect.height, tiles));
+        }
+    }
+
     /**
      * Копирование из карты <code>src</code>. Кроме массива пикселей изменяются
      * переменные {@link #width}, {@link #height}.
@@ -415,6 +584,24 @@ public class PixselMap extends AbstractPixselMap {
         }
     }
 
+    /**
+     * Метод копирует пиксели, упакованные в <b>byte</b>, из буфера во
+     * внутренний масссив. Формат такой же, как у {@link #setArray(byte[])}.
+     * Позиция буфера сдвигается на число прочитанных байтов, поэтому из одного
+     * буфера можно последовательно загрузить несколько карт.
+     * 
+     * @param src Буфер с пикселями.
+     * @throws NullPointerException Если {@code src} равен {@code null}.
+     * @see #getBytes(ByteBuffer)
+     */
+    public void readBytes(ByteBuffer src) throws NullPointerException {
+        synchronized (writeLock()) {
+            cleanChange();
+            setBytes(src);
+            firePixselEvent();
+        }
+    }
+
     /**
      * Сдвигает пиксели карты к указанном направлении. Регион, противоположный
      * направлению сдвига, становится пустым.
@@ -429,54 +616,31 @@ public class PixselMap extends AbstractPixselMap {
      * @see #shiftUp()
      */
     public void shift(int dir, int step) {
-        int x, y, w, h;
-        int iterDir;
-        PixselIterator dst, src;
-
         if (isEmpty()) return;
 
+        /* Отрицательный шаг не сдвигает карту. */
+        if (step < 0) step = 0;
+
         synchronized (writeLock()) {
             cleanChange();
 
-            x = 0;
-            y = 0;
-            w = getWidth();
-            h = getHeight();
-
             switch (dir) {
             case SHIFT_DOWN:
-                iterDir = PixselIterator.DIR_RIGHT_BOTTOM;
-                h -= step;
+                shiftRows(step);
                 break;
             case SHIFT_LEFT:
-                iterDir = PixselIterator.DIR_TOP_LEFT;
-                x = step;
-                w -= step;
+                shiftColumns(-step);
                 break;
             case SHIFT_RIGHT:
-                iterDir = PixselIterator.DIR_TOP_RIGHT;
-                w -= step;
+                shiftColumns(step);
                 break;
             case SHIFT_UP:
-                iterDir = PixselIterator.DIR_RIGHT_TOP;
-                y = step;
-                h -= step;
+                shiftRows(-step);
                 break;
             default:
                 throw new IllegalArgumentException();
             }
 
-            dst = getIterator(0, 0, getWidth(), getHeight(), iterDir);
-            src = getIterator(x, y, w, h, iterDir);
-
-            while (src.hasNext()) {
-                dst.setNext(src.getNext());
-            }
-
-            while (dst.hasNext()) {
-                dst.setNext(false);
-            }
-
             firePixselEvent();
         }
     }
@@ -527,25 +691,9 @@ public class PixselMap extends AbstractPixselMap {
      * @see #reflectHorizontale()
      */
     public void reflectVerticale() {
-        int w, h;
-        boolean end, start;
-
         synchronized (writeLock()) {
             cleanChange();
-
-            w = getWidth();
-            h = getHeight();
-
-            for (int y = 0; y < h; y++) {
-                for (int x = 0; x < w / 2; x++) {
-                    start = getPixsel(x, y);
-                    end = getPixsel(w - 1 - x, y);
-
-                    setPixsel(x, y, end);
-                    setPixsel(w - 1 - x, y, start);
-                }
-            }
-
+            reflectColumns();
             firePixselEvent();
         }
     }
@@ -556,25 +704,9 @@ public class PixselMap extends AbstractPixselMap {
      * @see #reflectVerticale()
      */
     public void reflectHorizontale() {
-        int w, h;
-        boolean end, start;
-
         synchronized (writeLock()) {
             cleanChange();
-
-            w = getWidth();
-            h = getHeight();
-
-            for (int y = 0; y < h / 2; y++) {
-                for (int x = 0; x < w; x++) {
-                    start = getPixsel(x, y);
-                    end = getPixsel(x, h - 1 - y);
-
-                    setPixsel(x, y, end);
-                    setPixsel(x, h - 1 - y, start);
-                }
-            }
-
+            reflectRows();
             firePixselEvent();
         }
     }
@@ -591,8 +723,6 @@ public class PixselMap extends AbstractPixselMap {
      * @see #addColumns(int, int)
      */
     public void changeWidth(int pos, int num) throws DisallowOperationException {
-        PixselMap tMap;
-        PixselIterator dst, src;
         int w, h;
 
         synchronized (writeLock()) {
@@ -628,33 +758,12 @@ public class PixselMap extends AbstractPixselMap {
                 if (pos - num > w) num = pos - w;
             }
 
-            if (!isValidWidth(w + num))
-                throw new DisallowOperationException("change width "
-                                + (w + num));
-
-            tMap = new PixselMap(w + num, h);
-
-            dst = tMap.getIterator(0, 0, w + num, h,
-                            PixselIterator.DIR_TOP_LEFT);
-            src = getIterator(0, 0, w, h, PixselIterator.DIR_TOP_LEFT);
-
-            while (src.getX() < pos) {
-                dst.setNext(src.getNext());
-            }
-
-            if (num > 0) {
-                dst = tMap.getIterator(pos + num, 0, w - pos + num, h,
-                                PixselIterator.DIR_TOP_LEFT);
-            } else {
-                src = getIterator(pos - num, 0, w - pos + num, h,
-                                PixselIterator.DIR_TOP_LEFT);
-            }
-
-            while (src.hasNext()) {
-                dst.setNext(src.getNext());
-            }
-
-            copy(tMap);
+            Dimension oldValue = new Dimension(w, h);
+            cleanChange();
+            changeColumns(pos, num);
+            firePropertyChange(PROPERTY_SIZE, oldValue, new Dimension(
+                            getWidth(), h));
+            firePixselEvent();
         }
     }
 
@@ -671,8 +780,6 @@ public class PixselMap extends AbstractPixselMap {
      */
     public void changeHeight(int pos, int num)
                     throws DisallowOperationException {
-        PixselMap tMap;
-        PixselIterator dst, src;
         int w, h;
 
         synchronized (writeLock()) {
@@ -708,33 +815,12 @@ public class PixselMap extends AbstractPixselMap {
                 if (pos - num > h) num = pos - h;
             }
 
-            if (!isValidHeight(h + num))
-                throw new DisallowOperationException("change height"
-                                + (h + num));
-
-            tMap = new PixselMap(w, h + num);
-
-            dst = tMap.getIterator(0, 0, w, h + num,
-                            PixselIterator.DIR_LEFT_TOP);
-            src = getIterator(0, 0, w, h, PixselIterator.DIR_LEFT_TOP);
-
-            while (src.getY() < pos) {
-                dst.setNext(src.getNext());
-            }
-
-            if (num > 0) {
-                dst = tMap.getIterator(0, pos + num, w, h - pos + num,
-                                PixselIterator.DIR_LEFT_TOP);
-            } else {
-                src = getIterator(0, pos - num, w, h - pos + num,
-                                PixselIterator.DIR_LEFT_TOP);
-            }
-
-            while (src.hasNext()) {
-                dst.setNext(src.getNext());
-            }
-
-            copy(tMap);
+            Dimension oldValue = new Dimension(w, h);
+            cleanChange();
+            changeRows(pos, num);
+            firePropertyChange(PROPERTY_SIZE, oldValue, new Dimension(w,
+                            getHeight()));
+            firePixselEvent();
         }
     }
 
@@ -923,10 +1009,8 @@ public class PixselMap extends AbstractPixselMap {
      *            отрицательному - против.
      */
     public void rotate(int step) {
-        AbstractPixselMap apm;
-        boolean resized;
-        int w, h;
-        PixselIterator spi, dpi;
+        long[] buf;
+        int w, h, nw, nh;
 
         if (isEmpty()) return;
         step %= 4;
@@ -936,43 +1020,26 @@ public class PixselMap extends AbstractPixselMap {
         synchronized (writeLock()) {
             w = getWidth();
             h = getHeight();
-
-            if (step != 2) apm = new AbstractPixselMap(h, w);
-            else apm = new AbstractPixselMap(w, h);
-
-            // Подготовка итераторов в зависимости от поворота.
-            spi = getIterator(0, 0, w, h, PixselIterator.DIR_LEFT_TOP);
-            resized = isValidHeight(w) && isValidWidth(h);
-            switch (step) {
-            case 1:
-                dpi = apm.getIterator(0, 0, apm.getWidth(), apm.getHeight(),
-                                PixselIterator.DIR_TOP_RIGHT);
-                break;
-            case 2:
-                dpi = apm.getIterator(0, 0, apm.getWidth(), apm.getHeight(),
-                                PixselIterator.DIR_RIGHT_BOTTOM);
-                resized = true;
-                break;
-            default: // i.e step == 3
-                dpi = apm.getIterator(0, 0, apm.getWidth(), apm.getHeight(),
-                                PixselIterator.DIR_BOTTOM_LEFT);
-            }
-
-            // Заполнение вспомогательной карты.
-            while (spi.hasNext()) {
-                dpi.setNext(spi.getNext());
-            }
+            nw = step == 2 ? w : h;
+            nh = step == 2 ? h : w;
+            buf = rotated(step);
 
             // Изменения размера разрешены или не требуются.
-            if (resized) {
+            if (step == 2 || (isValidHeight(w) && isValidWidth(h))) {
+                Dimension oldValue = new Dimension(w, h);
+                cleanChange();
                 try {
-                    copy(apm);
+                    changeSize(nw, nh);
                 } catch (DisallowOperationException e) {
                     // Исключение никогда не может возникнуть исходя из условий
                     // блока.
-                    AbstractMFont.logger().log(Level.SEVERE, "copy in rotate",
-                                    e);
+                    AbstractMFont.logger().log(Level.SEVERE,
+                                    "resize in rotate", e);
                 }
+                blit(0, 0, buf, nw, nh, OVERLAY_PLACE);
+                firePropertyChange(PROPERTY_SIZE, oldValue, new Dimension(nw,
+                                nh));
+                firePixselEvent();
                 return;
             }
 
@@ -982,7 +1049,9 @@ public class PixselMap extends AbstractPixselMap {
              * можно улучшить, попробовав подгонять координаты вставки так, что
              * бы пропадало наименьшее число закрашенных пикселей.
              */
-            place((w - h) / 2, (h - w) / 2, apm);
+            cleanChange();
+            blit((w - h) / 2, (h - w) / 2, buf, nw, nh, OVERLAY_PLACE);
+            firePixselEvent();
         }
     }
 
@@ -999,16 +1068,11 @@ public class PixselMap extends AbstractPixselMap {
      */
     public AbstractPixselMap getRectangle(int x, int y, int w, int h) {
         PixselIterator spi = getIterator(x, y, w, h,
-                        PixselIterator.DIR_LEFT_BOTTOM);
+                        PixselIterator.DIR_LEFT_TOP);
         AbstractPixselMap apm = new AbstractPixselMap(spi.getWidth(),
                         spi.getHeight());
-        PixselIterator dpi = apm.getIterator(0, 0, spi.getWidth(),
-                        spi.getHeight(), PixselIterator.DIR_LEFT_BOTTOM);
-
-        while (spi.hasNext() && dpi.hasNext()) {
-            dpi.setNext(spi.getNext());
-        }
 
+        apm.blit(-spi.getX(), -spi.getY(), this, OVERLAY_PLACE);
         return apm;
     }
 
@@ -1024,18 +1088,7 @@ public class PixselMap extends AbstractPixselMap {
      * @see #neg(int, int, int, int)
      */
     public void set(int x, int y, int w, int h, boolean state) {
-        PixselIterator pi = getIterator(x, y, w, h,
-                        PixselIterator.DIR_LEFT_BOTTOM);
-
-        synchronized (writeLock()) {
-            cleanChange();
-
-            while (pi.hasNext()) {
-                pi.setNext(state);
-            }
-
-            firePixselEvent();
-        }
+        rectangle(x, y, w, h, true, state ? DRAW_SET : DRAW_CLEAR);
     }
 
     /**
@@ -1048,25 +1101,111 @@ public class PixselMap extends AbstractPixselMap {
      * @see #set(int, int, int, int, boolean)
      */
     public void neg(int x, int y, int w, int h) {
-        PixselIterator spi = getIterator(x, y, w, h,
-                        PixselIterator.DIR_LEFT_BOTTOM);
-        PixselIterator dpi = getIterator(x, y, w, h,
-                        PixselIterator.DIR_LEFT_BOTTOM);
+        rectangle(x, y, w, h, true, DRAW_NEG);
+    }
 
+    /**
+     * Рисует отрезок прямой от пикселя <code>x1</code>:<code>y1</code> до
+     * пикселя <code>x2</code>:<code>y2</code> включительно. Часть отрезка,
+     * выходящая за границы карты, отбрасывается.
+     * 
+     * @param mode Способ рисования: {@link #DRAW_SET}, {@link #DRAW_CLEAR} или
+     *            {@link #DRAW_NEG}.
+     */
+    public void line(int x1, int y1, int x2, int y2, int mode) {
         synchronized (writeLock()) {
             cleanChange();
+            changeLine(x1, y1, x2, y2, mode);
+            firePixselEvent();
+        }
+    }
 
-            while (spi.hasNext()) {
-                dpi.setNext(!spi.getNext());
-            }
+    /**
+     * Рисует прямоугольник.
+     * 
+     * @param x Начальная позиция прямоугольника по горизонтали.
+     * @param y Начальная позиция прямоугольника по вертикали.
+     * @param w Ширина прямоугольника.
+     * @param h Высота прямоугольника.
+     * @param filled <code>true</code> для закрашенного прямоугольника,
+     *            <code>false</code> для рамки.
+     * @param mode Способ рисования: {@link #DRAW_SET}, {@link #DRAW_CLEAR} или
+     *            {@link #DRAW_NEG}.
+     * @see #set(int, int, int, int, boolean)
+     * @see #neg(int, int, int, int)
+     */
+    public void rectangle(int x, int y, int w, int h, boolean filled,
+                    int mode) {
+        synchronized (writeLock()) {
+            cleanChange();
+            changeRectangle(x, y, w, h, filled, mode);
+            firePixselEvent();
+        }
+    }
+
+    /**
+     * Рисует эллипс, вписанный в прямоугольник.
+     * 
+     * @param x Начальная позиция прямоугольника по горизонтали.
+     * @param y Начальная позиция прямоугольника по вертикали.
+     * @param w Ширина прямоугольника.
+     * @param h Высота прямоугольника.
+     * @param filled <code>true</code> для закрашенного эллипса,
+     *            <code>false</code> для рамки.
+     * @param mode Способ рисования: {@link #DRAW_SET}, {@link #DRAW_CLEAR} или
+     *            {@link #DRAW_NEG}.
+     */
+    public void ellipse(int x, int y, int w, int h, boolean filled, int mode) {
+        synchronized (writeLock()) {
+            cleanChange();
+            changeEllipse(x, y, w, h, filled, mode);
+            firePixselEvent();
+        }
+    }
 
+    /**
+     * Штамп кистью <code>brush</code>. В отличие от
+     * {@link #overlay(int, int, AbstractPixselMap, int)} изменяются только
+     * пиксели под закрашенными пикселями кисти.
+     * 
+     * @param x Начальная позиция по горизонтали.
+     * @param y Начальная позиция по вертикали.
+     * @param brush Кисть.
+     * @param mode Способ рисования: {@link #DRAW_SET}, {@link #DRAW_CLEAR} или
+     *            {@link #DRAW_NEG}.
+     */
+    public void stamp(int x, int y, AbstractPixselMap brush, int mode) {
+        synchronized (writeLock()) {
+            cleanChange();
+            changeBrush(x, y, brush, mode);
+            firePixselEvent();
+        }
+    }
+
+    /**
+     * Заливка области пикселей, связанной с пикселем <code>x</code>:
+     * <code>y</code> и имеющей то же состояние, что и он. Все пиксели области
+     * устанавливаются в состояние <code>state</code>, об изменении выпускается
+     * одно сообщение.
+     * 
+     * @param x Горизонтальная позиция начального пикселя.
+     * @param y Вертикальная позиция начального пикселя.
+     * @param state Устанавливаемое состояние пикселей.
+     * @param diagonal <code>true</code> если пиксели, соседние по диагонали,
+     *            считаются связанными.
+     * @see #label(int[], boolean)
+     */
+    public void fill(int x, int y, boolean state, boolean diagonal) {
+        synchronized (writeLock()) {
+            cleanChange();
+            fillArea(x, y, state, diagonal);
             firePixselEvent();
         }
     }
 
     /**
      * Наложение карты <code>apm</code>. Тип наложения зависит от параметра
-     * <code>op</code>.
+     * <code>op</code>. Часть штампа, выходящая за границы карты, отбрасывается.
      * 
      * @param x начальная позиция по горизонтали.
      * @param y начальная позиция по вертикали.
@@ -1089,65 +1228,9 @@ public class PixselMap extends AbstractPixselMap {
      * @see #xor(int, int, AbstractPixselMap)
      */
     public void overlay(int x, int y, AbstractPixselMap apm, int op) {
-        int srcX, srcY, w, h;
-
-        w = apm.getWidth();
-        h = apm.getHeight();
-        srcX = 0;
-        srcY = 0;
-
-        if (x >= getWidth() || y >= getHeight()) return;
-
-        if (x < 0) {
-            srcX = -x;
-            w += x;
-            x = 0;
-        }
-
-        if (w >= getWidth()) w = getWidth() - 1;
-        if (w < 0) return;
-
-        if (y < 0) {
-            srcY = -y;
-            h += y;
-            y = 0;
-        }
-
-        if (h >= getHeight()) h = getHeight() - 1;
-        if (h < 0) return;
-
         synchronized (writeLock()) {
             cleanChange();
-
-            PixselIterator spi = apm.getIterator(srcX, srcY, w, h,
-                            PixselIterator.DIR_LEFT_BOTTOM);
-            PixselIterator tpi = getIterator(x, y, w, h,
-                            PixselIterator.DIR_LEFT_BOTTOM);
-            PixselIterator dpi = getIterator(x, y, w, h,
-                            PixselIterator.DIR_LEFT_BOTTOM);
-
-            switch (op) {
-            case OVERLAY_OR:
-                while (spi.hasNext() && dpi.hasNext()) {
-                    dpi.setNext(tpi.getNext() | spi.getNext());
-                }
-                break;
-            case OVERLAY_AND:
-                while (spi.hasNext() && dpi.hasNext()) {
-                    dpi.setNext(tpi.getNext() & spi.getNext());
-                }
-                break;
-            case OVERLAY_XOR:
-                while (spi.hasNext() && dpi.hasNext()) {
-                    dpi.setNext(tpi.getNext() ^ spi.getNext());
-                }
-                break;
-            default:
-                while (spi.hasNext() && dpi.hasNext()) {
-                    dpi.setNext(spi.getNext());
-                }
-            }
-
+            blit(x, y, apm, op);
             firePixselEvent();
         }
     }
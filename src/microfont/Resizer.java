@@ -0,0 +1,256 @@
+package microfont;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Изменение размеров всех символов шрифта, используется в
+ * {@link AbstractMFont#applyWidth(MFontProgress)} и
+ * {@link AbstractMFont#applyHeight(MFontProgress)}.
+ * <p>
+ * Шрифт на время операции отсоединяет символы от себя, поэтому каждый символ
+ * синхронизируется собственным объектом и не обращается к шрифту. Символы
+ * делятся на {@link #PARTS} частей, части выполняются пулом потоков, а поток,
+ * начавший операцию, дожидается их и сообщает о ходе операции. Размеры
+ * меняются без событий, разослать их после операции - забота шрифта.
+ * <p>
+ * Операцию можно отменить, только если задан получатель сведений о её ходе.
+ * Тогда перед изменением символа сохраняется его копия, и при отмене
+ * изменённые символы восстанавливаются.
+ */
+class Resizer {
+    /** Количество частей, на которые делится работа. */
+    private static final int PARTS    = 64;
+    /** Число символов, начиная с которого используется пул потоков. */
+    static final int         PARALLEL = 256;
+
+    private final int        threads;
+
+    /**
+     * Создаёт изменение размеров с количеством потоков по числу процессоров.
+     */
+    Resizer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Создаёт изменение размеров.
+     * 
+     * @param t Количество потоков. Если меньше единицы, то используется один
+     *            поток.
+     */
+    Resizer(int t) {
+        threads = t < 1 ? 1 : t;
+    }
+
+    /**
+     * Меняет размеры символов, не принадлежащих шрифту.
+     * 
+     * @param symbols Изменяемые символы.
+     * @param w Новая ширина или <code>-1</code>, если ширина не меняется.
+     * @param h Новая высота или <code>-1</code>, если высота не меняется.
+     * @param progress Получатель сведений о ходе операции или
+     *            <code>null</code>.
+     * @return <code>false</code> если операция отменена получателем
+     *         <code>progress</code> или прерыванием потока, символы при этом
+     *         восстановлены.
+     */
+    boolean resize(MSymbol[] symbols, int w, int h, MFontProgress progress) {
+        PixselMap[] saved = null;
+        if (progress != null) saved = new PixselMap[symbols.length];
+
+        int parts = Math.min(symbols.length, PARTS);
+        boolean pooled = threads > 1 && symbols.length >= PARALLEL;
+        List<Callable<Object>> tasks = tasks(symbols, saved, parts, w, h,
+                        pooled);
+
+        if (!pooled) {
+            for (int p = 0; p < parts; p++) {
+                call(tasks.get(p));
+                // Прерывание потока отменяет операцию, только если её можно
+                // отменить. Флаг прерывания сохраняется.
+                if (!report(progress, p + 1, parts)
+                                || (saved != null && Thread.currentThread()
+                                                .isInterrupted())) {
+                    restore(symbols, saved);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        boolean interrupted = false;
+        try {
+            CompletionService<Object> done;
+            done = new ExecutorCompletionService<Object>(pool);
+            for (Callable<Object> task : tasks)
+                done.submit(task);
+            for (int p = 0; p < parts; p++) {
+                Future<Object> f;
+                try {
+                    f = done.take();
+                } catch (InterruptedException e) {
+                    // Без копий символов операцию не отменить.
+                    interrupted = true;
+                    if (saved == null) {
+                        p--;
+                        continue;
+                    }
+                    cancel(pool, symbols, saved);
+                    return false;
+                }
+                get(f);
+                if (!report(progress, p + 1, parts)) {
+                    cancel(pool, symbols, saved);
+                    return false;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * Делит символы на <code>parts</code> задач.
+     * 
+     * @param pooled <code>true</code> если задачи выполняются пулом потоков.
+     *            Такая задача завершается досрочно при прерывании потока, что
+     *            бывает только при отмене операции. Задача, выполняемая в
+     *            потоке, начавшем операцию, всегда обрабатывает все свои
+     *            символы.
+     */
+    private List<Callable<Object>> tasks(final MSymbol[] symbols,
+                    final PixselMap[] saved, int parts, final int w,
+                    final int h, final boolean pooled) {
+        List<Callable<Object>> ret = new ArrayList<Callable<Object>>(parts);
+        long length = symbols.length;
+
+        for (int p = 0; p < parts; p++) {
+            final int first = (int) (length * p / parts);
+            final int last = (int) (length * (p + 1) / parts);
+            ret.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int i = first; i < last; i++) {
+                        if (pooled && Thread.currentThread().isInterrupted())
+                            break;
+                        resize(symbols[i], saved, i, w, h);
+                    }
+                    return null;
+                }
+            });
+        }
+        return ret;
+    }
+
+    /**
+     * Меняет размеры символа <code>symbols[i]</code>, предварительно сохранив
+     * его копию в <code>saved[i]</code>, если массив копий задан.
+     */
+    private static void resize(MSymbol sym, PixselMap[] saved, int i, int w,
+                    int h) {
+        try {
+            synchronized (sym.writeLock()) {
+                if (saved != null) {
+                    PixselMap copy = new PixselMap();
+                    copy.copy(sym);
+                    saved[i] = copy;
+                }
+                sym.cleanChange();
+                sym.changeSize(w < 0 ? sym.getWidth() : w, h < 0 ? sym
+                                .getHeight() : h);
+            }
+        } catch (DisallowOperationException e) {
+            // Это исключение не должно возникнуть никогда.
+            AbstractMFont.logger().log(Level.SEVERE, "fail resize", e);
+        }
+    }
+
+    /**
+     * Останавливает пул, дожидается завершения задач и восстанавливает
+     * символы.
+     */
+    private static void cancel(ExecutorService pool, MSymbol[] symbols,
+                    PixselMap[] saved) {
+        pool.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        restore(symbols, saved);
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Восстанавливает символы из сохранённых копий.
+     */
+    private static void restore(MSymbol[] symbols, PixselMap[] saved) {
+        for (int i = 0; i < symbols.length; i++) {
+            if (saved[i] == null) continue;
+            try {
+                symbols[i].copy(saved[i]);
+            } catch (DisallowOperationException e) {
+                // Это исключение не должно возникнуть никогда.
+                AbstractMFont.logger().log(Level.SEVERE, "fail restore", e);
+            }
+        }
+    }
+
+    /**
+     * Выполняет задачу в текущем потоке.
+     */
+    private static void call(Callable<Object> task) {
+        try {
+            task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Дожидается задачи и пробрасывает выброшенное ею исключение.
+     */
+    private static void get(Future<Object> f) {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            // Задача уже выполнена, ожидания нет.
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Сообщает о выполнении <code>done</code> частей из <code>parts</code>.
+     * 
+     * @return <code>false</code> если операция отменена.
+     */
+    private static boolean report(MFontProgress progress, int done,
+                    int parts) {
+        if (progress == null) return true;
+        return progress.progress(done * 100 / parts);
+    }
+}
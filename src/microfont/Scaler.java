@@ -0,0 +1,487 @@
+package microfont;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+/**
+ * Масштабирование карт пикселей и целых шрифтов в целое число раз.
+ * <p>
+ * Поддерживаются три способа:
+ * <ul>
+ * <li>{@link #SCALE_NEAREST} - увеличение повторением пикселей.
+ * <li>{@link #SCALE_EPX} - увеличение в два или три раза алгоритмами
+ * Scale2x/Scale3x (EPX), которые сглаживают диагональные ступеньки.
+ * <li>{@link #SCALE_BOX} - уменьшение: пиксель результата закрашивается, если
+ * закрашена хотя бы половина пикселей соответствующего квадрата исходной
+ * карты.
+ * </ul>
+ * Все способы работают с целыми словами строк. Соседи пикселей для EPX
+ * получаются сдвигом строк на один пиксель, поэтому правила алгоритма
+ * вычисляются сразу для 64 пикселей. Пиксели за краем карты считаются
+ * пустыми.
+ * <p>
+ * Шрифт масштабируется параллельно так же, как строится
+ * {@linkplain StyleGenerator производное начертание}: копии символов делятся
+ * на части, и каждая часть выполняется отдельной задачей пула потоков.
+ * Размеры шрифта и его {@linkplain Metrics метрики} пересчитываются тем же
+ * множителем.
+ */
+public class Scaler {
+    /** Увеличение повторением пикселей. */
+    public static final int SCALE_NEAREST = 0;
+    /** Увеличение алгоритмами Scale2x/Scale3x. */
+    public static final int SCALE_EPX     = 1;
+    /** Уменьшение с порогом по закрашенным пикселям. */
+    public static final int SCALE_BOX     = 2;
+
+    /** Количество частей, приходящихся на один поток. */
+    private static final int CHUNKS       = 4;
+    /** Маска чётных битов слова. */
+    private static final long EVEN        = 0x5555555555555555L;
+
+    private final int        mode;
+    private final int        factor;
+    private final int        threads;
+
+    /**
+     * Создаёт масштабирование с количеством потоков по числу процессоров.
+     * 
+     * @param m Способ масштабирования, одна из констант <code>SCALE_*</code>.
+     * @param f Множитель при увеличении или делитель при уменьшении.
+     * @throws IllegalArgumentException если способ неизвестен, множитель
+     *             меньше единицы или для {@link #SCALE_EPX} не равен двум
+     *             или трём.
+     */
+    public Scaler(int m, int f) {
+        this(m, f, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Создаёт масштабирование.
+     * 
+     * @param m Способ масштабирования, одна из констант <code>SCALE_*</code>.
+     * @param f Множитель при увеличении или делитель при уменьшении.
+     * @param t Количество потоков. Если меньше единицы, то используется один
+     *            поток.
+     * @throws IllegalArgumentException если способ неизвестен, множитель
+     *             меньше единицы или для {@link #SCALE_EPX} не равен двум
+     *             или трём.
+     */
+    public Scaler(int m, int f, int t) {
+        if (m < SCALE_NEAREST || m > SCALE_BOX)
+            throw new IllegalArgumentException("mode=" + m);
+        if (f < 1 || (m == SCALE_EPX && f != 2 && f != 3))
+            throw new IllegalArgumentException("factor=" + f);
+        mode = m;
+        factor = f;
+        threads = t < 1 ? 1 : t;
+    }
+
+    /**
+     * Возвращает способ масштабирования.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Возвращает множитель или делитель масштабирования.
+     */
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * Возвращает размер после масштабирования. При уменьшении неполный
+     * квадрат на краю карты даёт отдельный пиксель.
+     * 
+     * @param size Исходная ширина или высота.
+     */
+    public int scaleSize(int size) {
+        if (mode == SCALE_BOX) return (size + factor - 1) / factor;
+        return size * factor;
+    }
+
+    /**
+     * Возвращает значение метрики после масштабирования. При уменьшении
+     * значение округляется до ближайшего целого.
+     * 
+     * @param value Исходное значение.
+     */
+    public int scaleMetric(int value) {
+        if (mode == SCALE_BOX) return (value + factor / 2) / factor;
+        return value * factor;
+    }
+
+    /**
+     * Строит масштабированную копию карты. Исходная карта не изменяется.
+     * 
+     * @param src Исходная карта.
+     * @return Новая карта.
+     * @throws NullPointerException если <code>src</code> равен
+     *             <code>null</code>
+     */
+    public PixselMap scale(AbstractPixselMap src) {
+        long[][] rows;
+        int w;
+
+        synchronized (src.writeLock()) {
+            w = src.getWidth();
+            rows = rows(src);
+        }
+
+        PixselMap ret = new PixselMap(scaleSize(w), scaleSize(rows.length));
+        rows = scaleRows(rows, w);
+        synchronized (ret.writeLock()) {
+            for (int y = 0; y < rows.length; y++)
+                ret.changeRow(y, rows[y]);
+        }
+        return ret;
+    }
+
+    /**
+     * Строит масштабированный шрифт. Исходный шрифт не изменяется.
+     * 
+     * @param font Исходный шрифт.
+     * @return Новый шрифт.
+     * @throws InterruptedException если поток был прерван во время ожидания
+     *             задач.
+     * @throws NullPointerException если <code>font</code> равен
+     *             <code>null</code>
+     */
+    public MFont apply(MFont font) throws InterruptedException {
+        final MSymbol[] symbols;
+        MFont ret = new MFont();
+
+        synchronized (font.getLock()) {
+            ret.setFixsed(font.isFixsed());
+            ret.setWidth(scaleSize(font.getWidth()));
+            ret.setHeight(scaleSize(font.getHeight()));
+            ret.setCodePage(font.getCodePage());
+            ret.setCharset(font.getCharset());
+            for (int i = 0; i <= Metrics.METRIC_MAX; i++) {
+                ret.setMetricActually(i, font.isMetricActually(i));
+                ret.setMetric(i, scaleMetric(font.getMetric(i)));
+            }
+            ret.setName(font.getName());
+            ret.setPrototype(font.getPrototype());
+            ret.setDescriptin(font.getDescriptin());
+
+            symbols = new MSymbol[font.length()];
+            for (int i = 0; i < symbols.length; i++)
+                symbols[i] = font.symbolByIndex(i).clone();
+        }
+
+        int parts = Math.min(symbols.length, threads * CHUNKS);
+        if (parts > 0) {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            long length = symbols.length;
+            for (int p = 0; p < parts; p++) {
+                final int first = (int) (length * p / parts);
+                final int last = (int) (length * (p + 1) / parts);
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = first; i < last; i++)
+                            scaleSymbol(symbols[i]);
+                        return null;
+                    }
+                });
+            }
+            Workers.invoke(tasks, threads);
+        }
+
+        ret.addAll(Arrays.asList(symbols));
+        return ret;
+    }
+
+    /**
+     * Масштабирует символ, не принадлежащий шрифту.
+     * 
+     * @param sym Изменяемый символ.
+     */
+    void scaleSymbol(MSymbol sym) {
+        synchronized (sym.writeLock()) {
+            int w = sym.getWidth();
+            long[][] rows = scaleRows(rows(sym), w);
+            try {
+                sym.setSize(scaleSize(w), rows.length);
+            } catch (DisallowOperationException e) {
+                // Символ не принадлежит шрифту, его размеры не ограничены.
+                AbstractMFont.logger().log(Level.SEVERE, "setSize in scale",
+                                e);
+                return;
+            }
+            for (int y = 0; y < rows.length; y++)
+                sym.changeRow(y, rows[y]);
+        }
+    }
+
+    /**
+     * Возвращает копии всех строк карты.
+     */
+    private static long[][] rows(AbstractPixselMap src) {
+        long[][] ret = new long[src.getHeight()][];
+        for (int y = 0; y < ret.length; y++)
+            ret[y] = src.getRow(y, null);
+        return ret;
+    }
+
+    /**
+     * Масштабирует строки карты шириной <code>w</code>. Биты за пределами
+     * ширины в исходных строках должны быть сброшены.
+     * 
+     * @param src Исходные строки.
+     * @param w Ширина исходной карты.
+     * @return Строки масштабированной карты. Одна и та же строка может
+     *         входить в массив несколько раз.
+     */
+    long[][] scaleRows(long[][] src, int w) {
+        int nw = scaleSize(w), h = src.length;
+        int stride = AbstractPixselMap.stride(nw);
+        long[][] dst = new long[scaleSize(h)][];
+
+        switch (mode) {
+        case SCALE_NEAREST:
+            for (int y = 0; y < h; y++) {
+                long[] row = new long[stride];
+                if (factor == 2) interleave(src[y], src[y], row);
+                else spread(src[y], w, row, factor, 0, factor);
+                for (int k = 0; k < factor; k++)
+                    dst[y * factor + k] = row;
+            }
+            break;
+        case SCALE_EPX:
+            if (factor == 2) scale2x(src, w, dst, stride);
+            else scale3x(src, w, dst, stride);
+            break;
+        default:
+            for (int y = 0; y < dst.length; y++)
+                dst[y] = factor == 2 ? box2(src, y, stride) : box(src, w, y,
+                                stride);
+        }
+        return dst;
+    }
+
+    /**
+     * Scale2x: каждый пиксель <b>P</b> заменяется квадратом 2x2. Угол квадрата
+     * принимает цвет соседей по двум его сторонам, если они совпадают между
+     * собой и отличаются от двух других соседей.
+     */
+    private static void scale2x(long[][] src, int w, long[][] dst,
+                    int stride) {
+        int sw = AbstractPixselMap.stride(w);
+        long[] zero = new long[sw];
+        long[] c = new long[sw], b = new long[sw];
+        long[] e0 = new long[sw], e1 = new long[sw];
+        long[] e2 = new long[sw], e3 = new long[sw];
+
+        for (int y = 0; y < src.length; y++) {
+            long[] p = src[y];
+            long[] a = y > 0 ? src[y - 1] : zero;
+            long[] d = y < src.length - 1 ? src[y + 1] : zero;
+            StyleGenerator.shift(p, c, 1);
+            StyleGenerator.shift(p, b, -1);
+            for (int i = 0; i < sw; i++) {
+                long pa = a[i], pb = b[i], pc = c[i], pd = d[i], pp = p[i];
+                e0[i] = pick(~(pc ^ pa) & (pc ^ pd) & (pa ^ pb), pa, pp);
+                e1[i] = pick(~(pa ^ pb) & (pa ^ pc) & (pb ^ pd), pb, pp);
+                e2[i] = pick(~(pd ^ pc) & (pd ^ pb) & (pc ^ pa), pc, pp);
+                e3[i] = pick(~(pb ^ pd) & (pb ^ pa) & (pd ^ pc), pd, pp);
+            }
+            dst[2 * y] = new long[stride];
+            dst[2 * y + 1] = new long[stride];
+            interleave(e0, e1, dst[2 * y]);
+            interleave(e2, e3, dst[2 * y + 1]);
+        }
+    }
+
+    /**
+     * Scale3x: каждый пиксель <b>E</b> заменяется квадратом 3x3 по правилам
+     * алгоритма для соседей
+     * 
+     * <pre>
+     * A B C
+     * D E F
+     * G H I
+     * </pre>
+     */
+    private static void scale3x(long[][] src, int w, long[][] dst,
+                    int stride) {
+        int sw = AbstractPixselMap.stride(w);
+        long[] zero = new long[sw];
+        long[] sa = new long[sw], sc = new long[sw], sd = new long[sw];
+        long[] sf = new long[sw], sg = new long[sw], si = new long[sw];
+        long[][] e = new long[9][sw];
+
+        for (int y = 0; y < src.length; y++) {
+            long[] pe = src[y];
+            long[] pb = y > 0 ? src[y - 1] : zero;
+            long[] ph = y < src.length - 1 ? src[y + 1] : zero;
+            StyleGenerator.shift(pb, sa, 1);
+            StyleGenerator.shift(pb, sc, -1);
+            StyleGenerator.shift(pe, sd, 1);
+            StyleGenerator.shift(pe, sf, -1);
+            StyleGenerator.shift(ph, sg, 1);
+            StyleGenerator.shift(ph, si, -1);
+            for (int i = 0; i < sw; i++) {
+                long a = sa[i], b = pb[i], c = sc[i], d = sd[i], m = pe[i];
+                long f = sf[i], g = sg[i], h = ph[i], k = si[i];
+                // D == B && B != F && D != H
+                long db = ~(d ^ b) & (b ^ f) & (d ^ h);
+                // B == F && B != D && F != H
+                long bf = ~(b ^ f) & (b ^ d) & (f ^ h);
+                // D == H && D != B && H != F
+                long dh = ~(d ^ h) & (d ^ b) & (h ^ f);
+                // H == F && D != H && B != F
+                long hf = ~(h ^ f) & (d ^ h) & (b ^ f);
+                e[0][i] = pick(db, d, m);
+                e[1][i] = pick((db & (m ^ c)) | (bf & (m ^ a)), b, m);
+                e[2][i] = pick(bf, f, m);
+                e[3][i] = pick((db & (m ^ g)) | (dh & (m ^ a)), d, m);
+                e[4][i] = m;
+                e[5][i] = pick((bf & (m ^ k)) | (hf & (m ^ c)), f, m);
+                e[6][i] = pick(dh, d, m);
+                e[7][i] = pick((dh & (m ^ k)) | (hf & (m ^ g)), h, m);
+                e[8][i] = pick(hf, f, m);
+            }
+            for (int r = 0; r < 3; r++) {
+                long[] row = new long[stride];
+                for (int s = 0; s < 3; s++)
+                    spread(e[r * 3 + s], w, row, 3, s, 1);
+                dst[3 * y + r] = row;
+            }
+        }
+    }
+
+    /**
+     * Уменьшение вдвое: пиксель закрашивается, если закрашены хотя бы два
+     * пикселя из четырёх. Пары пикселей всегда лежат в одном слове, поэтому
+     * условие вычисляется для 32 пикселей результата сразу.
+     */
+    private static long[] box2(long[][] src, int y, int stride) {
+        long[] ret = new long[stride];
+        long[] r0 = src[2 * y];
+        long[] r1 = 2 * y + 1 < src.length ? src[2 * y + 1] : null;
+
+        for (int i = 0; i < r0.length; i++) {
+            long p = r0[i] & EVEN, q = (r0[i] >>> 1) & EVEN;
+            long r = 0, s = 0;
+            if (r1 != null) {
+                r = r1[i] & EVEN;
+                s = (r1[i] >>> 1) & EVEN;
+            }
+            long m = (p & (q | r | s)) | (q & (r | s)) | (r & s);
+            ret[i >> 1] |= compact(m) << ((i & 1) << 5);
+        }
+        return ret;
+    }
+
+    /**
+     * Уменьшение в произвольное число раз: закрашенные пиксели квадратов
+     * подсчитываются по установленным битам строк.
+     */
+    private long[] box(long[][] src, int w, int y, int stride) {
+        long[] ret = new long[stride];
+        int[] count = new int[scaleSize(w)];
+        int last = Math.min(src.length, (y + 1) * factor);
+        int area = factor * factor;
+
+        for (int j = y * factor; j < last; j++) {
+            long[] row = src[j];
+            for (int i = 0; i < row.length; i++) {
+                long v = row[i];
+                while (v != 0) {
+                    int x = (i << AbstractPixselMap.WORD_SHIFT)
+                                    + Long.numberOfTrailingZeros(v);
+                    v &= v - 1;
+                    if (x >= w) break;
+                    count[x / factor]++;
+                }
+            }
+        }
+        for (int x = 0; x < count.length; x++) {
+            if (count[x] * 2 >= area)
+                ret[x >> AbstractPixselMap.WORD_SHIFT] |= 1L << x;
+        }
+        return ret;
+    }
+
+    /**
+     * Выбирает биты <code>a</code> там, где установлены биты
+     * <code>cond</code>, и биты <code>b</code> в остальных позициях.
+     */
+    private static long pick(long cond, long a, long b) {
+        return (cond & a) | (~cond & b);
+    }
+
+    /**
+     * Записывает в <code>dst</code> строку вдвое большей ширины: пиксель
+     * <b>x</b> строки <code>a</code> попадает в позицию <code>2x</code>,
+     * строки <code>b</code> - в позицию <code>2x + 1</code>.
+     */
+    private static void interleave(long[] a, long[] b, long[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            int q = i >> 1, s = (i & 1) << 5;
+            long lo = q < a.length ? spread2((int) (a[q] >>> s)) : 0;
+            long hi = q < b.length ? spread2((int) (b[q] >>> s)) : 0;
+            dst[i] = lo | (hi << 1);
+        }
+    }
+
+    /**
+     * Раздвигает 32 бита <code>v</code> в чётные биты слова.
+     */
+    private static long spread2(int v) {
+        long x = v & 0xffffffffL;
+        x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+        x = (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+        x = (x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        return (x | (x << 1)) & EVEN;
+    }
+
+    /**
+     * Собирает чётные биты слова в младшие 32 бита. Обратно
+     * {@link #spread2(int)}.
+     */
+    private static long compact(long x) {
+        x &= EVEN;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x | (x >>> 4)) & 0x00ff00ff00ff00ffL;
+        x = (x | (x >>> 8)) & 0x0000ffff0000ffffL;
+        return (x | (x >>> 16)) & 0xffffffffL;
+    }
+
+    /**
+     * Для каждого закрашенного пикселя <b>x</b> строки <code>src</code>
+     * закрашивает в <code>dst</code> <code>len</code> пикселей начиная с
+     * позиции <code>x * n + phase</code>.
+     */
+    private static void spread(long[] src, int w, long[] dst, int n,
+                    int phase, int len) {
+        for (int i = 0; i < src.length; i++) {
+            long v = src[i];
+            while (v != 0) {
+                int x = (i << AbstractPixselMap.WORD_SHIFT)
+                                + Long.numberOfTrailingZeros(v);
+                v &= v - 1;
+                if (x >= w) break;
+                int from = x * n + phase, rest = len;
+                while (rest > 0) {
+                    int off = from & AbstractPixselMap.WORD_MASK;
+                    int k = Math.min(rest, AbstractPixselMap.WORD_SIZE - off);
+                    long mask = k == AbstractPixselMap.WORD_SIZE ? -1L
+                                    : (1L << k) - 1;
+                    dst[from >> AbstractPixselMap.WORD_SHIFT] |= mask << off;
+                    from += k;
+                    rest -= k;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package microfont;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+/**
+ * Построение производного начертания шрифта: жирного, наклонного, контурного
+ * и подчёркнутого. Начертания можно сочетать, они применяются в порядке
+ * жирный, наклон, контур, подчёркивание.
+ * <p>
+ * Символы обрабатываются целыми словами строк:
+ * <ul>
+ * <li><b>Жирный</b> - строка объединяется со своей копией, сдвинутой на один
+ * пиксель вправо.
+ * <li><b>Наклонный</b> - строка сдвигается вправо тем больше, чем выше она
+ * над {@linkplain Metrics#METRIC_BASELINE базовой линией}, на один пиксель
+ * каждые {@link #ITALIC_STEP} строк. Строки ниже базовой линии сдвигаются
+ * влево.
+ * <li><b>Контурный</b> - исключающее ИЛИ символа и его расширения на один
+ * пиксель во все стороны.
+ * <li><b>Подчёркнутый</b> - закрашивается строка посередине
+ * {@linkplain Metrics#METRIC_DESCENT подстрочной части}.
+ * </ul>
+ * Для пропорциональных шрифтов символы расширяются так, чтобы начертание
+ * поместилось целиком, у моноширинных шрифтов всё, что выходит за ширину
+ * символа, отбрасывается.
+ * <p>
+ * Символы обрабатываются параллельно: копии символов делятся на части, и
+ * каждая часть выполняется отдельной задачей пула потоков. Копии не
+ * принадлежат шрифту и синхронизируются каждая по себе, поэтому задачи не
+ * мешают друг другу.
+ */
+public class StyleGenerator {
+    /** Жирное начертание. */
+    public static final int STYLE_BOLD      = 1;
+    /** Наклонное начертание. */
+    public static final int STYLE_ITALIC    = 2;
+    /** Контурное начертание. */
+    public static final int STYLE_OUTLINE   = 4;
+    /** Подчёркнутое начертание. */
+    public static final int STYLE_UNDERLINE = 8;
+
+    /** Количество строк на один пиксель наклона. */
+    public static final int ITALIC_STEP     = 4;
+
+    /** Количество частей, приходящихся на один поток. */
+    private static final int CHUNKS         = 4;
+
+    private final int       styles;
+    private final int       threads;
+
+    /**
+     * Создаёт генератор начертания с количеством потоков по числу
+     * процессоров.
+     * 
+     * @param s Сочетание констант <code>STYLE_*</code>.
+     */
+    public StyleGenerator(int s) {
+        this(s, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Создаёт генератор начертания.
+     * 
+     * @param s Сочетание констант <code>STYLE_*</code>.
+     * @param t Количество потоков. Если меньше единицы, то используется один
+     *            поток.
+     */
+    public StyleGenerator(int s, int t) {
+        styles = s;
+        threads = t < 1 ? 1 : t;
+    }
+
+    /**
+     * Возвращает сочетание констант <code>STYLE_*</code>.
+     */
+    public int getStyles() {
+        return styles;
+    }
+
+    /**
+     * Строит новый шрифт с производным начертанием. Исходный шрифт не
+     * изменяется.
+     * 
+     * @param font Исходный шрифт.
+     * @return Новый шрифт.
+     * @throws InterruptedException если поток был прерван во время ожидания
+     *             задач.
+     * @throws NullPointerException если <code>font</code> равен
+     *             <code>null</code>
+     */
+    public MFont apply(MFont font) throws InterruptedException {
+        final MSymbol[] symbols;
+        final int baseline, descent;
+        final boolean fixsed;
+        MFont ret;
+
+        synchronized (font.getLock()) {
+            ret = font.clone();
+            baseline = font.getMetric(Metrics.METRIC_BASELINE);
+            descent = font.getMetric(Metrics.METRIC_DESCENT);
+            fixsed = font.isFixsed();
+            symbols = new MSymbol[font.length()];
+            for (int i = 0; i < symbols.length; i++)
+                symbols[i] = font.symbolByIndex(i).clone();
+        }
+
+        int parts = Math.min(symbols.length, threads * CHUNKS);
+        if (parts > 0) {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            long length = symbols.length;
+            for (int p = 0; p < parts; p++) {
+                final int first = (int) (length * p / parts);
+                final int last = (int) (length * (p + 1) / parts);
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = first; i < last; i++)
+                            style(symbols[i], baseline, descent, fixsed);
+                        return null;
+                    }
+                });
+            }
+            Workers.invoke(tasks, threads);
+        }
+
+        ret.addAll(Arrays.asList(symbols));
+        return ret;
+    }
+
+    /**
+     * Применяет начертание к символу, не принадлежащему шрифту.
+     * 
+     * @param sym Изменяемый символ.
+     * @param baseline Базовая линия шрифта.
+     * @param descent Высота подстрочной части шрифта.
+     * @param fixsed <code>true</code> если ширина символа не должна меняться.
+     */
+    void style(MSymbol sym, int baseline, int descent, boolean fixsed) {
+        int w = sym.getWidth(), h = sym.getHeight();
+        int offset = 0, extra = 0;
+        int low = 0, high = 0;
+
+        if (h == 0) return;
+        if ((styles & STYLE_BOLD) != 0) extra += 1;
+        if ((styles & STYLE_ITALIC) != 0) {
+            low = shear(baseline, h - 1);
+            high = shear(baseline, 0);
+            offset -= low;
+            extra += high - low;
+        }
+        if ((styles & STYLE_OUTLINE) != 0) {
+            offset += 1;
+            extra += 2;
+        }
+        if (fixsed) offset = extra = 0;
+
+        int nw = w + extra;
+        int stride = AbstractPixselMap.stride(nw);
+        long[][] rows = new long[h][];
+        long[] src = null;
+        for (int y = 0; y < h; y++) {
+            src = sym.getRow(y, src);
+            rows[y] = new long[stride];
+            shift(src, rows[y], offset);
+        }
+
+        if ((styles & STYLE_BOLD) != 0) {
+            long[] t = new long[stride];
+            for (long[] row : rows) {
+                shift(row, t, 1);
+                for (int i = 0; i < stride; i++)
+                    row[i] |= t[i];
+            }
+        }
+
+        if ((styles & STYLE_ITALIC) != 0) {
+            for (int y = 0; y < h; y++) {
+                int n = shear(baseline, y);
+                if (n == 0) continue;
+                long[] t = new long[stride];
+                shift(rows[y], t, n);
+                rows[y] = t;
+            }
+        }
+
+        if ((styles & STYLE_OUTLINE) != 0) {
+            long[][] grow = new long[h][stride];
+            long[] t = new long[stride];
+            for (int y = 0; y < h; y++) {
+                long[] row = rows[y], g = grow[y];
+                shift(row, g, 1);
+                shift(row, t, -1);
+                for (int i = 0; i < stride; i++)
+                    g[i] |= row[i] | t[i];
+            }
+            for (int y = 0; y < h; y++) {
+                long[] row = rows[y];
+                for (int i = 0; i < stride; i++) {
+                    long d = grow[y][i];
+                    if (y > 0) d |= grow[y - 1][i];
+                    if (y < h - 1) d |= grow[y + 1][i];
+                    row[i] ^= d;
+                }
+            }
+        }
+
+        if ((styles & STYLE_UNDERLINE) != 0) {
+            int u = baseline + descent / 2;
+            if (u >= h) u = h - 1;
+            if (u >= 0) Arrays.fill(rows[u], -1L);
+        }
+
+        synchronized (sym.writeLock()) {
+            try {
+                if (nw != w) sym.setWidth(nw);
+            } catch (DisallowOperationException e) {
+                // Символ не принадлежит шрифту, его ширина не ограничена.
+                AbstractMFont.logger().log(Level.SEVERE, "setWidth in style",
+                                e);
+                return;
+            }
+            for (int y = 0; y < h; y++)
+                sym.changeRow(y, rows[y]);
+        }
+    }
+
+    /**
+     * Возвращает сдвиг строки <code>y</code> наклонного начертания.
+     */
+    static int shear(int baseline, int y) {
+        int d = baseline - 1 - y;
+        if (d >= 0) return d / ITALIC_STEP;
+        return -((-d + ITALIC_STEP - 1) / ITALIC_STEP);
+    }
+
+    /**
+     * Копирует строку <code>src</code> в <code>dst</code> со сдвигом на
+     * <code>n</code> пикселей: пиксель <b>x</b> попадает в позицию
+     * <code>x + n</code>. Пиксели за пределами <code>src</code> считаются
+     * пустыми, лишние биты последнего слова <code>dst</code> не очищаются.
+     */
+    static void shift(long[] src, long[] dst, int n) {
+        int words = -n >> AbstractPixselMap.WORD_SHIFT;
+        int bits = -n & AbstractPixselMap.WORD_MASK;
+
+        for (int i = 0; i < dst.length; i++) {
+            int q = i + words;
+            long lo = q >= 0 && q < src.length ? src[q] : 0;
+            if (bits == 0) {
+                dst[i] = lo;
+                continue;
+            }
+            long hi = q + 1 >= 0 && q + 1 < src.length ? src[q + 1] : 0;
+            dst[i] = (lo >>> bits)
+                            | (hi << (AbstractPixselMap.WORD_SIZE - bits));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package microfont;
+
+/**
+ * Кэш распакованных символов {@linkplain AbstractMFont шрифта}. Символы
+ * шрифта, к которым давно не обращались, хранятся в {@linkplain PackBits
+ * сжатом} виде и распаковываются автоматически при первом обращении к их
+ * пикселям.
+ * <p>
+ * Кэш ограничивает суммарный размер строк распакованных символов
+ * {@linkplain #setBudget(long) бюджетом}. Когда он превышен, сжимаются символы,
+ * распакованные раньше других. Символ, к пикселям которого обращались после
+ * предыдущей проверки, получает второй шанс и переносится в конец очереди.
+ * <p>
+ * Размеры считаются по словам строк без учёта служебных полей объектов.
+ * Символ, сжатие которого не уменьшает его размер, остаётся распакованным.
+ * Все методы кэша синхронизированы по {@link AbstractMFont#getLock()}.
+ * 
+ * @see AbstractMFont#getSymbolCache()
+ */
+public class SymbolCache {
+    /** Бюджет по умолчанию - один мегабайт распакованных строк. */
+    public static final long    DEFAULT_BUDGET = 1L << 20;
+
+    /** Шрифт, символы которого учитывает кэш. */
+    private final AbstractMFont font;
+    /** Наибольший суммарный размер распакованных символов. */
+    private long                budget         = DEFAULT_BUDGET;
+    /** Начало и конец очереди распакованных символов. */
+    private MSymbol             eldest, latest;
+    /** Количество символов в очереди. */
+    private int                 count;
+    /** Суммарный размер распакованных символов. */
+    private long                expandedBytes;
+    /** Суммарный размер сжатых символов. */
+    private long                packedBytes;
+
+    /**
+     * Создаёт кэш для символов шрифта <code>font</code>.
+     */
+    SymbolCache(AbstractMFont font) {
+        this.font = font;
+    }
+
+    /**
+     * Возвращает наибольший суммарный размер распакованных символов в байтах.
+     * 
+     * @see #setBudget(long)
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Устанавливает наибольший суммарный размер распакованных символов в
+     * байтах. Если текущий размер больше, то лишние символы сжимаются.
+     * 
+     * @param budget Новый бюджет.
+     * @throws IllegalArgumentException если <code>budget</code> меньше нуля.
+     * @see #getBudget()
+     */
+    public void setBudget(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("invalid budget " + budget);
+
+        synchronized (font.getLock()) {
+            this.budget = budget;
+            trim(null);
+        }
+    }
+
+    /**
+     * Возвращает суммарный размер строк распакованных символов шрифта в
+     * байтах.
+     * 
+     * @see #getPackedBytes()
+     */
+    public long getExpandedBytes() {
+        synchronized (font.getLock()) {
+            return expandedBytes;
+        }
+    }
+
+    /**
+     * Возвращает суммарный размер сжатых символов шрифта в байтах.
+     * 
+     * @see #getExpandedBytes()
+     */
+    public long getPackedBytes() {
+        synchronized (font.getLock()) {
+            return packedBytes;
+        }
+    }
+
+    /**
+     * Учитывает символ, добавленный в шрифт.
+     * 
+     * @param sym Добавленный символ.
+     */
+    void add(MSymbol sym) {
+        synchronized (font.getLock()) {
+            if (sym.isPacked()) packedBytes += sym.getPackedLength();
+            else {
+                link(sym);
+                trim(sym);
+            }
+        }
+    }
+
+    /**
+     * Перестаёт учитывать символ, удалённый из шрифта.
+     * 
+     * @param sym Удалённый символ.
+     */
+    void remove(MSymbol sym) {
+        synchronized (font.getLock()) {
+            if (sym.cached) unlink(sym);
+            else packedBytes -= sym.getPackedLength();
+        }
+    }
+
+    /**
+     * Учитывает распаковку символа. Символ становится последним в очереди.
+     * 
+     * @param sym Распакованный символ.
+     * @param length Размер сжатых данных символа.
+     */
+    void unpacked(MSymbol sym, int length) {
+        synchronized (font.getLock()) {
+            packedBytes -= length;
+            link(sym);
+            trim(sym);
+        }
+    }
+
+    /**
+     * Учитывает изменение размеров символа.
+     * 
+     * @param sym Символ с новыми размерами.
+     */
+    void resized(MSymbol sym) {
+        synchronized (font.getLock()) {
+            if (!sym.cached) return;
+            unlink(sym);
+            link(sym);
+            trim(sym);
+        }
+    }
+
+    /**
+     * Сжимает символы с начала очереди, пока размер распакованных символов
+     * превышает бюджет. Очередь просматривается не больше одного раза, поэтому
+     * символ, к которому обращались, не будет сжат при этом вызове.
+     * 
+     * @param keep Символ, который нельзя сжимать, или <code>null</code>.
+     */
+    private void trim(MSymbol keep) {
+        for (int n = count; n > 0 && expandedBytes > budget; n--) {
+            MSymbol sym = eldest;
+            unlink(sym);
+            if (sym != keep && !sym.clearReferenced() && sym.pack()) {
+                packedBytes += sym.getPackedLength();
+            } else link(sym);
+        }
+    }
+
+    /**
+     * Добавляет символ в конец очереди.
+     */
+    private void link(MSymbol sym) {
+        sym.older = latest;
+        sym.newer = null;
+        if (latest == null) eldest = sym;
+        else latest.newer = sym;
+        latest = sym;
+
+        sym.cached = true;
+        sym.cachedBytes = sym.getExpandedLength();
+        expandedBytes += sym.cachedBytes;
+        count++;
+    }
+
+    /**
+     * Удаляет символ из очереди.
+     */
+    private void unlink(MSymbol sym) {
+        if (sym.older == null) eldest = sym.newer;
+        else sym.older.newer = sym.newer;
+        if (sym.newer == null) latest = sym.older;
+        else sym.newer.older = sym.older;
+        sym.older = null;
+        sym.newer = null;
+
+        sym.cached = false;
+        expandedBytes -= sym.cachedBytes;
+        count--;
+    }
+}
@@ -0,0 +1,237 @@
+package microfont;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Упорядоченное по коду хранилище {@linkplain MSymbol символов}
+ * {@linkplain AbstractMFont шрифта}.
+ * <p>
+ * Коды хранятся отдельным массивом <code>int</code> рядом с массивом
+ * символов, поэтому поиск по коду - это двоичный поиск по примитивному
+ * массиву без обращения к самим символам. Оба массива устроены как буфер с
+ * разрывом: свободные ячейки собраны в непрерывный разрыв, который
+ * переносится к месту вставки или удаления. Вставки и удаления подряд идущих
+ * позиций, в том числе добавление в конец при загрузке шрифта, выполняются за
+ * амортизированное постоянное время. Доступ по порядковому номеру требует
+ * только одного сравнения с началом разрыва.
+ * <p>
+ * Хранилище не синхронизировано, шрифт обращается к нему под
+ * {@link AbstractMFont#getLock()}. Код символа в хранилище должен совпадать с
+ * {@link MSymbol#getCode()}, шрифт поддерживает это соответствие при смене
+ * кода.
+ */
+class SymbolIndex implements Iterable<MSymbol> {
+    /** Начальная ёмкость хранилища. */
+    private static final int MIN_CAPACITY = 16;
+
+    private int[]            codes;
+    private MSymbol[]        items;
+    /** Начало разрыва. */
+    private int              gapStart;
+    /** Конец разрыва, первая занятая ячейка после него. */
+    private int              gapEnd;
+
+    /**
+     * Создаёт пустое хранилище.
+     */
+    SymbolIndex() {
+        codes = new int[0];
+        items = new MSymbol[0];
+    }
+
+    /**
+     * Возвращает количество символов.
+     */
+    int size() {
+        return items.length - (gapEnd - gapStart);
+    }
+
+    /**
+     * Возвращает символ с порядковым номером <code>index</code>.
+     * 
+     * @throws ArrayIndexOutOfBoundsException если номер за пределами
+     *             хранилища.
+     */
+    MSymbol get(int index) {
+        return items[physical(index)];
+    }
+
+    /**
+     * Возвращает код символа с порядковым номером <code>index</code>.
+     * 
+     * @throws ArrayIndexOutOfBoundsException если номер за пределами
+     *             хранилища.
+     */
+    int code(int index) {
+        return codes[physical(index)];
+    }
+
+    /**
+     * Возвращает позицию вставки для кода <code>code</code> - номер первого
+     * символа с кодом не меньше <code>code</code> или {@link #size()}, если
+     * таких символов нет.
+     */
+    int position(int code) {
+        if (gapStart > 0 && codes[gapStart - 1] >= code)
+            return lowerBound(0, gapStart, code);
+        return lowerBound(gapEnd, codes.length, code) - (gapEnd - gapStart);
+    }
+
+    /**
+     * Возвращает порядковый номер символа с кодом <code>code</code> или
+     * <code>-1</code>, если такого символа нет.
+     */
+    int indexOf(int code) {
+        int pos = position(code);
+        if (pos < size() && code(pos) == code) return pos;
+        return -1;
+    }
+
+    /**
+     * Вставляет символ в позицию <code>pos</code>. Порядок кодов не
+     * проверяется.
+     * 
+     * @param pos Позиция вставки от нуля до {@link #size()} включительно.
+     * @param code Код символа.
+     * @param sym Вставляемый символ.
+     */
+    void insert(int pos, int code, MSymbol sym) {
+        if (pos < 0 || pos > size())
+            throw new ArrayIndexOutOfBoundsException(pos);
+        if (gapStart == gapEnd) grow();
+        moveGap(pos);
+        codes[gapStart] = code;
+        items[gapStart] = sym;
+        gapStart++;
+    }
+
+    /**
+     * Заменяет символ в позиции <code>pos</code>, код позиции сохраняется.
+     * 
+     * @return Заменённый символ.
+     */
+    MSymbol set(int pos, MSymbol sym) {
+        int p = physical(pos);
+        MSymbol ret = items[p];
+        items[p] = sym;
+        return ret;
+    }
+
+    /**
+     * Удаляет символ из позиции <code>pos</code>.
+     * 
+     * @return Удалённый символ.
+     */
+    MSymbol remove(int pos) {
+        if (pos < 0 || pos >= size())
+            throw new ArrayIndexOutOfBoundsException(pos);
+        moveGap(pos);
+        MSymbol ret = items[gapEnd];
+        items[gapEnd] = null;
+        gapEnd++;
+        return ret;
+    }
+
+    /**
+     * Возвращает символы в порядке возрастания кодов. Массив можно
+     * использовать для обхода, во время которого хранилище изменяется.
+     */
+    MSymbol[] toArray() {
+        MSymbol[] ret = new MSymbol[size()];
+        System.arraycopy(items, 0, ret, 0, gapStart);
+        System.arraycopy(items, gapEnd, ret, gapStart, items.length - gapEnd);
+        return ret;
+    }
+
+    /**
+     * Возвращает итератор символов в порядке возрастания кодов. Хранилище не
+     * должно изменяться во время обхода, иначе используйте
+     * {@link #toArray()}.
+     */
+    @Override
+    public Iterator<MSymbol> iterator() {
+        return new Iterator<MSymbol>() {
+            int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public MSymbol next() {
+                if (index >= size()) throw new NoSuchElementException();
+                return get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Преобразует порядковый номер в индекс массивов.
+     */
+    private int physical(int index) {
+        if (index < 0 || index >= size())
+            throw new ArrayIndexOutOfBoundsException(index);
+        return index < gapStart ? index : index + gapEnd - gapStart;
+    }
+
+    /**
+     * Двоичный поиск первой ячейки с кодом не меньше <code>code</code> в
+     * диапазоне массива <code>[from, to)</code>.
+     */
+    private int lowerBound(int from, int to, int code) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (codes[mid] < code) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+
+    /**
+     * Переносит разрыв так, чтобы он начинался в позиции <code>pos</code>.
+     * Освободившиеся ячейки символов очищаются.
+     */
+    private void moveGap(int pos) {
+        int gap = gapEnd - gapStart;
+
+        if (pos < gapStart) {
+            int n = gapStart - pos;
+            System.arraycopy(codes, pos, codes, pos + gap, n);
+            System.arraycopy(items, pos, items, pos + gap, n);
+            Arrays.fill(items, pos, Math.min(gapStart, pos + gap), null);
+        } else if (pos > gapStart) {
+            int n = pos - gapStart;
+            System.arraycopy(codes, gapEnd, codes, gapStart, n);
+            System.arraycopy(items, gapEnd, items, gapStart, n);
+            Arrays.fill(items, Math.max(gapEnd, pos), gapEnd + n, null);
+        }
+        gapStart = pos;
+        gapEnd = pos + gap;
+    }
+
+    /**
+     * Удваивает ёмкость хранилища. Новые ячейки добавляются к разрыву.
+     */
+    private void grow() {
+        int capacity = Math.max(MIN_CAPACITY, items.length * 2);
+        int tail = items.length - gapEnd;
+        int[] c = new int[capacity];
+        MSymbol[] s = new MSymbol[capacity];
+
+        System.arraycopy(codes, 0, c, 0, gapStart);
+        System.arraycopy(items, 0, s, 0, gapStart);
+        System.arraycopy(codes, gapEnd, c, capacity - tail, tail);
+        System.arraycopy(items, gapEnd, s, capacity - tail, tail);
+        codes = c;
+        items = s;
+        gapEnd = capacity - tail;
+    }
+}
@@ -0,0 +1,154 @@
+package microfont;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Общий пул потоков для параллельной обработки карт и шрифтов. Пул создаётся
+ * при первом обращении, его потоки - демоны и завершаются после минуты
+ * простоя, поэтому повторные операции не создают потоки заново.
+ * <p>
+ * Вызвавший поток сам выполняет задачи наравне с потоками пула. Поэтому
+ * задачи могут вызывать {@link #invoke(List, int)} сами, не рискуя
+ * взаимной блокировкой.
+ */
+final class Workers {
+    /** Время простоя, после которого поток пула завершается, в секундах. */
+    private static final long KEEP_ALIVE = 60;
+
+    /** Пул потоков. Создаётся при первом обращении. */
+    private static ExecutorService pool;
+
+    private Workers() {
+    }
+
+    /**
+     * Возвращает пул потоков, создавая его при первом обращении.
+     */
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            ThreadPoolExecutor p = new ThreadPoolExecutor(0,
+                            Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>());
+            p.setThreadFactory(new ThreadFactory() {
+                private final AtomicInteger number = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "microfont-worker-"
+                                    + number.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pool = p;
+        }
+        return pool;
+    }
+
+    /**
+     * Выполняет задачи и дожидается их завершения. Задачи выполняют
+     * вызвавший поток и до <code>threads - 1</code> потоков пула, каждый
+     * берёт следующую ещё не начатую задачу. Исключение, выброшенное
+     * задачей, пробрасывается вызывающему, оставшиеся задачи при этом не
+     * начинаются.
+     * <p>
+     * Если вызвавший поток прерван, то новые задачи не начинаются, но метод
+     * дожидается окончания уже начатых и только после этого выбрасывает
+     * исключение. Поэтому после возврата из метода ни одна задача не
+     * выполняется. Если к этому времени выполнены все задачи, то исключение
+     * не выбрасывается, а признак прерывания остаётся установленным.
+     * 
+     * @param tasks Задачи.
+     * @param threads Наибольшее количество одновременно выполняемых задач.
+     * @throws InterruptedException если поток был прерван и часть задач
+     *             осталась невыполненной.
+     */
+    static void invoke(final List<Callable<Object>> tasks, int threads)
+                    throws InterruptedException {
+        final int size = tasks.size();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicReference<Throwable> failure =
+                        new AtomicReference<Throwable>();
+        int helpers = (threads < size ? threads : size) - 1;
+        final CountDownLatch done = new CountDownLatch(helpers > 0 ? helpers
+                        : 0);
+
+        Runnable helper = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runTasks(tasks, next, finished, failure, false);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < helpers; i++)
+            pool().execute(helper);
+
+        runTasks(tasks, next, finished, failure, true);
+        awaitUninterruptibly(done);
+
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        if (cause != null) throw new RuntimeException(cause);
+        if (finished.get() < size) {
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Выполняет ещё не начатые задачи, пока они не кончатся или одна из них
+     * не выбросит исключение.
+     * 
+     * @param caller <code>true</code> для вызвавшего потока, который
+     *            перестаёт брать задачи, если его прервали.
+     */
+    private static void runTasks(List<Callable<Object>> tasks,
+                    AtomicInteger next, AtomicInteger finished,
+                    AtomicReference<Throwable> failure, boolean caller) {
+        int i;
+        while ((i = next.getAndIncrement()) < tasks.size()) {
+            if (caller && Thread.currentThread().isInterrupted()) {
+                next.set(tasks.size());
+                break;
+            }
+            try {
+                tasks.get(i).call();
+                finished.incrementAndGet();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                next.set(tasks.size());
+            }
+        }
+    }
+
+    /**
+     * Дожидается окончания начатых задач, не реагируя на прерывание.
+     * Признак прерывания восстанавливается.
+     */
+    private static void awaitUninterruptibly(CountDownLatch done) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -12,11 +12,13 @@ public class MFontEdit extends AbstractEdit {
     MFont owner;
     MFont before;
     MFont after;
+    long revision;
 
     public MFontEdit(MFont mf, String operation) {
         super(operation);
         owner = mf;
         before = mf.clone();
+        revision = mf.getRevision();
     }
 
     @Override
@@ -45,7 +47,7 @@ public class MFontEdit extends AbstractEdit {
     public void end() {
         super.end();
 
-        if (owner.equals(before)) {
+        if (owner.getRevision() == revision) {
             die();
             return;
         }
@@ -10,11 +10,13 @@ public class MSymbolEdit extends AbstractEdit {
     MSymbol owner;
     MSymbol before;
     MSymbol after;
+    long revision;
 
     public MSymbolEdit(MSymbol mSymbol, String operation) {
         super(operation);
         owner = mSymbol;
         before = mSymbol.clone();
+        revision = mSymbol.getRevision();
     }
 
     @Override
@@ -53,7 +55,7 @@ public class MSymbolEdit extends AbstractEdit {
     public void end() {
         super.end();
 
-        if (owner.equals(before)) {
+        if (owner.getRevision() == revision) {
             die();
             return;
         }
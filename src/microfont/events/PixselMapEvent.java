@@ -11,6 +11,7 @@ import microfont.PixselMap;
 public class PixselMapEvent extends EventObject {
     private static final long serialVersionUID = 4283930318715669061L;
     private int               x, y, width, height;
+    private Rectangle[]       tiles;
 
     /**
      * Создание события.
@@ -23,11 +24,29 @@ public class PixselMapEvent extends EventObject {
      * @param height Высота фрагмента с изменившимися пикселями.
      */
     public PixselMapEvent(PixselMap source, int x, int y, int width, int height) {
+        this(source, x, y, width, height, null);
+    }
+
+    /**
+     * Создание события с областями изменившихся плиток карты.
+     * 
+     * @param source Карта, в которой произошли изменения.
+     * @param x Горизонтальная позиция начала фрагмента с изменившимися
+     *            пикселями.
+     * @param y Вертикальная позиция начала фрагмента с изменившимися пикселями.
+     * @param width Ширина фрагмента с изменившимися пикселями.
+     * @param height Высота фрагмента с изменившимися пикселями.
+     * @param tiles Области изменившихся плиток внутри фрагмента или
+     *            <code>null</code>, если изменился весь фрагмент.
+     */
+    public PixselMapEvent(PixselMap source, int x, int y, int width,
+                    int height, Rectangle[] tiles) {
         super(source);
         this.x = x;
         this.y = y;
         this.width = width;
         this.height = height;
+        this.tiles = tiles;
     }
 
     /**
@@ -47,6 +66,19 @@ public class PixselMapEvent extends EventObject {
         return new Rectangle(x, y, width, height);
     }
 
+    /**
+     * Возвращает области фрагмента, в которых изменились пиксели. Каждая
+     * область состоит из соседних плиток 64x64 карты. Если плитки не
+     * известны, то возвращается весь фрагмент.
+     */
+    public Rectangle[] tiles() {
+        if (tiles == null) return new Rectangle[] { rect() };
+        Rectangle[] ret = new Rectangle[tiles.length];
+        for (int i = 0; i < tiles.length; i++)
+            ret[i] = new Rectangle(tiles[i]);
+        return ret;
+    }
+
     /**
      * Возвращает горизонтальную позицию начала фрагмента карты с изменившимися
      * пикселями.
@@ -0,0 +1,73 @@
+package microfont.events;
+
+import java.beans.PropertyChangeEvent;
+import microfont.AbstractMFont;
+import microfont.MSymbol;
+
+/**
+ * Событие при групповом изменении набора символов шрифта. Генерируется одно
+ * событие на всю операцию {@link AbstractMFont#addAll(java.util.Collection)},
+ * {@link AbstractMFont#removeAll(java.util.Collection)} или
+ * {@link AbstractMFont#replaceRange(int, int, java.util.Collection)}.
+ * <p>
+ * Свойство события {@link AbstractMFont#PROPERTY_SYMBOLS}, старое значение -
+ * массив удалённых и заменённых символов, новое - массив добавленных. Диапазон
+ * порядковых номеров охватывает все изменившиеся позиции; номера удалённых
+ * символов берутся до изменения, добавленных - после. Если число символов
+ * изменилось, то сдвигаются и все символы после диапазона.
+ */
+public class SymbolsChangeEvent extends PropertyChangeEvent {
+    private static final long serialVersionUID = -3508715328125563047L;
+    private int               first, last;
+
+    /**
+     * Создание события.
+     * 
+     * @param source Шрифт, в котором произошли изменения.
+     * @param removed Удалённые и заменённые символы.
+     * @param added Добавленные символы.
+     * @param first Порядковый номер первой изменившейся позиции.
+     * @param last Порядковый номер последней изменившейся позиции.
+     */
+    public SymbolsChangeEvent(AbstractMFont source, MSymbol[] removed,
+                    MSymbol[] added, int first, int last) {
+        super(source, AbstractMFont.PROPERTY_SYMBOLS, removed, added);
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Возвращает удалённые и заменённые символы.
+     */
+    public MSymbol[] removed() {
+        return (MSymbol[]) getOldValue();
+    }
+
+    /**
+     * Возвращает добавленные символы.
+     */
+    public MSymbol[] added() {
+        return (MSymbol[]) getNewValue();
+    }
+
+    /**
+     * Возвращает порядковый номер первой изменившейся позиции.
+     */
+    public int first() {
+        return first;
+    }
+
+    /**
+     * Возвращает порядковый номер последней изменившейся позиции.
+     */
+    public int last() {
+        return last;
+    }
+
+    /**
+     * Возвращает <code>true</code>, если число символов шрифта изменилось.
+     */
+    public boolean isResized() {
+        return removed().length != added().length;
+    }
+}
@@ -0,0 +1,62 @@
+package microfont.gui;
+
+import java.awt.event.MouseEvent;
+import microfont.AbstractPixselMap;
+import microfont.Document;
+import microfont.MSymbol;
+import microfont.PixselMap;
+import microfont.render.PointInfo;
+
+/**
+ * Контроллер редактора символов для заливки области. Щелчок левой кнопкой
+ * мышки закрашивает область, связанную с пикселем под курсором, щелчок правой
+ * кнопкой - стирает. Обычно связанными считаются только соседние по
+ * горизонтали и вертикали пиксели, при нажатой клавише <b>Shift</b> - и
+ * соседние по диагонали.
+ * 
+ * @see PixselMap#fill(int, int, boolean, boolean)
+ */
+public class FillEditor implements Editor {
+    @Override
+    public void mousePressed(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseReleased(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseClicked(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        AbstractPixselMap apm = comp.getPixselMap();
+        if (!(apm instanceof PixselMap) || !info.isPixsel()) return;
+
+        boolean state;
+        if (mouse.getButton() == MouseEvent.BUTTON1) state = true;
+        else if (mouse.getButton() == MouseEvent.BUTTON3) state = false;
+        else return;
+
+        PixselMap pm = (PixselMap) apm;
+        Document doc = comp.getDocument();
+        if (doc != null && pm instanceof MSymbol)
+            doc.symbolEdit("fill", (MSymbol) pm);
+        pm.fill(info.getX(), info.getY(), state, mouse.isShiftDown());
+        if (doc != null && pm instanceof MSymbol) doc.endEdit();
+    }
+
+    @Override
+    public void mouseDragged(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseMoved(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+}
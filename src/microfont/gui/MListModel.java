@@ -11,6 +11,7 @@ import microfont.MFont;
 import microfont.MSymbol;
 import microfont.events.PixselMapEvent;
 import microfont.events.PixselMapListener;
+import microfont.events.SymbolsChangeEvent;
 
 /**
  * Класс для представления {@linkplain MFont шрифта} в JList.
@@ -101,7 +102,13 @@ public class MListModel extends AbstractListModel<MSymbol> implements
     public void propertyChange(PropertyChangeEvent event) {
         MFont font;
 
-        if ((event.getSource() instanceof MFont)) {
+        if (event instanceof SymbolsChangeEvent) {
+            SymbolsChangeEvent e = (SymbolsChangeEvent) event;
+            int last = e.last();
+            // Символы после диапазона сдвинулись.
+            if (e.isResized()) last = Math.max(last, getSize() - 1);
+            fireContentsChanged(this, e.first(), last);
+        } else if ((event.getSource() instanceof MFont)) {
             font = (MFont) event.getSource();
             fireContentsChanged(this, 0, font.length() - 1);
         }
@@ -54,6 +54,24 @@ public class MSymbolEditor extends AbstractView {
         addMouseWheelListener(handler);
     }
 
+    /**
+     * Возвращает контроллер редактора или <code>null</code>, если пиксели
+     * рисуются мышкой без контроллера.
+     */
+    public Editor getEditor() {
+        return control;
+    }
+
+    /**
+     * Устанавливает контроллер редактора.
+     * 
+     * @param editor Контроллер или <code>null</code> для рисования пикселей
+     *            мышкой.
+     */
+    public void setEditor(Editor editor) {
+        control = editor;
+    }
+
     public Document getDocument() {
         return document;
     }
@@ -113,6 +131,42 @@ public class MSymbolEditor extends AbstractView {
                     MouseWheelListener {
         PointInfo info;
         boolean   paint;
+        /** Пиксель, на котором было предыдущее событие мыши. */
+        int       lastX, lastY;
+
+        /**
+         * Закрашивает или стирает пиксели отрезка от предыдущей точки до
+         * текущей, чтобы быстрое движение мыши не оставляло пропусков. Все
+         * пиксели отрезка изменяются одним пакетом и порождают одно сообщение.
+         */
+        void stroke(PixselMap pm, int x, int y) {
+            int dx = Math.abs(x - lastX), sx = lastX < x ? 1 : -1;
+            int dy = -Math.abs(y - lastY), sy = lastY < y ? 1 : -1;
+            int err = dx + dy;
+            int px = lastX, py = lastY;
+
+            pm.beginUpdate();
+            try {
+                for (;;) {
+                    pm.setPixsel(px, py, paint);
+                    if (px == x && py == y) break;
+                    int e2 = 2 * err;
+                    if (e2 >= dy) {
+                        err += dy;
+                        px += sx;
+                    }
+                    if (e2 <= dx) {
+                        err += dx;
+                        py += sy;
+                    }
+                }
+            } finally {
+                pm.endUpdate();
+            }
+
+            lastX = x;
+            lastY = y;
+        }
 
         @Override
         public void mouseWheelMoved(MouseWheelEvent e) {
@@ -128,8 +182,7 @@ public class MSymbolEditor extends AbstractView {
             } else {
                 AbstractPixselMap apm = getPixselMap();
                 if (apm instanceof PixselMap) {
-                    PixselMap pm = (PixselMap) apm;
-                    pm.setPixsel(info.getX(), info.getY(), paint);
+                    stroke((PixselMap) apm, info.getX(), info.getY());
                 }
             }
         }
@@ -175,6 +228,8 @@ public class MSymbolEditor extends AbstractView {
                 if (apm instanceof PixselMap) {
                     if (e.getButton() == MouseEvent.BUTTON1) paint = true;
                     if (e.getButton() == MouseEvent.BUTTON3) paint = false;
+                    lastX = info.getX();
+                    lastY = info.getY();
 
                     PixselMap pm = (PixselMap) apm;
                     if (document != null)
@@ -0,0 +1,130 @@
+package microfont.gui;
+
+import java.awt.event.MouseEvent;
+import microfont.AbstractPixselMap;
+import microfont.Document;
+import microfont.MSymbol;
+import microfont.PixselMap;
+import microfont.render.PointInfo;
+
+/**
+ * Контроллер редактора символов для рисования фигур. Фигура растягивается
+ * мышкой от точки нажатия до текущего положения курсора и окончательно
+ * рисуется при отпускании кнопки. Левая кнопка мышки закрашивает пиксели,
+ * правая - стирает, а при нажатой клавише <b>Ctrl</b> пиксели инвертируются.
+ * При нажатой клавише <b>Shift</b> прямоугольник и эллипс закрашиваются
+ * целиком.
+ * 
+ * @see PixselMap#line(int, int, int, int, int)
+ * @see PixselMap#rectangle(int, int, int, int, boolean, int)
+ * @see PixselMap#ellipse(int, int, int, int, boolean, int)
+ */
+public class ShapeEditor implements Editor {
+    /** Отрезок прямой. */
+    public static final int SHAPE_LINE      = 0;
+    /** Прямоугольник. */
+    public static final int SHAPE_RECTANGLE = 1;
+    /** Эллипс. */
+    public static final int SHAPE_ELLIPSE   = 2;
+
+    private int             shape;
+    /** Редактируемая карта или <code>null</code>, если фигура не рисуется. */
+    private PixselMap       map;
+    /** Пиксели карты до начала рисования. */
+    private PixselMap       before;
+    private Document        document;
+    private int             startX, startY;
+    private int             mode;
+
+    /**
+     * Создаёт контроллер для рисования фигуры.
+     * 
+     * @param s Фигура: {@link #SHAPE_LINE}, {@link #SHAPE_RECTANGLE} или
+     *            {@link #SHAPE_ELLIPSE}.
+     */
+    public ShapeEditor(int s) {
+        shape = s;
+    }
+
+    @Override
+    public void mousePressed(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        AbstractPixselMap apm = comp.getPixselMap();
+        if (map != null || !(apm instanceof PixselMap)) return;
+
+        if (mouse.isControlDown()) mode = PixselMap.DRAW_NEG;
+        else if (mouse.getButton() == MouseEvent.BUTTON1)
+            mode = PixselMap.DRAW_SET;
+        else if (mouse.getButton() == MouseEvent.BUTTON3)
+            mode = PixselMap.DRAW_CLEAR;
+        else return;
+
+        map = (PixselMap) apm;
+        before = map.clone();
+        startX = info.getX();
+        startY = info.getY();
+        document = comp.getDocument();
+        if (document != null && map instanceof MSymbol)
+            document.symbolEdit("draw", (MSymbol) map);
+        draw(mouse, info);
+    }
+
+    @Override
+    public void mouseReleased(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        if (map == null) return;
+
+        draw(mouse, info);
+        if (document != null && map instanceof MSymbol) document.endEdit();
+        map = null;
+        before = null;
+        document = null;
+    }
+
+    @Override
+    public void mouseClicked(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseDragged(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        if (map != null) draw(mouse, info);
+    }
+
+    @Override
+    public void mouseMoved(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    /**
+     * Восстанавливает карту и рисует фигуру от точки нажатия до текущей
+     * точки. Восстановление и рисование порождают одно сообщение.
+     */
+    private void draw(MouseEvent mouse, PointInfo info) {
+        int x = Math.min(startX, info.getX());
+        int y = Math.min(startY, info.getY());
+        int w = Math.abs(info.getX() - startX) + 1;
+        int h = Math.abs(info.getY() - startY) + 1;
+        boolean filled = mouse.isShiftDown();
+
+        map.beginUpdate();
+        try {
+            map.place(0, 0, before);
+            switch (shape) {
+            case SHAPE_RECTANGLE:
+                map.rectangle(x, y, w, h, filled, mode);
+                break;
+            case SHAPE_ELLIPSE:
+                map.ellipse(x, y, w, h, filled, mode);
+                break;
+            default:
+                map.line(startX, startY, info.getX(), info.getY(), mode);
+            }
+        } finally {
+            map.endUpdate();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package microfont.gui;
+
+import java.awt.event.MouseEvent;
+import microfont.AbstractPixselMap;
+import microfont.Document;
+import microfont.MSymbol;
+import microfont.PixselMap;
+import microfont.render.PointInfo;
+
+/**
+ * Контроллер редактора символов для работы со штрихами. Штрих - это связная
+ * область закрашенных пикселей, включая соседние по диагонали. Щелчок левой
+ * кнопкой мышки по штриху оставляет в символе только этот штрих, щелчок
+ * правой кнопкой - стирает штрих.
+ * 
+ * @see AbstractPixselMap#label(int[], boolean)
+ */
+public class StrokeEditor implements Editor {
+    @Override
+    public void mousePressed(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseReleased(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseClicked(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        AbstractPixselMap apm = comp.getPixselMap();
+        if (!(apm instanceof PixselMap) || !info.isPixsel()) return;
+
+        boolean keep;
+        if (mouse.getButton() == MouseEvent.BUTTON1) keep = true;
+        else if (mouse.getButton() == MouseEvent.BUTTON3) keep = false;
+        else return;
+
+        PixselMap pm = (PixselMap) apm;
+        PixselMap stroke = getStroke(pm, info.getX(), info.getY());
+        if (stroke == null) return;
+
+        Document doc = comp.getDocument();
+        String operation = keep ? "keep stroke" : "erase stroke";
+        if (doc != null && pm instanceof MSymbol)
+            doc.symbolEdit(operation, (MSymbol) pm);
+        // Одна операция наложения - одно сообщение об изменении.
+        if (keep) pm.and(0, 0, stroke);
+        else pm.xor(0, 0, stroke);
+        if (doc != null && pm instanceof MSymbol) doc.endEdit();
+    }
+
+    @Override
+    public void mouseDragged(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    @Override
+    public void mouseMoved(MSymbolEditor comp, MouseEvent mouse,
+                    PointInfo info) {
+        //
+    }
+
+    /**
+     * Возвращает карту того же размера, что и <code>pm</code>, в которой
+     * закрашен только штрих, проходящий через пиксель <code>x</code>:
+     * <code>y</code>.
+     * 
+     * @return Карта штриха или <code>null</code>, если пиксель не закрашен.
+     */
+    static PixselMap getStroke(PixselMap pm, int x, int y) {
+        int w = pm.getWidth(), h = pm.getHeight();
+        if (x < 0 || x >= w || y < 0 || y >= h) return null;
+
+        int[] labels = new int[w * h];
+        pm.label(labels, true);
+        int n = labels[y * w + x];
+        if (n == 0) return null;
+
+        PixselMap ret = new PixselMap(w, h);
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == n) ret.setPixsel(i % w, i / w, true);
+        }
+        return ret;
+    }
+}
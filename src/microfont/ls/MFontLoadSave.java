@@ -4,6 +4,7 @@ package microfont.ls;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
 import utils.ini.Handler;
 import utils.ini.Parser;
@@ -46,7 +47,7 @@ public class MFontLoadSave {
                     IOException {
         MSymbol sym;
         int w, last;
-        byte[] arr;
+        ByteBuffer arr;
 
         if (svr == null) {
             throw (new IllegalArgumentException("file is null"));
@@ -88,6 +89,13 @@ public class MFontLoadSave {
             svr.section(SYMBOLS);
             last = -1;
 
+            // Один буфер на все символы шрифта.
+            int size = 0;
+            for (int i = 0; i < mFont.length(); i++) {
+                size = Math.max(size, mFont.symbolByIndex(i).getBytesLength());
+            }
+            arr = ByteBuffer.allocate(size);
+
             StringBuffer buff = new StringBuffer();
             for (int i = 0; i < mFont.length(); i++) {
                 sym = mFont.symbolByIndex(i);
@@ -102,11 +110,13 @@ public class MFontLoadSave {
                     svr.key(SYMBOLS_WIDTH, Integer.toString(w));
                 }
 
-                arr = sym.getBytes();
+                arr.clear();
+                sym.getBytes(arr);
+                arr.flip();
                 buff.delete(0, buff.length());
-                for (byte bt : arr) {
+                while (arr.hasRemaining()) {
                     if (buff.length() > 0) buff.append(" ");
-                    buff.append(Integer.toHexString(bt & 0x00ff));
+                    buff.append(Integer.toHexString(arr.get() & 0x00ff));
                 }
                 svr.key(SYMBOLS_BYTES, buff.toString());
             }
@@ -211,7 +221,14 @@ public class MFontLoadSave {
                         bytes[i] = (byte) Short.parseShort(st.nextToken(), 16);
                     }
 
-                    font.add(new MSymbol(code, width, height, bytes));
+                    /* Подгонка под шрифт выпустит одно сообщение. */
+                    MSymbol symbol = new MSymbol(code, width, height, bytes);
+                    symbol.beginUpdate();
+                    try {
+                        font.add(symbol);
+                    } finally {
+                        symbol.endUpdate();
+                    }
                     code++;
                 }
             } else {
@@ -8,6 +8,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import microfont.AbstractPixselMap;
 import microfont.AbstractPixselMap.PixselIterator;
+import microfont.AbstractPixselMap.SpanIterator;
 import microfont.Metrics;
 import microfont.PixselMap;
 import microfont.events.PixselMapEvent;
@@ -127,25 +128,34 @@ public class PixselMapRender implements Render, ColorIndex, Metrics {
         renderStartY = pointToPixselY(renderStartY);
         pixselCountY -= renderStartY;
 
-        PixselIterator pi = pixmap
-                        .getIterator(renderStartX, renderStartY, pixselCountX,
-                                        pixselCountY,
-                                        PixselIterator.DIR_TOP_LEFT);
+        SpanIterator si = pixmap.getSpanIterator(renderStartX, renderStartY,
+                        pixselCountX, pixselCountY,
+                        PixselIterator.DIR_LEFT_TOP);
+        int firstX = renderStartX;
+        int firstY = renderStartY;
 
         renderStartX = pixselToPointX(renderStartX) + x;
         renderStartY = pixselToPointY(renderStartY) + y;
 
-        int posX = renderStartX;
+        // Зазоры между пикселями будут закрашены или их нет.
+        boolean solid = spacing == 0 || !drawOnlyInk
+                        && colorAt(COLOR_SPACE, defCol) != null;
+        int posX;
         int posY;
-        for (int i = 0; i < pixselCountX; i++) {
-            posY = renderStartY;
-            for (int j = 0; j < pixselCountY; j++) {
-                drawPixsel(g, posX, posY,
-                                indexAt(pi.getX(), pi.getY(), pi.getNext()),
-                                defCol);
-                posY += stepY;
+        while (si.hasNext()) {
+            int len = si.next();
+            int px = si.getX();
+            int py = si.getY();
+            boolean ink = si.getValue();
+
+            posY = renderStartY + (py - firstY) * stepY;
+            while (len > 0) {
+                int n = sameColor(px, len);
+                posX = renderStartX + (px - firstX) * stepX;
+                drawRun(g, posX, posY, n, indexAt(px, py, ink), defCol, solid);
+                px += n;
+                len -= n;
             }
-            posX += stepX;
         }
 
         if (!drawOnlyInk) {
@@ -830,6 +840,60 @@ public class PixselMapRender implements Render, ColorIndex, Metrics {
         }
     }
 
+    /**
+     * Отрисовка отрезка из <code>count</code> пикселей строки одного цвета.
+     * Если зазоров между пикселями нет или они будут закрашены цветом зазора,
+     * то отрезок рисуется одним прямоугольником, иначе - по пикселям.
+     * 
+     * @param g Графический контекст.
+     * @param x Горизонтальная координата начала отрисовки первого пикселя.
+     * @param y Вертикальная координата начала отрисовки.
+     * @param count Количество пикселей отрезка.
+     * @param cInd Индекс цвета пикселей.
+     * @param fg Цвет рисования по умолчанию.
+     * @param solid <code>true</code> если зазоры можно закрашивать.
+     * @see #drawPixsel(Graphics, int, int, int, Color)
+     */
+    protected void drawRun(Graphics g, int x, int y, int count, int cInd,
+                    Color fg, boolean solid) {
+        if (!solid) {
+            for (int i = 0; i < count; i++) {
+                drawPixsel(g, x, y, cInd, fg);
+                x += stepX;
+            }
+            return;
+        }
+
+        Color c = colorAt(cInd, fg);
+        if (c == null) return;
+        g.setColor(c);
+        g.fillRect(x, y, count * stepX - spacing, pixselHeight);
+    }
+
+    /**
+     * Возвращает количество пикселей строки, начиная с <code>x</code>, но не
+     * больше <code>len</code>, цвет которых одинаков. Цвет пикселей строки
+     * меняется только на границах левого и правого полей.
+     * 
+     * @param x Горизонтальная позиция первого пикселя.
+     * @param len Длина отрезка.
+     * @see #indexAt(int, int, boolean)
+     */
+    private int sameColor(int x, int len) {
+        if (!drawMargins) return len;
+
+        int ret = len;
+        if (isMetricActually(METRIC_LEFT)) {
+            int b = getMetric(METRIC_LEFT);
+            if (x < b && b - x < ret) ret = b - x;
+        }
+        if (isMetricActually(METRIC_RIGHT)) {
+            int b = pixmap.getWidth() - getMetric(METRIC_RIGHT);
+            if (x < b && b - x < ret) ret = b - x;
+        }
+        return ret;
+    }
+
     /**
      * Отрисовка одного перекрестия сетки. Координаты начала отрисовки
      * соответствуют центру сетки.
@@ -887,9 +951,11 @@ public class PixselMapRender implements Render, ColorIndex, Metrics {
 
         @Override
         public void pixselChanged(PixselMapEvent event) {
-            rect.setBounds(event.x(), event.y(), event.width(), event.height());
-            rect = toPointRect(rect, rect);
-            requestRepaint(rect);
+            // Перерисовываются только изменившиеся плитки карты.
+            for (Rectangle tile : event.tiles()) {
+                rect = toPointRect(tile, rect);
+                requestRepaint(rect);
+            }
         }
     }
 }
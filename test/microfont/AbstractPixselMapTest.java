@@ -2,6 +2,7 @@
 package microfont;
 
 import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
 import org.junit.Test;
 
 public class AbstractPixselMapTest {
@@ -26,6 +27,33 @@ public class AbstractPixselMapTest {
         assertTrue(first.equals(second));
     }
 
+    @Test
+    public void testGetFingerprint() throws DisallowOperationException {
+        AbstractPixselMap first, second;
+
+        first = createAbstractPixselMap(5, 7, new byte[] { 0, 8, 0, 9, 127 });
+        second = createAbstractPixselMap(5, 7, new byte[] { 0, 8, 0, 9, 127 });
+        assertEquals(first.getFingerprint(), second.getFingerprint());
+        assertEquals(first.hashCode(), second.hashCode());
+
+        // Карты одинаковой площади, но разной формы.
+        first = createAbstractPixselMap(5, 7, null);
+        second = createAbstractPixselMap(7, 5, null);
+        assertFalse(first.getFingerprint() == second.getFingerprint());
+
+        // Отпечаток сбрасывается при изменении карты.
+        first = createAbstractPixselMap(5, 7, null);
+        second = createAbstractPixselMap(5, 7, new byte[] { 0, 8, 0, 9, 127 });
+        long empty = first.getFingerprint();
+        first.copy(second);
+        assertEquals(second.getFingerprint(), first.getFingerprint());
+        first.changePixsel(1, 1, true);
+        assertFalse(first.equals(second));
+        assertFalse(second.getFingerprint() == first.getFingerprint());
+        first.copy(createAbstractPixselMap(5, 7, null));
+        assertEquals(empty, first.getFingerprint());
+    }
+
     @Test
     public void testGetSize() {
         AbstractPixselMap apm;
@@ -96,6 +124,79 @@ public class AbstractPixselMapTest {
         assertArrayEquals(array, apm.getBytes());
     }
 
+    @Test
+    public void testGetBytesByteBuffer() {
+        AbstractPixselMap apm;
+        byte[] array = new byte[] { 127, 17, 111, 37, 0 };
+        ByteBuffer buf = ByteBuffer.allocate(12);
+
+        apm = createAbstractPixselMap(5, 7, array);
+        assertEquals(array.length, apm.getBytesLength());
+        buf.position(2);
+        apm.getBytes(buf);
+        assertEquals(2 + array.length, buf.position());
+
+        byte[] actual = new byte[array.length];
+        buf.position(2);
+        buf.get(actual);
+        assertArrayEquals(array, actual);
+
+        // Широкая карта, строки которой занимают несколько слов.
+        array = new byte[(70 * 3 + 7) / 8];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (byte) (i * 37 + 11);
+        }
+        array[array.length - 1] &= 0x3;
+        apm = createAbstractPixselMap(70, 3, array);
+        buf = ByteBuffer.allocate(apm.getBytesLength());
+        apm.getBytes(buf);
+        assertArrayEquals(array, buf.array());
+    }
+
+    @Test
+    public void testGetSpanIterator() {
+        byte[] array = new byte[(70 * 5 + 7) / 8];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (byte) (i * 97 + 13);
+        }
+        array[4] = 0;
+        array[5] = -1;
+        array[6] = -1;
+        array[array.length - 1] &= 0x3f;
+        AbstractPixselMap apm = createAbstractPixselMap(70, 5, array);
+
+        // Пиксели отрезков должны идти в том же порядке, что и у итератора
+        // пикселей.
+        for (int dir = 0; dir < 8; dir++) {
+            AbstractPixselMap.PixselIterator pi = apm.getIterator(-3, 1, 71,
+                            3, dir);
+            AbstractPixselMap.SpanIterator si = apm.getSpanIterator(-3, 1, 71,
+                            3, dir);
+            assertEquals(pi.getWidth(), si.getWidth());
+            assertEquals(pi.getHeight(), si.getHeight());
+
+            boolean last = false;
+            int line = -1, count = 0;
+            while (si.hasNext()) {
+                int len = si.next();
+                assertTrue(len > 0);
+
+                // Соседние отрезки одной линии имеют разное состояние.
+                int l = si.isHorizontal() ? si.getY() : si.getX();
+                if (l == line) assertTrue(last != si.getValue());
+                line = l;
+                last = si.getValue();
+
+                for (int i = 0; i < len; i++) {
+                    assertEquals(si.getValue(), pi.getNext());
+                }
+                count += len;
+            }
+            assertFalse(pi.hasNext());
+            assertEquals(68 * 3, count);
+        }
+    }
+
     @Test
     public void testEmptyLeft() {
         AbstractPixselMap apm;
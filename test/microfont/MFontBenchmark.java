@@ -0,0 +1,199 @@
+package microfont;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Замеры скорости хранилища символов {@link AbstractMFont}. Это не тест JUnit,
+ * а самостоятельная программа, как и {@link PixselMapBenchmark}.
+ * <p>
+ * В шрифт загружается {@link #GLYPHS} символов с кодами по возрастанию, по
+ * убыванию и в случайном порядке, по одному и одним вызовом
+ * {@link AbstractMFont#addAll(java.util.Collection)}, после чего замеряется
+ * поиск символов по коду и по порядковому номеру и смена ширины
+ * моноширинного шрифта. Поиск по уникоду замеряется на шрифте в кодировке
+ * cp1251, назначение кодировки - на шрифте из всех символов Shift_JIS. Для
+ * каждой операции выводится среднее время одного прогона в миллисекундах.
+ */
+public class MFontBenchmark {
+    /** Количество символов шрифта. */
+    static final int GLYPHS = 65536;
+    /** Количество прогонов для разогрева JIT. */
+    static final int WARMUP = 3;
+    /** Количество замеряемых прогонов. */
+    static final int RUNS   = 5;
+
+    /**
+     * Приёмник результатов, не позволяющий JIT выбросить вычисления.
+     */
+    static volatile long sink;
+
+    /**
+     * Замеряемое действие.
+     */
+    static abstract class Action {
+        final String name;
+
+        Action(String name) {
+            this.name = name;
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    /**
+     * Выполняет действие и печатает среднее время одного прогона.
+     */
+    static void measure(Action act) throws Exception {
+        long acc = 0;
+        for (int i = 0; i < WARMUP; i++)
+            acc += act.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            acc += act.run();
+        long time = System.nanoTime() - start;
+        sink += acc;
+        System.out.printf("%-24s %10.2f ms/run%n", act.name, (double) time
+                / RUNS / 1000000);
+    }
+
+    /**
+     * Создаёт шрифт и загружает в него символы с кодами из
+     * <code>codes</code>.
+     */
+    static MFont load(int[] codes) {
+        MFont font = new MFont();
+        font.setHeight(1);
+        for (int code : codes)
+            font.add(new MSymbol(code, 1, 1));
+        return font;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int[] ascending = new int[GLYPHS];
+        final int[] descending = new int[GLYPHS];
+        final int[] shuffled = new int[GLYPHS];
+        Random rnd = new Random(1);
+
+        for (int i = 0; i < GLYPHS; i++) {
+            ascending[i] = i;
+            descending[i] = GLYPHS - 1 - i;
+            shuffled[i] = i;
+        }
+        for (int i = GLYPHS - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int t = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = t;
+        }
+
+        System.out.println("Font " + GLYPHS + " glyphs, " + RUNS + " runs");
+
+        measure(new Action("load ascending") {
+            @Override
+            long run() throws Exception {
+                return load(ascending).length();
+            }
+        });
+        measure(new Action("load descending") {
+            @Override
+            long run() throws Exception {
+                return load(descending).length();
+            }
+        });
+        measure(new Action("load shuffled") {
+            @Override
+            long run() throws Exception {
+                return load(shuffled).length();
+            }
+        });
+
+        measure(new Action("addAll shuffled") {
+            @Override
+            long run() throws Exception {
+                MFont font = new MFont();
+                font.setHeight(1);
+                List<MSymbol> list = new ArrayList<MSymbol>(GLYPHS);
+                for (int code : shuffled)
+                    list.add(new MSymbol(code, 1, 1));
+                font.addAll(list);
+                return font.length();
+            }
+        });
+
+        final MFont font = load(ascending);
+        measure(new Action("symbolByCode") {
+            @Override
+            long run() throws Exception {
+                long ret = 0;
+                for (int code : shuffled)
+                    ret += font.symbolByCode(code).getWidth();
+                return ret;
+            }
+        });
+        measure(new Action("symbolByIndex") {
+            @Override
+            long run() throws Exception {
+                long ret = 0;
+                for (int i = 0; i < GLYPHS; i++)
+                    ret += font.symbolByIndex(i).getWidth();
+                return ret;
+            }
+        });
+
+        font.setFixsed(true);
+        measure(new Action("setWidth fixsed") {
+            @Override
+            long run() throws Exception {
+                font.setWidth(9);
+                font.setWidth(1);
+                return font.getWidth();
+            }
+        });
+
+        final MFont cyr = new MFont();
+        cyr.setHeight(1);
+        cyr.setCodePage("cp1251");
+        // Код 0x98 в cp1251 не назначен.
+        for (int i = 0; i < 256; i++)
+            if (i != 0x98) cyr.add(new MSymbol(i, 1, 1));
+        final int[] text = new int[GLYPHS];
+        for (int i = 0; i < GLYPHS; i++)
+            text[i] = cyr.symbolByIndex(rnd.nextInt(cyr.length()))
+                            .getUnicode();
+        measure(new Action("symbolByUnicode") {
+            @Override
+            long run() throws Exception {
+                long ret = 0;
+                for (int u : text)
+                    ret += cyr.symbolByUnicode(u).getWidth();
+                return ret;
+            }
+        });
+
+        final MFont jis = new MFont();
+        jis.setCodePage("Shift_JIS");
+        int n = 0;
+        final int[] kanji = new int[GLYPHS];
+        for (int i = 0; i < GLYPHS; i++) {
+            try {
+                jis.toUnicode(i);
+                kanji[n++] = i;
+            } catch (Exception e) {
+                // Код не входит в кодировку.
+            }
+        }
+        final int[] jisCodes = Arrays.copyOf(kanji, n);
+        System.out.println("Shift_JIS font " + n + " glyphs");
+        measure(new Action("setCodePage") {
+            @Override
+            long run() throws Exception {
+                MFont font = load(jisCodes);
+                font.setCodePage("Shift_JIS");
+                return font.length();
+            }
+        });
+    }
+}
@@ -3,6 +3,12 @@ package microfont;
 
 import static org.junit.Assert.*;
 import java.awt.Dimension;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import microfont.events.SymbolsChangeEvent;
 import org.junit.Test;
 
 public class MSymbolTest extends PixselMapTest {
@@ -121,6 +127,538 @@ public class MSymbolTest extends PixselMapTest {
         assertTrue(sym.getOwner() == null);
     }
 
+    @Test
+    public void testSymbolCache() {
+        MFont font = new MFont();
+        font.setHeight(11);
+        MSymbol first = createMSymbol(1, 9, 11, left);
+        MSymbol second = createMSymbol(2, 9, 11, null);
+        byte[] bytes = first.getBytes();
+        font.add(first);
+        font.add(second);
+
+        SymbolCache cache = font.getSymbolCache();
+        assertEquals(2 * 11 * 8, cache.getExpandedBytes());
+        assertEquals(0, cache.getPackedBytes());
+
+        // Символы, к которым обращались, получают второй шанс.
+        cache.setBudget(0);
+        cache.setBudget(0);
+        assertTrue(first.isPacked());
+        assertTrue(second.isPacked());
+        assertEquals(0, cache.getExpandedBytes());
+        assertTrue(cache.getPackedBytes() > 0);
+        assertArrayEquals(bytes, first.getBytes());
+        assertTrue(first.isPacked());
+
+        // Обращение к пикселям распаковывает символ.
+        cache.setBudget(11 * 8);
+        first.getPixsel(0, 0);
+        assertFalse(first.isPacked());
+        assertTrue(second.isPacked());
+        assertEquals(11 * 8, cache.getExpandedBytes());
+        assertArrayEquals(bytes, first.getBytes());
+
+        // Распаковка второго символа вытесняет первый при следующей проверке.
+        second.setPixsel(0, 0, true);
+        assertFalse(second.isPacked());
+        assertFalse(first.isPacked());
+        cache.setBudget(11 * 8);
+        assertTrue(first.isPacked());
+        assertFalse(second.isPacked());
+        assertEquals(11 * 8, cache.getExpandedBytes());
+
+        font.remove(first);
+        font.remove(second);
+        assertEquals(0, cache.getExpandedBytes());
+        assertEquals(0, cache.getPackedBytes());
+    }
+
+    @Test
+    public void testRevision() {
+        MFont font = new MFont();
+        font.setHeight(11);
+        MSymbol sym = createMSymbol(1, 9, 11, left);
+        long r = sym.getRevision();
+
+        // Запись без изменения пикселей не меняет номер редакции.
+        sym.setPixsel(0, 0, sym.getPixsel(0, 0));
+        sym.setCode(1);
+        assertEquals(r, sym.getRevision());
+
+        sym.setPixsel(0, 0, !sym.getPixsel(0, 0));
+        assertTrue(sym.getRevision() > r);
+
+        r = sym.getRevision();
+        sym.setCode(2);
+        assertTrue(sym.getRevision() > r);
+        r = sym.getRevision();
+        try {
+            sym.setWidth(8);
+        } catch (DisallowOperationException e) {
+            fail();
+        }
+        assertTrue(sym.getRevision() > r);
+
+        // Изменение символа меняет номер редакции шрифта.
+        font.add(sym);
+        long f = font.getRevision();
+        r = sym.getRevision();
+        font.getSymbolCache().setBudget(0);
+        font.getSymbolCache().setBudget(0);
+        assertTrue(sym.isPacked());
+        assertEquals(r, sym.getRevision());
+        assertEquals(f, font.getRevision());
+
+        sym.setPixsel(3, 3, !sym.getPixsel(3, 3));
+        assertTrue(sym.getRevision() > r);
+        assertTrue(font.getRevision() > f);
+
+        f = font.getRevision();
+        font.setName("revision");
+        assertTrue(font.getRevision() > f);
+
+        // Запись, прерванная исключением, не останавливает номер редакции.
+        f = font.getRevision();
+        r = sym.getRevision();
+        try {
+            sym.changeRow(4, new long[0]);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            //
+        }
+        assertEquals(0, sym.getVersion() & 1);
+        sym.setPixsel(4, 4, !sym.getPixsel(4, 4));
+        assertTrue(sym.getRevision() > r);
+        assertTrue(font.getRevision() > f);
+        int v = sym.getVersion();
+        assertTrue(sym.validate(v));
+    }
+
+    @Test
+    public void testStyleGenerator() throws InterruptedException {
+        MFont font = new MFont();
+        font.setFixsed(false);
+        font.setHeight(11);
+        font.setMetric(Metrics.METRIC_BASELINE, 8);
+        font.setMetric(Metrics.METRIC_DESCENT, 2);
+        MSymbol sym = createMSymbol(1, 5, 11, null);
+        sym.setPixsel(1, 2, true);
+        font.add(sym);
+        sym = font.symbolByCode(1);
+
+        // Жирное и подчёркнутое начертание.
+        MFont styled = new StyleGenerator(StyleGenerator.STYLE_BOLD
+                        | StyleGenerator.STYLE_UNDERLINE, 1).apply(font);
+        MSymbol res = styled.symbolByCode(1);
+        assertEquals(6, res.getWidth());
+        assertTrue(res.getPixsel(1, 2));
+        assertTrue(res.getPixsel(2, 2));
+        assertFalse(res.getPixsel(3, 2));
+        for (int x = 0; x < 6; x++)
+            assertTrue(res.getPixsel(x, 9));
+        // Исходный шрифт не изменяется.
+        assertEquals(5, sym.getWidth());
+        assertFalse(sym.getPixsel(2, 2));
+
+        // Контур одиночного пикселя.
+        res = new StyleGenerator(StyleGenerator.STYLE_OUTLINE, 1).apply(font)
+                        .symbolByCode(1);
+        assertEquals(7, res.getWidth());
+        for (int y = 1; y <= 3; y++) {
+            for (int x = 1; x <= 3; x++)
+                assertEquals(x != 2 || y != 2, res.getPixsel(x, y));
+        }
+        assertFalse(res.getPixsel(0, 2));
+        assertFalse(res.getPixsel(4, 2));
+
+        // Наклон: строки выше базовой линии сдвигаются вправо.
+        res = new StyleGenerator(StyleGenerator.STYLE_ITALIC, 1).apply(font)
+                        .symbolByCode(1);
+        assertEquals(5 + StyleGenerator.shear(8, 0)
+                        - StyleGenerator.shear(8, 10), res.getWidth());
+        assertTrue(res.getPixsel(1 + StyleGenerator.shear(8, 2)
+                        - StyleGenerator.shear(8, 10), 2));
+
+        // У моноширинного шрифта ширина не меняется.
+        font.setWidth(5);
+        font.setFixsed(true);
+        res = new StyleGenerator(StyleGenerator.STYLE_BOLD, 1).apply(font)
+                        .symbolByCode(1);
+        assertEquals(5, res.getWidth());
+        assertTrue(res.getPixsel(2, 2));
+
+        // Параллельное построение совпадает с последовательным.
+        font.setFixsed(false);
+        java.util.Random rnd = new java.util.Random(17);
+        for (int c = 2; c < 40; c++) {
+            MSymbol s = createMSymbol(c, 1 + rnd.nextInt(90), 11, null);
+            for (int i = 0; i < 40; i++)
+                s.setPixsel(rnd.nextInt(s.getWidth()), rnd.nextInt(11), true);
+            font.add(s);
+        }
+        int all = StyleGenerator.STYLE_BOLD | StyleGenerator.STYLE_ITALIC
+                        | StyleGenerator.STYLE_OUTLINE;
+        MFont seq = new StyleGenerator(all, 1).apply(font);
+        MFont par = new StyleGenerator(all, 4).apply(font);
+        assertEquals(font.length(), par.length());
+        for (int i = 0; i < seq.length(); i++)
+            assertEquals(seq.symbolByIndex(i), par.symbolByIndex(i));
+    }
+
+    @Test
+    public void testScaler() throws InterruptedException {
+        MFont font = new MFont();
+        font.setFixsed(true);
+        font.setWidth(5);
+        font.setHeight(8);
+        font.setMetric(Metrics.METRIC_BASELINE, 6);
+        font.setMetric(Metrics.METRIC_DESCENT, 2);
+        java.util.Random rnd = new java.util.Random(3);
+        for (int c = 0; c < 50; c++) {
+            MSymbol s = createMSymbol(c, 5, 8, null);
+            for (int i = 0; i < 12; i++)
+                s.setPixsel(rnd.nextInt(5), rnd.nextInt(8), true);
+            font.add(s);
+        }
+
+        MFont big = new Scaler(Scaler.SCALE_NEAREST, 2, 1).apply(font);
+        assertEquals(font.length(), big.length());
+        assertEquals(10, big.getWidth());
+        assertEquals(16, big.getHeight());
+        assertEquals(12, big.getMetric(Metrics.METRIC_BASELINE));
+        assertEquals(4, big.getMetric(Metrics.METRIC_DESCENT));
+        MSymbol sym = font.symbolByCode(7), res = big.symbolByCode(7);
+        assertEquals(10, res.getWidth());
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 10; x++)
+                assertEquals(sym.getPixsel(x / 2, y / 2), res.getPixsel(x, y));
+        }
+        assertEquals(5, sym.getWidth());
+
+        // Уменьшение возвращает исходный шрифт.
+        MFont back = new Scaler(Scaler.SCALE_BOX, 2, 4).apply(big);
+        assertEquals(8, back.getHeight());
+        assertEquals(6, back.getMetric(Metrics.METRIC_BASELINE));
+        for (int i = 0; i < font.length(); i++)
+            assertEquals(font.symbolByIndex(i), back.symbolByIndex(i));
+
+        // Параллельное масштабирование совпадает с последовательным.
+        MFont seq = new Scaler(Scaler.SCALE_EPX, 3, 1).apply(font);
+        MFont par = new Scaler(Scaler.SCALE_EPX, 3, 4).apply(font);
+        assertEquals(15, par.getWidth());
+        for (int i = 0; i < seq.length(); i++)
+            assertEquals(seq.symbolByIndex(i), par.symbolByIndex(i));
+    }
+
+    @Test
+    public void testSymbolOrder() {
+        MFont font = new MFont();
+        font.setHeight(3);
+        int[] codes = { 40, 5, 17, 90, 3, 41, 60, 18, 4 };
+        for (int c : codes)
+            font.add(createMSymbol(c, 2, 3, null));
+        assertEquals(codes.length, font.length());
+        for (int i = 1; i < font.length(); i++)
+            assertTrue(font.symbolByIndex(i - 1).getCode() < font
+                            .symbolByIndex(i).getCode());
+        for (int c : codes)
+            assertEquals(c, font.symbolByCode(c).getCode());
+        assertNull(font.symbolByCode(6));
+
+        // Смена кода переносит символ, символ с тем же кодом удаляется.
+        MSymbol sym = font.symbolByCode(90);
+        MSymbol old = font.symbolByCode(4);
+        sym.setCode(4);
+        assertEquals(codes.length - 1, font.length());
+        assertSame(sym, font.symbolByIndex(1));
+        assertSame(sym, font.symbolByCode(4));
+        assertNull(font.symbolByCode(90));
+        assertNull(old.getOwner());
+
+        sym.setCode(100);
+        assertSame(sym, font.symbolByIndex(font.length() - 1));
+        assertEquals(font.length() - 1, font.indexAt(sym));
+        font.remove(font.symbolByCode(17));
+        assertNull(font.symbolByCode(17));
+        assertEquals(18, font.symbolByIndex(2).getCode());
+    }
+
+    @Test
+    public void testBulkSymbols() {
+        MFont font = new MFont();
+        font.setHeight(3);
+        final List<PropertyChangeEvent> events;
+        events = new ArrayList<PropertyChangeEvent>();
+        font.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                events.add(evt);
+            }
+        });
+
+        List<MSymbol> list = new ArrayList<MSymbol>();
+        int[] codes = { 40, 5, 17, 90, 3, 41, 5 };
+        for (int c : codes)
+            list.add(createMSymbol(c, 2, 1, null));
+        font.addAll(list);
+        assertEquals(1, events.size());
+        SymbolsChangeEvent e = (SymbolsChangeEvent) events.get(0);
+        assertEquals(6, font.length());
+        assertEquals(6, e.added().length);
+        assertEquals(0, e.removed().length);
+        assertEquals(0, e.first());
+        assertEquals(5, e.last());
+        // Из символов с одинаковым кодом остаётся последний.
+        assertSame(list.get(6), font.symbolByCode(5));
+        assertNull(list.get(1).getOwner());
+        assertEquals(3, font.symbolByCode(90).getHeight());
+        for (int i = 1; i < font.length(); i++)
+            assertTrue(font.symbolByIndex(i - 1).getCode() < font
+                            .symbolByIndex(i).getCode());
+
+        events.clear();
+        MSymbol replaced = font.symbolByCode(17);
+        font.addAll(Arrays.asList(createMSymbol(17, 2, 3, null),
+                        createMSymbol(18, 2, 3, null)));
+        assertEquals(1, events.size());
+        e = (SymbolsChangeEvent) events.get(0);
+        assertSame(replaced, e.removed()[0]);
+        assertEquals(2, e.first());
+        assertEquals(3, e.last());
+        assertTrue(e.isResized());
+        assertEquals(7, font.length());
+
+        events.clear();
+        font.removeAll(Arrays.asList(font.symbolByCode(3),
+                        font.symbolByCode(41), createMSymbol(60, 2, 3, null)));
+        assertEquals(1, events.size());
+        e = (SymbolsChangeEvent) events.get(0);
+        assertEquals(2, e.removed().length);
+        assertEquals(0, e.first());
+        assertEquals(5, e.last());
+        assertEquals(5, font.length());
+        assertNull(font.symbolByCode(41));
+
+        events.clear();
+        font.replaceRange(17, 40, Arrays.asList(createMSymbol(20, 2, 3, null)));
+        assertEquals(1, events.size());
+        assertEquals(3, font.length());
+        assertEquals(5, font.symbolByIndex(0).getCode());
+        assertEquals(20, font.symbolByIndex(1).getCode());
+        assertEquals(90, font.symbolByIndex(2).getCode());
+
+        events.clear();
+        font.removeAll(new ArrayList<MSymbol>());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testResizeFont() {
+        MFont font = new MFont();
+        font.setFixsed(true);
+        font.setWidth(10);
+        font.setHeight(8);
+        List<MSymbol> list = new ArrayList<MSymbol>();
+        for (int c = 0; c < Resizer.PARALLEL + 44; c++) {
+            MSymbol sym = createMSymbol(c, 10, 8, null);
+            sym.setPixsel(1, 1, true);
+            sym.setPixsel(9, 7, true);
+            list.add(sym);
+        }
+        font.addAll(list);
+
+        final List<String> events = new ArrayList<String>();
+        font.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                events.add(evt.getPropertyName());
+            }
+        });
+        final List<String> own = new ArrayList<String>();
+        PropertyChangeListener symListener = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                own.add(evt.getPropertyName());
+            }
+        };
+        font.symbolByIndex(3).addPropertyChangeListener(symListener);
+        final List<Integer> percents = new ArrayList<Integer>();
+        MFontProgress log = new MFontProgress() {
+            @Override
+            public boolean progress(int percent) {
+                percents.add(percent);
+                return true;
+            }
+        };
+
+        // Одно событие шрифта, символы получают свои события.
+        assertTrue(font.setWidth(12, log));
+        assertEquals(1, events.size());
+        assertEquals(AbstractMFont.PROPERTY_WIDTH, events.get(0));
+        assertTrue(own.contains(PixselMap.PROPERTY_SIZE));
+        assertEquals(100, (int) percents.get(percents.size() - 1));
+        for (int i = 1; i < percents.size(); i++)
+            assertTrue(percents.get(i - 1) <= percents.get(i));
+        for (int i = 0; i < font.length(); i++) {
+            MSymbol sym = font.symbolByIndex(i);
+            assertEquals(12, sym.getWidth());
+            assertTrue(sym.getPixsel(1, 1));
+            assertTrue(sym.getPixsel(9, 7));
+        }
+
+        // Отмена оставляет шрифт прежним.
+        events.clear();
+        assertFalse(font.setHeight(4, new MFontProgress() {
+            @Override
+            public boolean progress(int percent) {
+                return false;
+            }
+        }));
+        assertTrue(events.isEmpty());
+        assertEquals(8, font.getHeight());
+        assertEquals(8, font.symbolByIndex(0).getHeight());
+        assertTrue(font.symbolByIndex(0).getPixsel(9, 7));
+        font.setHeight(4);
+        assertEquals(4, font.symbolByIndex(0).getHeight());
+        assertTrue(font.symbolByIndex(0).getPixsel(1, 1));
+
+        // Пул потоков даёт тот же результат, что и один поток.
+        MSymbol[] seq = new MSymbol[Resizer.PARALLEL * 2];
+        MSymbol[] par = new MSymbol[seq.length];
+        for (int i = 0; i < seq.length; i++) {
+            seq[i] = createMSymbol(i, 5, 5, null);
+            seq[i].setPixsel(i % 5, i / 5 % 5, true);
+            seq[i].setPixsel(2, 1, true);
+            par[i] = createMSymbol(i, 5, 5, seq[i].getBytes());
+        }
+        assertTrue(new Resizer(1).resize(seq, 3, 2, null));
+        assertTrue(new Resizer(4).resize(par, 3, 2, null));
+        for (int i = 0; i < seq.length; i++) {
+            assertEquals(3, par[i].getWidth());
+            assertEquals(2, par[i].getHeight());
+            assertArrayEquals(seq[i].getBytes(), par[i].getBytes());
+        }
+
+        // Отмена в середине работы пула восстанавливает символы.
+        byte[] bytes = par[7].getBytes();
+        assertFalse(new Resizer(4).resize(par, 6, 6, new MFontProgress() {
+            @Override
+            public boolean progress(int percent) {
+                return percent < 50;
+            }
+        }));
+        for (MSymbol sym : par) {
+            assertEquals(3, sym.getWidth());
+            assertEquals(2, sym.getHeight());
+        }
+        assertArrayEquals(bytes, par[7].getBytes());
+    }
+
+    @Test
+    public void testResizeInterrupted() {
+        MFont font = new MFont();
+        font.setFixsed(true);
+        font.setWidth(4);
+        font.setHeight(3);
+        for (int c = 0; c < 10; c++) {
+            MSymbol sym = createMSymbol(c, 4, 3, null);
+            sym.setPixsel(3, 2, true);
+            font.add(sym);
+        }
+
+        // Без получателя сведений прерывание не мешает операции.
+        Thread.currentThread().interrupt();
+        try {
+            font.setWidth(8);
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(8, font.getWidth());
+        for (int i = 0; i < font.length(); i++) {
+            assertEquals(8, font.symbolByIndex(i).getWidth());
+            assertTrue(font.symbolByIndex(i).getPixsel(3, 2));
+        }
+
+        // С получателем сведений прерывание отменяет операцию.
+        MFontProgress log = new MFontProgress() {
+            @Override
+            public boolean progress(int percent) {
+                return true;
+            }
+        };
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(font.setWidth(2, log));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(8, font.getWidth());
+        for (int i = 0; i < font.length(); i++) {
+            assertEquals(8, font.symbolByIndex(i).getWidth());
+            assertTrue(font.symbolByIndex(i).getPixsel(3, 2));
+        }
+    }
+
+    @Test
+    public void testSymbolByUnicode() {
+        MFont font = new MFont();
+        font.setHeight(3);
+        font.setCodePage("cp1251");
+        for (int c = 0xc0; c < 0xc8; c++)
+            font.add(createMSymbol(c, 2, 3, null));
+
+        // Кириллическая А имеет код 0xC0 в cp1251 и уникод 0x410.
+        MSymbol sym = font.symbolByUnicode(0x410);
+        assertEquals(0xc0, sym.getCode());
+        assertNull(font.symbolByUnicode(0x408));
+
+        sym.setCode(0xd0);
+        assertNull(font.symbolByUnicode(0x410));
+        assertSame(sym, font.symbolByUnicode(0x420));
+        try {
+            sym.setUnicode(0x42f);
+        } catch (DisallowOperationException e) {
+            fail();
+        }
+        assertEquals(0xdf, sym.getCode());
+        assertNull(font.symbolByUnicode(0x420));
+        assertSame(sym, font.symbolByUnicode(0x42f));
+
+        font.remove(sym);
+        assertNull(font.symbolByUnicode(0x42f));
+        font.setCodePage("koi8-r");
+        // Б имеет код 0xC1 в cp1251 и 0xE2 в koi8-r.
+        assertEquals(0xe2, font.symbolByUnicode(0x411).getCode());
+        font.setCodePage(null);
+        assertNull(font.symbolByUnicode(0x411));
+    }
+
+    @Test
+    public void testCodePage() {
+        MFont font = new MFont();
+        font.setHeight(3);
+        font.setCodePage("Shift_JIS");
+        font.add(createMSymbol(0x41, 2, 3, null));
+        // Хирагана あ в Shift_JIS кодируется байтами 0x82 0xA0.
+        font.add(createMSymbol(0xa082, 2, 3, null));
+
+        assertEquals(0x41, font.symbolByCode(0x41).getUnicode());
+        assertEquals(0x3042, font.symbolByCode(0xa082).getUnicode());
+
+        // В GBK та же буква кодируется байтами 0xA4 0xA2.
+        font.setCodePage("GBK");
+        assertEquals(0x41, font.symbolByUnicode(0x41).getCode());
+        assertEquals(0xa2a4, font.symbolByUnicode(0x3042).getCode());
+
+        font.setCodePage("Shift_JIS");
+        assertEquals(0xa082, font.symbolByUnicode(0x3042).getCode());
+        assertNotNull(font.symbolByCode(0xa082));
+        assertNull(font.symbolByCode(0xa2a4));
+    }
+
     @Override
     @Test
     public void testCopy() {
@@ -832,7 +1370,40 @@ public class MSymbolTest extends PixselMapTest {
     @Test
     public void testRotate() {
         super.testRotate();
-        fail("Not yet implemented");
+
+        // Размеры символа шрифта не меняются, повёрнутый символ размещается
+        // посередине.
+        int[][] sizes = { { 70, 9 }, { 9, 70 }, { 64, 64 }, { 130, 67 } };
+        java.util.Random rnd = new java.util.Random(11);
+
+        for (int[] size : sizes) {
+            int w = size[0], h = size[1];
+            MFont font = new MFont();
+            font.setFixsed(true);
+            font.setWidth(w);
+            font.setHeight(h);
+            MSymbol sym = createMSymbol(0, w, h, null);
+            randomize(sym, rnd);
+            font.add(sym);
+            PixselMap src = new PixselMap(w, h, sym.getBytes());
+
+            for (int step = 1; step <= 3; step++) {
+                try {
+                    sym.copy(src);
+                } catch (DisallowOperationException e) {
+                    fail(e.getMessage());
+                }
+                sym.rotate(step);
+                assertEquals(w, sym.getWidth());
+                assertEquals(h, sym.getHeight());
+
+                PixselMap expected = src.clone();
+                if (step == 2) expected = rotatedByPixsels(src, 2);
+                else expected.place((w - h) / 2, (h - w) / 2,
+                                rotatedByPixsels(src, step));
+                assertArrayEquals(expected.getBytes(), sym.getBytes());
+            }
+        }
     }
 
 }
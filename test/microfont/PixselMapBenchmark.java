@@ -0,0 +1,326 @@
+package microfont;
+
+import java.util.Random;
+
+/**
+ * Замеры скорости основных операций {@link AbstractPixselMap} и
+ * {@link PixselMap}. Это не тест JUnit, а самостоятельная программа: её
+ * запускают вручную и сравнивают числа до и после изменений.
+ * <p>
+ * Для каждой операции выводится среднее время одного вызова в наносекундах.
+ * Рядом приводится время того же действия, выполненного попиксельно через
+ * {@link AbstractPixselMap#getPixsel(int, int)}, чтобы была видна выгода от
+ * работы с целыми словами.
+ */
+public class PixselMapBenchmark {
+    /** Ширина и высота карт, на которых проводятся замеры. */
+    static final int SIZE   = 128;
+    /** Количество прогонов для разогрева JIT. */
+    static final int WARMUP = 2000;
+    /** Количество замеряемых прогонов. */
+    static final int RUNS   = 20000;
+
+    /**
+     * Приёмник результатов, не позволяющий JIT выбросить вычисления.
+     */
+    static volatile long sink;
+
+    /**
+     * Замеряемое действие.
+     */
+    static abstract class Action {
+        final String name;
+
+        Action(String name) {
+            this.name = name;
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    /**
+     * Создаёт карту размером {@link #SIZE} на {@link #SIZE} со случайными
+     * пикселями.
+     */
+    static PixselMap randomMap(long seed) {
+        Random rnd = new Random(seed);
+        byte[] b = new byte[(SIZE * SIZE + 7) / 8];
+        rnd.nextBytes(b);
+        return new PixselMap(SIZE, SIZE, b);
+    }
+
+    /**
+     * Выполняет действие и печатает среднее время одного вызова.
+     */
+    static void measure(Action act) throws Exception {
+        long acc = 0;
+        for (int i = 0; i < WARMUP; i++)
+            acc += act.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            acc += act.run();
+        long time = System.nanoTime() - start;
+        sink += acc;
+        System.out.printf("%-24s %10.1f ns/op%n", act.name, (double) time
+                / RUNS);
+    }
+
+    /**
+     * Попиксельное сравнение, как это делалось до перехода на слова.
+     */
+    static boolean pixselEquals(AbstractPixselMap a, AbstractPixselMap b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+            return false;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getPixsel(x, y) != b.getPixsel(x, y)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Попиксельное вычисление хэша.
+     */
+    static int pixselHash(AbstractPixselMap a) {
+        int ret = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                ret = ret * 31 + (a.getPixsel(x, y) ? 1 : 0);
+            }
+        }
+        return ret;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final PixselMap src = randomMap(1);
+        final PixselMap same = randomMap(1);
+        final PixselMap other = randomMap(2);
+        final PixselMap dst = new PixselMap(SIZE, SIZE);
+
+        System.out.println("Map " + SIZE + "x" + SIZE + ", " + RUNS + " runs");
+
+        measure(new Action("copy") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.copy((n++ & 1) == 0 ? src : other);
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("copy (per pixsel)") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                PixselMap from = (n++ & 1) == 0 ? src : other;
+                for (int y = 0; y < SIZE; y++) {
+                    for (int x = 0; x < SIZE; x++) {
+                        dst.setPixsel(x, y, from.getPixsel(x, y));
+                    }
+                }
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("equals") {
+            @Override
+            long run() throws Exception {
+                return src.equals(same) ? 1 : 0;
+            }
+        });
+        measure(new Action("equals (per pixsel)") {
+            @Override
+            long run() throws Exception {
+                return pixselEquals(src, same) ? 1 : 0;
+            }
+        });
+        measure(new Action("equals (different)") {
+            @Override
+            long run() throws Exception {
+                return src.equals(other) ? 1 : 0;
+            }
+        });
+        measure(new Action("hashCode") {
+            @Override
+            long run() throws Exception {
+                return src.hashCode();
+            }
+        });
+        measure(new Action("hashCode (per pixsel)") {
+            @Override
+            long run() throws Exception {
+                return pixselHash(src);
+            }
+        });
+        measure(new Action("hashCode after setPixsel") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.setPixsel(n % SIZE, (n * 7) % SIZE, (n++ & 1) == 0);
+                return dst.hashCode();
+            }
+        });
+        measure(new Action("shift") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.shift(n++ & 3, 3);
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("rotate") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.copy(src);
+                dst.rotate(1 + (n++ % 3));
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("overlay") {
+            final AbstractPixselMap stamp = randomMap(3).getRectangle(0, 0,
+                            40, 40);
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.overlay(n % 97 - 10, n % 89 - 10, stamp, n++ & 3);
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("reflect") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                if ((n++ & 1) == 0) dst.reflectVerticale();
+                else dst.reflectHorizontale();
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("empty* after setPixsel") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                dst.setPixsel(n % SIZE, (n * 7) % SIZE, (n++ & 1) == 0);
+                return dst.emptyLeft() + dst.emptyRight() + dst.emptyTop()
+                                + dst.emptyBottom();
+            }
+        });
+        measure(new Action("getBytes/setArray") {
+            final java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(src
+                            .getBytesLength());
+
+            @Override
+            long run() throws Exception {
+                buf.clear();
+                src.getBytes(buf);
+                buf.flip();
+                dst.readBytes(buf);
+                return dst.getWidth();
+            }
+        });
+        measure(new Action("clone + setPixsel") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                PixselMap c = src.clone();
+                c.setPixsel(n % SIZE, 0, (n++ & 1) == 0);
+                return c.getWidth();
+            }
+        });
+        measure(new Action("clone (snapshot only)") {
+            @Override
+            long run() throws Exception {
+                return src.clone().getWidth();
+            }
+        });
+        measure(new Action("span iterator") {
+            @Override
+            long run() throws Exception {
+                AbstractPixselMap.SpanIterator si = src.getSpanIterator(0, 0,
+                                SIZE, SIZE,
+                                AbstractPixselMap.PixselIterator.DIR_LEFT_TOP);
+                long ink = 0;
+                while (si.hasNext()) {
+                    int len = si.next();
+                    if (si.getValue()) ink += len;
+                }
+                return ink;
+            }
+        });
+        measure(new Action("span iterator (pixsel)") {
+            @Override
+            long run() throws Exception {
+                AbstractPixselMap.PixselIterator pi = src.getIterator(0, 0,
+                                SIZE, SIZE,
+                                AbstractPixselMap.PixselIterator.DIR_LEFT_TOP);
+                long ink = 0;
+                while (pi.hasNext()) {
+                    if (pi.getNext()) ink++;
+                }
+                return ink;
+            }
+        });
+        final long[] events = new long[1];
+        dst.addPixselMapListener(new microfont.events.PixselMapListener() {
+            @Override
+            public void pixselChanged(microfont.events.PixselMapEvent event) {
+                events[0] += event.width() * event.height();
+            }
+        });
+        measure(new Action("64 setPixsel (batched)") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                boolean set = (n++ & 1) == 0;
+                dst.beginUpdate();
+                for (int i = 0; i < 64; i++)
+                    dst.setPixsel(i, i, set);
+                dst.endUpdate();
+                return events[0];
+            }
+        });
+        measure(new Action("64 setPixsel (events)") {
+            int n;
+
+            @Override
+            long run() throws Exception {
+                boolean set = (n++ & 1) == 0;
+                for (int i = 0; i < 64; i++)
+                    dst.setPixsel(i, i, set);
+                return events[0];
+            }
+        });
+        measure(new Action("changeWidth/changeHeight") {
+            final PixselMap map = src.clone();
+            int n;
+
+            @Override
+            long run() throws Exception {
+                int num = (n++ & 1) == 0 ? 3 : -3;
+                map.changeWidth(17, num);
+                map.changeHeight(29, num);
+                return map.getWidth();
+            }
+        });
+        measure(new Action("clone 1024x1024 + edit") {
+            final PixselMap big = new PixselMap(1024, 1024);
+            int n;
+
+            @Override
+            long run() throws Exception {
+                PixselMap c = big.clone();
+                c.setPixsel(n % 1024, (n++ * 7) % 1024, true);
+                return c.getWidth();
+            }
+        });
+    }
+}
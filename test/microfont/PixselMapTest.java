@@ -3,6 +3,11 @@ package microfont;
 
 import static org.junit.Assert.*;
 import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import microfont.events.PixselMapEvent;
+import microfont.events.PixselMapListener;
 import org.junit.Test;
 
 /**
@@ -11,7 +16,8 @@ import org.junit.Test;
  * {@code PixselMap} позволяет эти изменения, а наследники могут запрещать.
  * <p>
  * Список методов:<br>
- * {@link #testCopy()} {@link #testSetSizeIntInt()}
+ * {@link #testCopy()} {@link #testClone()} {@link #testBeginUpdate()}
+ * {@link #testSetSizeIntInt()}
  * {@link #testSetSizeDimension()} {@link #testSetWidth()}
  * {@link #testSetHeight()} {@link #testChangeWidth()}
  * {@link #testChangeHeight()} {@link #testRemoveColumns()}
@@ -122,6 +128,357 @@ public class PixselMapTest extends AbstractPixselMapTest {
         assertFalse(result);
     }
 
+    @Test
+    public void testClone() {
+        PixselMap src, copy;
+        byte[] array = new byte[] { 0, 8, 0, 9, 7 };
+
+        src = createPixselMap(5, 7, array);
+        copy = src.clone();
+        assertEquals(src, copy);
+
+        // Изменение копии не затрагивает оригинал и наоборот.
+        copy.setPixsel(0, 0, true);
+        assertArrayEquals(array, src.getBytes());
+        assertTrue(copy.getPixsel(0, 0));
+
+        copy = src.clone();
+        src.reflectHorizontale();
+        assertArrayEquals(array, copy.getBytes());
+        assertFalse(src.equals(copy));
+
+        // Копия копии.
+        src = createPixselMap(5, 7, array);
+        copy = src.clone().clone();
+        src.neg(0, 0, 5, 7);
+        assertArrayEquals(array, copy.getBytes());
+
+        // Копирование в карту того же размера.
+        src = createPixselMap(5, 7, array);
+        copy = createPixselMap(5, 7, null);
+        try {
+            copy.copy(src);
+        } catch (DisallowOperationException e) {
+            fail();
+        }
+        src.shift(PixselMap.SHIFT_DOWN, 1);
+        assertArrayEquals(array, copy.getBytes());
+        copy.setPixsel(0, 0, true);
+        assertFalse(src.getPixsel(0, 0));
+    }
+
+    @Test
+    public void testVersion() {
+        PixselMap map = createPixselMap(5, 7, new byte[] { 0, 8, 0, 9, 7 });
+        int v = map.getVersion();
+
+        assertTrue(map.validate(v));
+        assertTrue(map.getPixsel(4, 6));
+        assertEquals(new Dimension(5, 7), map.getSize());
+
+        // Запись без изменения пикселей не меняет версию.
+        map.setPixsel(4, 6, true);
+        assertTrue(map.validate(v));
+
+        map.setPixsel(4, 6, false);
+        assertFalse(map.validate(v));
+        v = map.getVersion();
+        assertTrue(map.validate(v));
+
+        map.shift(PixselMap.SHIFT_LEFT, 1);
+        assertFalse(map.validate(v));
+        assertFalse(map.validate(v + 1));
+
+        // Сжатие и распаковка тоже меняют версию.
+        map = createPixselMap(130, 70, null);
+        map.setPixsel(129, 69, true);
+        byte[] array = map.getBytes();
+        v = map.getVersion();
+        assertTrue(map.pack());
+        assertFalse(map.validate(v));
+        v = map.getVersion();
+        assertArrayEquals(array, map.getBytes());
+        assertTrue(map.isPacked());
+        assertTrue(map.validate(v));
+        assertTrue(map.getPixsel(129, 69));
+        assertFalse(map.isPacked());
+        assertFalse(map.validate(v));
+        assertTrue(map.pixsel(129, 69));
+        assertFalse(map.pixsel(130, 69));
+
+        // Сжатая карта читается и сравнивается по настоящим пикселям.
+        PixselMap copy = map.clone();
+        assertTrue(map.pack());
+        assertEquals(copy, map);
+        assertTrue(map.pack());
+        assertEquals(map, copy);
+        assertTrue(map.pack());
+        assertEquals(1L << 1, map.getWord(2, 69));
+        assertTrue(map.pack());
+        assertEquals(1L << 1, map.getRow(69, null)[2]);
+        copy.setPixsel(0, 0, true);
+        assertTrue(map.pack());
+        assertFalse(map.equals(copy));
+    }
+
+    @Test
+    public void testFill() {
+        final List<PixselMapEvent> events = new ArrayList<PixselMapEvent>();
+        // Квадратная рамка 5x5 с диагональным разрывом в правом нижнем углу.
+        PixselMap pm = createPixselMap(70, 7, null);
+        pm.set(1, 1, 5, 1, true);
+        pm.set(1, 1, 1, 5, true);
+        pm.set(5, 1, 1, 4, true);
+        pm.set(1, 5, 4, 1, true);
+        PixselMap frame = pm.clone();
+        pm.addPixselMapListener(new PixselMapListener() {
+            @Override
+            public void pixselChanged(PixselMapEvent event) {
+                events.add(event);
+            }
+        });
+
+        // При 4-связности заливка не выходит из рамки.
+        pm.fill(3, 3, true, false);
+        assertEquals(1, events.size());
+        assertEquals(new Rectangle(2, 2, 3, 3), events.get(0).rect());
+        assertFalse(pm.getPixsel(0, 0));
+        assertFalse(pm.getPixsel(5, 5));
+
+        // Пиксель уже в нужном состоянии - ничего не меняется.
+        pm.fill(3, 3, true, false);
+        assertEquals(1, events.size());
+
+        // При 8-связности фон проходит через угол внутрь рамки.
+        PixselMap copy = frame.clone();
+        copy.fill(69, 0, true, false);
+        assertFalse(copy.getPixsel(3, 3));
+        assertTrue(copy.getPixsel(5, 5));
+        copy = frame.clone();
+        copy.fill(69, 0, true, true);
+        assertTrue(copy.getPixsel(3, 3));
+        assertTrue(copy.getPixsel(69, 6));
+    }
+
+    @Test
+    public void testDraw() {
+        final List<PixselMapEvent> events = new ArrayList<PixselMapEvent>();
+        PixselMap pm = createPixselMap(70, 9, null);
+        pm.addPixselMapListener(new PixselMapListener() {
+            @Override
+            public void pixselChanged(PixselMapEvent event) {
+                events.add(event);
+            }
+        });
+
+        // Пологий отрезок через границу слов - одно сообщение.
+        pm.line(60, 0, 69, 2, PixselMap.DRAW_SET);
+        assertEquals(1, events.size());
+        assertEquals(new Rectangle(60, 0, 10, 3), events.get(0).rect());
+        assertTrue(pm.getPixsel(60, 0));
+        assertTrue(pm.getPixsel(64, 1));
+        assertTrue(pm.getPixsel(69, 2));
+        assertFalse(pm.getPixsel(69, 1));
+
+        // Повторная инверсия восстанавливает карту.
+        byte[] array = pm.getBytes();
+        pm.line(69, 2, 60, 0, PixselMap.DRAW_NEG);
+        assertEquals(pm.getHeight(), pm.emptyTop());
+        pm.line(69, 2, 60, 0, PixselMap.DRAW_NEG);
+        assertArrayEquals(array, pm.getBytes());
+        pm.line(60, 0, 69, 2, PixselMap.DRAW_CLEAR);
+
+        events.clear();
+        pm.rectangle(1, 1, 5, 4, false, PixselMap.DRAW_SET);
+        assertEquals(1, events.size());
+        assertTrue(pm.getPixsel(1, 1));
+        assertTrue(pm.getPixsel(5, 4));
+        assertTrue(pm.getPixsel(5, 2));
+        assertFalse(pm.getPixsel(3, 2));
+        pm.rectangle(1, 1, 5, 4, true, PixselMap.DRAW_NEG);
+        assertTrue(pm.getPixsel(3, 2));
+        assertFalse(pm.getPixsel(1, 1));
+
+        // Эллипс касается всех сторон прямоугольника и симметричен.
+        pm.set(0, 0, 70, 9, false);
+        pm.ellipse(10, 0, 9, 9, false, PixselMap.DRAW_SET);
+        assertTrue(pm.getPixsel(14, 0));
+        assertTrue(pm.getPixsel(10, 4));
+        assertTrue(pm.getPixsel(18, 4));
+        assertTrue(pm.getPixsel(14, 8));
+        assertFalse(pm.getPixsel(14, 4));
+        assertFalse(pm.getPixsel(10, 0));
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 9; x++)
+                assertEquals(pm.getPixsel(10 + x, y),
+                                pm.getPixsel(18 - x, 8 - y));
+        }
+
+        // Кисть меняет только пиксели под своими закрашенными пикселями.
+        PixselMap brush = new PixselMap(3, 3);
+        brush.setPixsel(0, 0, true);
+        brush.setPixsel(2, 2, true);
+        pm.set(0, 0, 70, 9, true);
+        pm.stamp(66, 6, brush, PixselMap.DRAW_CLEAR);
+        assertFalse(pm.getPixsel(66, 6));
+        assertFalse(pm.getPixsel(68, 8));
+        assertTrue(pm.getPixsel(67, 7));
+        assertTrue(pm.getPixsel(66, 8));
+    }
+
+    @Test
+    public void testScale() {
+        PixselMap pm = createPixselMap(40, 3, null);
+        pm.setPixsel(0, 0, true);
+        pm.setPixsel(1, 1, true);
+        pm.setPixsel(2, 2, true);
+        pm.setPixsel(39, 0, true);
+
+        // Повторение пикселей через границу слов.
+        PixselMap big = new Scaler(Scaler.SCALE_NEAREST, 2).scale(pm);
+        assertEquals(80, big.getWidth());
+        assertEquals(6, big.getHeight());
+        assertTrue(big.getPixsel(78, 0));
+        assertTrue(big.getPixsel(79, 1));
+        assertFalse(big.getPixsel(77, 0));
+        assertTrue(big.getPixsel(3, 3));
+        assertFalse(big.getPixsel(4, 3));
+
+        // Уменьшение возвращает исходную карту.
+        assertArrayEquals(pm.getBytes(), new Scaler(Scaler.SCALE_BOX, 2)
+                        .scale(big).getBytes());
+        PixselMap half = new Scaler(Scaler.SCALE_BOX, 2).scale(pm);
+        assertEquals(20, half.getWidth());
+        assertEquals(2, half.getHeight());
+        assertTrue(half.getPixsel(0, 0));
+        assertFalse(half.getPixsel(1, 1));
+        assertFalse(half.getPixsel(19, 0));
+
+        // Scale2x сглаживает ступеньки диагонали.
+        PixselMap epx = new Scaler(Scaler.SCALE_EPX, 2).scale(pm);
+        assertEquals(big.getWidth(), epx.getWidth());
+        assertTrue(epx.getPixsel(2, 1));
+        assertTrue(epx.getPixsel(1, 2));
+        assertFalse(big.getPixsel(2, 1));
+        assertTrue(epx.getPixsel(78, 0));
+        assertTrue(epx.getPixsel(79, 1));
+
+        // Одиночный пиксель Scale3x превращается в квадрат.
+        PixselMap x3 = new Scaler(Scaler.SCALE_EPX, 3).scale(pm);
+        assertEquals(120, x3.getWidth());
+        assertEquals(9, x3.getHeight());
+        for (int y = 0; y < 4; y++) {
+            for (int x = 116; x < 120; x++)
+                assertEquals(x > 116 && y < 3, x3.getPixsel(x, y));
+        }
+
+        boolean result = false;
+        try {
+            new Scaler(Scaler.SCALE_EPX, 4);
+        } catch (IllegalArgumentException e) {
+            result = true;
+        }
+        assertTrue(result);
+    }
+
+    @Test
+    public void testLabel() {
+        PixselMap pm = createPixselMap(70, 5, null);
+        pm.set(0, 0, 2, 2, true);
+        pm.setPixsel(2, 2, true);
+        pm.set(66, 0, 4, 1, true);
+        pm.set(66, 1, 1, 4, true);
+        pm.setPixsel(60, 4, true);
+
+        int[] labels = new int[70 * 5];
+        assertEquals(4, pm.label(labels, false));
+        assertEquals(1, labels[0]);
+        assertEquals(1, labels[71]);
+        assertEquals(3, labels[142]);
+        assertEquals(2, labels[69]);
+        assertEquals(2, labels[4 * 70 + 66]);
+        assertEquals(4, labels[4 * 70 + 60]);
+        assertEquals(0, labels[1 * 70 + 67]);
+
+        assertEquals(3, pm.label(labels, true));
+        assertEquals(1, labels[142]);
+        assertEquals(3, labels[4 * 70 + 60]);
+        assertEquals(3, pm.label(null, true));
+    }
+
+    @Test
+    public void testBeginUpdate() throws InterruptedException {
+        final List<PixselMapEvent> events = new ArrayList<PixselMapEvent>();
+        PixselMap pm = createPixselMap(9, 7, null);
+        pm.addPixselMapListener(new PixselMapListener() {
+            @Override
+            public void pixselChanged(PixselMapEvent event) {
+                events.add(event);
+            }
+        });
+
+        pm.beginUpdate();
+        pm.setPixsel(1, 2, true);
+        pm.beginUpdate();
+        pm.setPixsel(6, 1, true);
+        pm.endUpdate();
+        pm.setPixsel(3, 5, true);
+        assertTrue(events.isEmpty());
+        pm.endUpdate();
+
+        // Одно сообщение, охватывающее все изменения.
+        assertEquals(1, events.size());
+        assertEquals(new Rectangle(1, 1, 6, 5), events.get(0).rect());
+
+        // Пакет без изменений не порождает сообщений.
+        events.clear();
+        pm.beginUpdate();
+        pm.setPixsel(1, 2, true);
+        pm.endUpdate();
+        assertTrue(events.isEmpty());
+
+        // После пакета сообщения выпускаются как обычно.
+        pm.setPixsel(0, 0, true);
+        assertEquals(1, events.size());
+
+        // Изменение из другого потока сообщается сразу и не попадает в
+        // сообщение пакета.
+        events.clear();
+        final PixselMap other = pm;
+        pm.beginUpdate();
+        pm.setPixsel(2, 3, true);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other.setPixsel(8, 6, true);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(1, events.size());
+        assertEquals(new Rectangle(8, 6, 1, 1), events.get(0).rect());
+        pm.setPixsel(4, 4, true);
+        // Пакет не мешает читать карту без блокировки.
+        assertTrue(pm.validate(pm.getVersion()));
+        // Стёртый в пакете пиксель сразу учитывается в пустых полях.
+        pm.setPixsel(0, 0, false);
+        assertEquals(1, pm.emptyLeft());
+        assertEquals(1, pm.emptyTop());
+        pm.endUpdate();
+        assertTrue(pm.validate(pm.getVersion()));
+        assertInk(pm);
+        assertEquals(2, events.size());
+        assertEquals(new Rectangle(0, 0, 5, 5), events.get(1).rect());
+
+        boolean result = false;
+        try {
+            pm.endUpdate();
+        } catch (IllegalStateException e) {
+            result = true;
+        }
+        assertTrue(result);
+    }
+
     @Test
     public void testSetSizeIntInt() {
         // Проверки допустимости параметров.
@@ -1483,6 +1840,281 @@ public class PixselMapTest extends AbstractPixselMapTest {
         assertEquals(expected, actual);
     }
 
+    /**
+     * Возвращает карту <code>src</code>, повёрнутую по часовой стрелке на
+     * <code>step</code> четвертей круга попиксельно.
+     */
+    static PixselMap rotatedByPixsels(AbstractPixselMap src, int step) {
+        int w = src.getWidth(), h = src.getHeight();
+        PixselMap ret = step == 2 ? new PixselMap(w, h) : new PixselMap(h, w);
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (!src.getPixsel(x, y)) continue;
+                if (step == 1) ret.setPixsel(h - 1 - y, x, true);
+                else if (step == 2) ret.setPixsel(w - 1 - x, h - 1 - y, true);
+                else ret.setPixsel(y, w - 1 - x, true);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Заполняет карту случайными пикселями.
+     */
+    static void randomize(PixselMap map, java.util.Random rnd) {
+        for (int y = 0; y < map.getHeight(); y++) {
+            for (int x = 0; x < map.getWidth(); x++)
+                map.setPixsel(x, y, rnd.nextInt(3) == 0);
+        }
+    }
+
+    @Test
+    public void testRotateWide() {
+        // Размеры, не кратные и кратные размеру блока 64x64.
+        int[][] sizes = { { 70, 9 }, { 9, 70 }, { 64, 64 }, { 65, 63 },
+                { 1, 130 }, { 130, 1 }, { 129, 200 } };
+        java.util.Random rnd = new java.util.Random(7);
+
+        for (int[] size : sizes) {
+            PixselMap src = createPixselMap(size[0], size[1], null);
+            randomize(src, rnd);
+
+            for (int step = 1; step <= 3; step++) {
+                PixselMap actual = createPixselMap(size[0], size[1], null);
+                try {
+                    actual.copy(src);
+                } catch (DisallowOperationException e) {
+                    fail(e.getMessage());
+                }
+                actual.rotate(step);
+                assertEquals(rotatedByPixsels(src, step), actual);
+                actual.rotate(-step);
+                assertEquals(src, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testTiles() {
+        PixselMap pm = createPixselMap(4096, 4096, null);
+        assertEquals(0, pm.getInkTiles());
+
+        // Память выделяется только под закрашенные плитки.
+        pm.setPixsel(0, 0, true);
+        pm.setPixsel(4000, 4000, true);
+        assertEquals(2, pm.getInkTiles());
+
+        // Копия делит плитки с оригиналом до первого изменения.
+        PixselMap copy = pm.clone();
+        copy.setPixsel(4000, 4000, false);
+        copy.setPixsel(1, 1, true);
+        assertTrue(pm.getPixsel(4000, 4000));
+        assertFalse(pm.getPixsel(1, 1));
+        assertEquals(1, copy.getInkTiles());
+
+        // Очищенные плитки освобождаются.
+        pm.setPixsel(0, 0, false);
+        pm.setPixsel(4000, 4000, false);
+        assertEquals(0, pm.getInkTiles());
+    }
+
+    @Test
+    public void testEventTiles() {
+        final List<PixselMapEvent> events = new ArrayList<PixselMapEvent>();
+        PixselMap pm = createPixselMap(4096, 4096, null);
+        pm.addPixselMapListener(new PixselMapListener() {
+            @Override
+            public void pixselChanged(PixselMapEvent event) {
+                events.add(event);
+            }
+        });
+
+        pm.setPixsel(70, 3, true);
+        assertEquals(1, events.size());
+        assertArrayEquals(new Rectangle[] { new Rectangle(70, 3, 1, 1) },
+                        events.get(0).tiles());
+
+        // Сообщение об изменениях в разных углах карты содержит две плитки,
+        // а не весь охватывающий их прямоугольник. Плитки ограничены
+        // границами изменений.
+        events.clear();
+        pm.beginUpdate();
+        pm.setPixsel(1, 1, true);
+        pm.setPixsel(4000, 4000, true);
+        pm.endUpdate();
+        assertEquals(1, events.size());
+        assertEquals(new Rectangle(1, 1, 4000, 4000), events.get(0).rect());
+        assertArrayEquals(new Rectangle[] { new Rectangle(1, 1, 63, 63),
+                new Rectangle(3968, 3968, 33, 33) }, events.get(0).tiles());
+    }
+
+    @Test
+    public void testParallelBands() {
+        int width = 1100, height = 1000;
+        byte[] array = new byte[(width * height + 7) / 8];
+        new java.util.Random(11).nextBytes(array);
+        PixselMap src = createPixselMap(width, height, array);
+        int threads = AbstractPixselMap.threads;
+
+        try {
+            for (int op = 0; op < 6; op++) {
+                AbstractPixselMap.threads = 1;
+                PixselMap expected = src.clone();
+                transform(expected, op);
+                AbstractPixselMap.threads = 4;
+                PixselMap actual = src.clone();
+                transform(actual, op);
+                assertEquals(expected, actual);
+
+                // Прерванный поток доделывает полосы сам и не теряет признак.
+                actual = src.clone();
+                Thread.currentThread().interrupt();
+                transform(actual, op);
+                assertTrue(Thread.interrupted());
+                assertEquals(expected, actual);
+            }
+        } finally {
+            Thread.interrupted();
+            AbstractPixselMap.threads = threads;
+        }
+    }
+
+    private static void transform(PixselMap map, int op) {
+        switch (op) {
+        case 0:
+        case 1:
+        case 2:
+            map.rotate(op + 1);
+            break;
+        case 3:
+            map.reflectVerticale();
+            break;
+        case 4:
+            map.reflectHorizontale();
+            break;
+        default:
+            map.shift(PixselMap.SHIFT_RIGHT, 67);
+            map.shift(PixselMap.SHIFT_DOWN, 65);
+        }
+    }
+
+    /**
+     * Проверяет границы закрашенной области карты попиксельно.
+     */
+    static void assertInk(AbstractPixselMap map) {
+        int w = map.getWidth(), h = map.getHeight();
+        int left = w, right = -1, top = h, bottom = -1;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (!map.getPixsel(x, y)) continue;
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+            }
+        }
+        if (w == 0 || h == 0) {
+            assertEquals(h == 0 ? w : 0, map.emptyLeft());
+            return;
+        }
+        assertEquals(left, map.emptyLeft());
+        assertEquals(right < 0 ? w : w - 1 - right, map.emptyRight());
+        assertEquals(top, map.emptyTop());
+        assertEquals(bottom < 0 ? h : h - 1 - bottom, map.emptyBottom());
+    }
+
+    @Test
+    public void testInk() throws DisallowOperationException {
+        java.util.Random rnd = new java.util.Random(5);
+        PixselMap pm = createPixselMap(150, 140, null);
+
+        for (int i = 0; i < 300; i++) {
+            int x = rnd.nextInt(pm.getWidth() + 1);
+            int y = rnd.nextInt(pm.getHeight() + 1);
+            switch (rnd.nextInt(10)) {
+            case 0:
+                pm.set(x, y, rnd.nextInt(80), rnd.nextInt(80), true);
+                break;
+            case 1:
+                // Очистка области уменьшает закрашенную область.
+                pm.set(x, y, rnd.nextInt(80), rnd.nextInt(80), false);
+                break;
+            case 2:
+                pm.shift(PixselMap.SHIFT_LEFT + rnd.nextInt(4),
+                                1 + rnd.nextInt(70));
+                break;
+            case 3:
+                if (rnd.nextBoolean()) pm.reflectVerticale();
+                else pm.reflectHorizontale();
+                break;
+            case 4:
+                pm.rotate(1 + rnd.nextInt(3));
+                break;
+            case 5:
+                pm.setSize(1 + rnd.nextInt(200), 1 + rnd.nextInt(200));
+                break;
+            case 6:
+                if (rnd.nextBoolean()) pm.addColumns(x, 1 + rnd.nextInt(70));
+                else pm.addRows(y, 1 + rnd.nextInt(70));
+                break;
+            case 7:
+                if (rnd.nextBoolean() && x < pm.getWidth())
+                    pm.removeColumns(x, 1 + rnd.nextInt(pm.getWidth() - x));
+                else if (y < pm.getHeight())
+                    pm.removeRows(y, 1 + rnd.nextInt(pm.getHeight() - y));
+                break;
+            case 8:
+                PixselMap other = createPixselMap(pm.getWidth(),
+                                pm.getHeight(), null);
+                other.set(x, y, 9, 9, true);
+                pm.copy(other);
+                break;
+            default:
+                pm.setPixsel(x, y, rnd.nextInt(3) != 0);
+            }
+            assertInk(pm);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEmptyWithoutLock() throws InterruptedException {
+        final PixselMap pm = createPixselMap(70, 9, null);
+        pm.setPixsel(65, 3, true);
+        pm.setPixsel(65, 3, false);
+        pm.setPixsel(2, 5, true);
+        final java.util.concurrent.CountDownLatch locked;
+        final java.util.concurrent.CountDownLatch done;
+        locked = new java.util.concurrent.CountDownLatch(1);
+        done = new java.util.concurrent.CountDownLatch(1);
+
+        // Поток держит блокировку карты, пока границы не будут прочитаны.
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                synchronized (pm.writeLock()) {
+                    locked.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        holder.start();
+        locked.await();
+        try {
+            assertEquals(2, pm.emptyLeft());
+            assertEquals(67, pm.emptyRight());
+            assertEquals(5, pm.emptyTop());
+            assertEquals(3, pm.emptyBottom());
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+    }
+
     @Test
     public void testGetRectangle() {
         byte[] src = { 0x0, 0x0, 0x0, (byte) 0x80, (byte) 0x80, (byte) 0x82,
@@ -1573,6 +2205,45 @@ public class PixselMapTest extends AbstractPixselMapTest {
         assertEquals(expected, actual);
     }
 
+    /**
+     * Штамп, выходящий за границы карты, должен обрезаться ровно по границам.
+     * Ожидаемый результат строится попиксельно.
+     */
+    @Test
+    public void testOverlayClipping() {
+        PixselMap expected, actual;
+        int[][] pos = { { -2, -3 }, { 6, 8 }, { -1, 9 }, { 7, -4 }, { -5, 0 } };
+
+        for (int[] p : pos) {
+            for (int op = PixselMap.OVERLAY_PLACE; op <= PixselMap.OVERLAY_XOR; op++) {
+                actual = createPixselMap(9, 11, over);
+                expected = createPixselMap(9, 11, over);
+
+                for (int y = 0; y < stamp.getHeight(); y++) {
+                    for (int x = 0; x < stamp.getWidth(); x++) {
+                        boolean s = stamp.getPixsel(x, y);
+                        boolean d = expected.getPixsel(p[0] + x, p[1] + y);
+                        switch (op) {
+                        case PixselMap.OVERLAY_OR:
+                            s |= d;
+                            break;
+                        case PixselMap.OVERLAY_AND:
+                            s &= d;
+                            break;
+                        case PixselMap.OVERLAY_XOR:
+                            s ^= d;
+                            break;
+                        }
+                        expected.setPixsel(p[0] + x, p[1] + y, s);
+                    }
+                }
+
+                actual.overlay(p[0], p[1], stamp, op);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
     @Test
     public void testPlace() {
         PixselMap expected, actual;
@@ -0,0 +1,132 @@
+package microfont;
+
+import java.util.Random;
+
+/**
+ * Замеры скорости масштабирования шрифтов классом {@link Scaler}. Это не тест
+ * JUnit, а самостоятельная программа, как и {@link PixselMapBenchmark}.
+ * <p>
+ * Масштабируется синтетический шрифт из {@link #GLYPHS} символов со
+ * случайными пикселями. Для каждого способа выводится среднее время
+ * масштабирования всего шрифта в одном потоке и в потоках по числу
+ * процессоров. Рядом приводится время попиксельного увеличения повторением
+ * пикселей через {@link AbstractPixselMap#getPixsel(int, int)}.
+ */
+public class ScalerBenchmark {
+    /** Количество символов шрифта. */
+    static final int GLYPHS = 10000;
+    /** Ширина символов. */
+    static final int WIDTH  = 8;
+    /** Высота символов. */
+    static final int HEIGHT = 8;
+    /** Количество прогонов для разогрева JIT. */
+    static final int WARMUP = 5;
+    /** Количество замеряемых прогонов. */
+    static final int RUNS   = 10;
+
+    /**
+     * Приёмник результатов, не позволяющий JIT выбросить вычисления.
+     */
+    static volatile long sink;
+
+    /**
+     * Замеряемое действие.
+     */
+    static abstract class Action {
+        final String name;
+
+        Action(String name) {
+            this.name = name;
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    /**
+     * Создаёт моноширинный шрифт из {@link #GLYPHS} символов со случайными
+     * пикселями.
+     */
+    static MFont randomFont(long seed) {
+        Random rnd = new Random(seed);
+        MFont font = new MFont();
+        font.setFixsed(true);
+        font.setWidth(WIDTH);
+        font.setHeight(HEIGHT);
+        font.setMetric(Metrics.METRIC_BASELINE, HEIGHT - 2);
+        byte[] b = new byte[(WIDTH * HEIGHT + 7) / 8];
+        for (int i = 0; i < GLYPHS; i++) {
+            rnd.nextBytes(b);
+            font.add(new MSymbol(i, WIDTH, HEIGHT, b));
+        }
+        return font;
+    }
+
+    /**
+     * Выполняет действие и печатает среднее время одного вызова.
+     */
+    static void measure(Action act) throws Exception {
+        long acc = 0;
+        for (int i = 0; i < WARMUP; i++)
+            acc += act.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            acc += act.run();
+        long time = System.nanoTime() - start;
+        sink += acc;
+        System.out.printf("%-28s %10.2f ms/font%n", act.name, (double) time
+                / RUNS / 1000000);
+    }
+
+    /**
+     * Замеряет масштабирование шрифта в одном потоке и в потоках по числу
+     * процессоров.
+     */
+    static void measure(final MFont font, String name, final int mode,
+                    final int factor) throws Exception {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+
+        measure(new Action(name + " (1 thread)") {
+            @Override
+            long run() throws Exception {
+                return new Scaler(mode, factor, 1).apply(font).length();
+            }
+        });
+        measure(new Action(name + " (" + cpus + " threads)") {
+            @Override
+            long run() throws Exception {
+                return new Scaler(mode, factor, cpus).apply(font).length();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        final MFont font = randomFont(1);
+        final MFont big = new Scaler(Scaler.SCALE_NEAREST, 2).apply(font);
+
+        System.out.println("Font " + GLYPHS + " glyphs " + WIDTH + "x"
+                        + HEIGHT + ", " + RUNS + " runs");
+
+        measure(font, "nearest x2", Scaler.SCALE_NEAREST, 2);
+        measure(font, "nearest x3", Scaler.SCALE_NEAREST, 3);
+        measure(new Action("nearest x2 (per pixsel)") {
+            @Override
+            long run() throws Exception {
+                long ink = 0;
+                for (int i = 0; i < font.length(); i++) {
+                    MSymbol sym = font.symbolByIndex(i);
+                    PixselMap dst = new PixselMap(WIDTH * 2, HEIGHT * 2);
+                    for (int y = 0; y < HEIGHT * 2; y++) {
+                        for (int x = 0; x < WIDTH * 2; x++)
+                            dst.setPixsel(x, y, sym.getPixsel(x / 2, y / 2));
+                    }
+                    ink += dst.getWidth();
+                }
+                return ink;
+            }
+        });
+        measure(font, "Scale2x", Scaler.SCALE_EPX, 2);
+        measure(font, "Scale3x", Scaler.SCALE_EPX, 3);
+        measure(big, "box /2", Scaler.SCALE_BOX, 2);
+        measure(big, "box /4", Scaler.SCALE_BOX, 4);
+    }
+}